@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.benchmark;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic dictionaries, texts and an embedded rule database shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+
+    private static final long SEED = 20170315L;
+
+    private BenchmarkSupport() {
+    }
+
+    static String word(int rule, int index) {
+        return "syn" + rule + "x" + index;
+    }
+
+    /**
+     * Builds equivalent rules like "syn0x0, syn0x1, syn0x2", every rule with groupWidth words.
+     */
+    static List<String> rules(int dictionarySize, int groupWidth) {
+        List<String> rules = new ArrayList<>(dictionarySize);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < dictionarySize; i++) {
+            sb.setLength(0);
+            for (int j = 0; j < groupWidth; j++) {
+                if (j > 0) {
+                    sb.append(", ");
+                }
+                sb.append(word(i, j));
+            }
+            rules.add(sb.toString());
+        }
+
+        return rules;
+    }
+
+    /**
+     * Builds a whitespace separated text where about hitRatio of the tokens are dictionary terms. The other tokens
+     * look like dictionary terms of rules which do not exist, so they pass the length and first char checks.
+     */
+    static String text(int tokenCount, int dictionarySize, int groupWidth, double hitRatio) {
+        Random random = new Random(SEED);
+        StringBuilder sb = new StringBuilder(tokenCount * 10);
+        for (int i = 0; i < tokenCount; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            if (random.nextDouble() < hitRatio) {
+                sb.append(word(random.nextInt(dictionarySize), random.nextInt(groupWidth)));
+            } else {
+                sb.append(word(dictionarySize + random.nextInt(dictionarySize * 4 + 1), random.nextInt(groupWidth)));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    static Configuration configuration(String dbUrl, String... settings) throws IOException {
+        Path home = Files.createTempDirectory("synonym-benchmark");
+        Settings.Builder builder = Settings.builder()
+                .put("path.home", home.toString())
+                .put("ignore_case", true)
+                .put("snapshot", false)
+                .put("db_url", dbUrl);
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            builder.put(settings[i], settings[i + 1]);
+        }
+
+        Settings finalSettings = builder.build();
+        return new Configuration(new Environment(finalSettings), finalSettings);
+    }
+
+    /**
+     * Creates an in-memory H2 database with the dynamic_synonym_rule table filled with the rules,
+     * one version per rule.
+     *
+     * @return the connection which keeps the in-memory database alive
+     */
+    static Connection createRuleDatabase(String dbUrl, List<String> rules) throws SQLException {
+        Connection conn = DriverManager.getConnection(dbUrl);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS dynamic_synonym_rule");
+            stmt.execute("CREATE TABLE dynamic_synonym_rule (id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+                    + "rule VARCHAR(4096) NOT NULL, status TINYINT NOT NULL DEFAULT 1, version INT NOT NULL)");
+            stmt.execute("CREATE INDEX IDX_DYNAMIC_SYNONYM_VERSION ON dynamic_synonym_rule(version)");
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO dynamic_synonym_rule(id, rule, status, version) VALUES (?, ?, 1, ?)")) {
+            for (int i = 0; i < rules.size(); i++) {
+                ps.setLong(1, i + 1);
+                ps.setString(2, rules.get(i));
+                ps.setInt(3, i + 1);
+                ps.addBatch();
+                if (i % 1000 == 999) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+
+        return conn;
+    }
+
+    static String h2Url(String name) {
+        // the pool passes MySQL connection properties which H2 does not know
+        return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE";
+    }
+}
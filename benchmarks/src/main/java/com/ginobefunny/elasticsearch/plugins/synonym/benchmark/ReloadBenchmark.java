@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.benchmark;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency from a version change in the rule database to the new map being served, for full
+ * and delta reloads. Every invocation changes a few rules and reloads them against an embedded H2 database.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReloadBenchmark {
+
+    @Param({"10000", "100000"})
+    public int dictionarySize;
+
+    @Param({"false", "true"})
+    public boolean deltaReload;
+
+    @Param({"10"})
+    public int changedRules;
+
+    private Connection keepAlive;
+
+    private SynonymRuleManager manager;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    private long version;
+
+    private int nextRule = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        String dbUrl = BenchmarkSupport.h2Url("reload");
+        keepAlive = BenchmarkSupport.createRuleDatabase(dbUrl, BenchmarkSupport.rules(dictionarySize, 3));
+        version = dictionarySize;
+        manager = managers.initial(BenchmarkSupport.configuration(dbUrl,
+                "delta_reload", String.valueOf(deltaReload)), "benchmark");
+        if (!manager.awaitInitialLoad(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("synonym rules not loaded");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        managers.release("benchmark");
+        keepAlive.close();
+    }
+
+    /**
+     * Rewrites the next few rules under a new version, like an operator editing the dictionary.
+     */
+    @Setup(Level.Invocation)
+    public void changeRules() throws SQLException {
+        version++;
+        try (PreparedStatement ps = keepAlive.prepareStatement(
+                "UPDATE dynamic_synonym_rule SET rule = ?, version = ? WHERE id = ?")) {
+            for (int i = 0; i < changedRules; i++) {
+                int rule = nextRule++ % dictionarySize;
+                ps.setString(1, BenchmarkSupport.word(rule, 0) + ", " + BenchmarkSupport.word(rule, 1)
+                        + ", changed" + version + "x" + i);
+                ps.setLong(2, version);
+                ps.setLong(3, rule + 1);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    @Benchmark
+    public boolean reload() {
+        return manager.reloadSynonymRule(version);
+    }
+}
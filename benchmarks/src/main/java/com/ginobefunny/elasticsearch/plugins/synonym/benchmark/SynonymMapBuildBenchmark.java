@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.benchmark;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SimpleSynonymMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to build the map from rule texts. The heap footprint of the last built map is printed
+ * when the trial ends; run with "-prof gc" for the allocation rate of the build itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class SynonymMapBuildBenchmark {
+
+    @Param({"10000", "100000"})
+    public int dictionarySize;
+
+    @Param({"2", "10", "40"})
+    public int groupWidth;
+
+    @Param({"1", "4"})
+    public int buildParallelism;
+
+    private Configuration configuration;
+
+    private List<String> rules;
+
+    private SimpleSynonymMap lastMap;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        configuration = BenchmarkSupport.configuration(BenchmarkSupport.h2Url("build"),
+                "build_parallelism", String.valueOf(buildParallelism));
+        rules = BenchmarkSupport.rules(dictionarySize, groupWidth);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (lastMap != null) {
+            System.out.println("terms: " + lastMap.size() + ", ram: " + lastMap.ramBytesUsed() + " bytes");
+        }
+    }
+
+    @Benchmark
+    public SimpleSynonymMap build() {
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(configuration);
+        for (String rule : rules) {
+            builder.addRule(rule);
+        }
+
+        lastMap = builder.build();
+        return lastMap;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.benchmark;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.DynamicSynonymTokenFilter;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the tokens per second of the filter on the analysis hot path for different dictionary sizes,
+ * synonym group widths and ratios of tokens which hit the dictionary, with and without the miss prefilter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenFilterBenchmark {
+
+    private static final int TOKENS_PER_TEXT = 1000;
+
+    @Param({"10000", "100000"})
+    public int dictionarySize;
+
+    @Param({"2", "10"})
+    public int groupWidth;
+
+    @Param({"0.0", "0.01", "0.05", "0.5"})
+    public double hitRatio;
+
+    @Param({"true", "false"})
+    public boolean prefilter;
+
+    private Connection keepAlive;
+
+    private String text;
+
+    private WhitespaceTokenizer tokenizer;
+
+    private TokenStream stream;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        String dbUrl = BenchmarkSupport.h2Url("filter");
+        List<String> rules = BenchmarkSupport.rules(dictionarySize, groupWidth);
+        keepAlive = BenchmarkSupport.createRuleDatabase(dbUrl, rules);
+        SynonymRuleManager manager = managers.initial(
+                BenchmarkSupport.configuration(dbUrl, "prefilter", String.valueOf(prefilter)), "benchmark");
+        if (!manager.awaitInitialLoad(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("synonym rules not loaded");
+        }
+
+        text = BenchmarkSupport.text(TOKENS_PER_TEXT, dictionarySize, groupWidth, hitRatio);
+        tokenizer = new WhitespaceTokenizer();
+        stream = new DynamicSynonymTokenFilter(tokenizer, manager);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        stream.close();
+        managers.release("benchmark");
+        keepAlive.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TOKENS_PER_TEXT)
+    public void filter(Blackhole bh) throws IOException {
+        tokenizer.setReader(new StringReader(text));
+        stream.reset();
+        while (stream.incrementToken()) {
+            bh.consume(stream);
+        }
+        stream.end();
+        stream.close();
+    }
+}
@@ -4,14 +4,22 @@ CREATE TABLE `dynamic_synonym_rule` (
   `rule` varchar(255) NOT NULL,
   `status` tinyint(1) NOT NULL DEFAULT '1' COMMENT '1: available, 0:unavailable',
   `version` int(11) NOT NULL,
+  `dictionary` varchar(64) NOT NULL DEFAULT 'default',
   PRIMARY KEY (`id`),
   KEY `IDX_DYNAMIC_SYNONYM_VERSION` (`version`),
-  KEY `IDX_DYNAMIC_SYNONYM_RULE` (`rule`)
+  KEY `IDX_DYNAMIC_SYNONYM_RULE` (`rule`),
+  KEY `IDX_DYNAMIC_SYNONYM_DICTIONARY` (`dictionary`, `version`)
 ) ENGINE=InnoDB AUTO_INCREMENT=3 DEFAULT CHARSET=utf8;
 
 -- ----------------------------
 -- insert sample records
 -- ----------------------------
-INSERT INTO `dynamic_synonym_rule` VALUES ('1', '阿迪, 阿迪达斯, adidasi => Adidas', '1', '1');
-INSERT INTO `dynamic_synonym_rule` VALUES ('2', 'Nike, 耐克, naike', '1', '2');
+INSERT INTO `dynamic_synonym_rule` (`id`, `rule`, `status`, `version`) VALUES ('1', '阿迪, 阿迪达斯, adidasi => Adidas', '1', '1');
+INSERT INTO `dynamic_synonym_rule` (`id`, `rule`, `status`, `version`) VALUES ('2', 'Nike, 耐克, naike', '1', '2');
 
+
+-- ----------------------------
+-- add the dictionary column to a table created by an older version
+-- ----------------------------
+-- ALTER TABLE `dynamic_synonym_rule` ADD COLUMN `dictionary` varchar(64) NOT NULL DEFAULT 'default',
+--   ADD KEY `IDX_DYNAMIC_SYNONYM_DICTIONARY` (`dictionary`, `version`);
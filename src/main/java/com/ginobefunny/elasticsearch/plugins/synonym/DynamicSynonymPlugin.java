@@ -13,35 +13,136 @@
  */
 package com.ginobefunny.elasticsearch.plugins.synonym;
 
+import com.ginobefunny.elasticsearch.plugins.synonym.action.ReloadSynonymAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.action.TransportReloadSynonymAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.cluster.ClusterSynonymMapCoordinator;
+import com.ginobefunny.elasticsearch.plugins.synonym.reindex.SelectiveReindexTasks;
+import com.ginobefunny.elasticsearch.plugins.synonym.rest.RestDynamicSynonymStatsAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.rest.RestReloadSynonymAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.rest.RestSelectiveReindexAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.rest.RestSynonymChangesAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.rest.RestSynonymDryRunAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.source.FileSynonymRuleSource;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.JDBCUtils;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymBuildExecutor;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymTaskExecutor;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
 import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.SearchRequestParsers;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Created by ginozhang on 2017/1/12.
  */
-public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin {
+public class DynamicSynonymPlugin extends Plugin implements AnalysisPlugin, ActionPlugin {
 
     /** Plugin name **/
     public static final String PLUGIN_NAME = "dynamic-synonym";
 
+    /** the dictionaries of the node, shared with the components through the injector **/
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    /** the selective reindex tasks of the node, shared with the rest action through the injector **/
+    private final SelectiveReindexTasks reindexTasks = new SelectiveReindexTasks();
+
     @Override
     public Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
         Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> tokenFilters = new HashMap<>();
 
-        tokenFilters.put(PLUGIN_NAME, requiresAnalysisSettings((is, env, name, settings) -> new DynamicSynonymTokenFilterFactory(is, env, name, settings)));
+        tokenFilters.put(PLUGIN_NAME, requiresAnalysisSettings((is, env, name, settings) ->
+                new DynamicSynonymTokenFilterFactory(is, env, name, settings, managers)));
 
         return tokenFilters;
     }
 
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+                managers.release(index.getUUID());
+            }
+        });
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(ClusterSynonymMapCoordinator.CLUSTER_MODE_SETTING,
+                ClusterSynonymMapCoordinator.LOADER_NODE_SETTING, Configuration.MEMORY_BUDGET_SETTING);
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        return Arrays.asList(SynonymTaskExecutor.executorBuilder(settings),
+                SynonymBuildExecutor.executorBuilder(settings));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService,
+                                               ScriptService scriptService, SearchRequestParsers searchRequestParsers,
+                                               NamedXContentRegistry xContentRegistry) {
+        // the dictionaries load and reload on the dynamic_synonym thread pool
+        managers.setThreadPool(threadPool);
+        return Arrays.asList(managers, reindexTasks);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reindexTasks.cancelAll();
+        managers.closeAll();
+        // the pools and file watcher of dictionaries which did not close in time
+        JDBCUtils.closePools();
+        FileSynonymRuleSource.stopWatching();
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> getGuiceServiceClasses() {
+        return Collections.singletonList(ClusterSynonymMapCoordinator.class);
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Collections.singletonList(new ActionHandler<>(ReloadSynonymAction.INSTANCE, TransportReloadSynonymAction.class));
+    }
+
+    @Override
+    public List<Class<? extends RestHandler>> getRestHandlers() {
+        return Arrays.asList(RestDynamicSynonymStatsAction.class, RestReloadSynonymAction.class,
+                RestSynonymChangesAction.class, RestSelectiveReindexAction.class, RestSynonymDryRunAction.class);
+    }
+
     private <T> AnalysisModule.AnalysisProvider<T> requiresAnalysisSettings(AnalysisModule.AnalysisProvider<T> provider) {
         return new AnalysisModule.AnalysisProvider<T>() {
 
@@ -16,48 +16,83 @@ package com.ginobefunny.elasticsearch.plugins.synonym;
 import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
 import com.ginobefunny.elasticsearch.plugins.synonym.service.DynamicSynonymTokenFilter;
 import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
-import org.apache.lucene.analysis.Analyzer;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.core.KeywordAnalyzer;
-import org.apache.lucene.analysis.core.SimpleAnalyzer;
-import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
 
 import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 public class DynamicSynonymTokenFilterFactory extends AbstractTokenFilterFactory {
 
+    private static final Logger LOGGER = ESLoggerFactory.getLogger(DynamicSynonymTokenFilterFactory.class.getName());
+
+    /**
+     * How the filters behave while the dictionary is loaded in the background.
+     */
+    enum InitPolicy {
+        /** the tokens pass through unchanged until the map is loaded **/
+        PASS_THROUGH,
+        /** creating a filter waits for the map, at most until init_timeout after the factory was created **/
+        BLOCK
+    }
+
+    private final SynonymRuleManager manager;
+
+    private final InitPolicy initPolicy;
+
+    /** the time until which creating a filter waits for the initial load, see {@link InitPolicy#BLOCK} **/
+    private final long initDeadlineNanos;
+
+    private final boolean stacked;
+
+    private final boolean keepOriginal;
+
+    private final int maxExpansions;
+
     public DynamicSynonymTokenFilterFactory(IndexSettings indexSettings, Environment env,
-                                            String name, Settings settings) throws IOException {
+                                            String name, Settings settings, SynonymRuleManagers managers)
+            throws IOException {
         super(indexSettings, name, settings);
 
-        // get the filter setting params
-        final boolean ignoreCase = settings.getAsBoolean("ignore_case", false);
-        final boolean expand = settings.getAsBoolean("expand", true);
-        final String dbUrl = settings.get("db_url");
-        final String tokenizerName = settings.get("tokenizer", "whitespace");
-
-        Analyzer analyzer;
-        if ("standand".equalsIgnoreCase(tokenizerName)) {
-            analyzer = new StandardAnalyzer();
-        } else if ("keyword".equalsIgnoreCase(tokenizerName)) {
-            analyzer = new KeywordAnalyzer();
-        } else if ("simple".equalsIgnoreCase(tokenizerName)) {
-            analyzer = new SimpleAnalyzer();
-        } else {
-            analyzer = new WhitespaceAnalyzer();
+        String policy = settings.get("init_policy", "block");
+        try {
+            this.initPolicy = InitPolicy.valueOf(policy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown init_policy [" + policy + "], expected pass_through or block");
         }
+        TimeValue initTimeout = settings.getAsTime("init_timeout", TimeValue.timeValueSeconds(60));
+        this.initDeadlineNanos = System.nanoTime() + initTimeout.nanos();
 
-        // NOTE: the manager will only init once
-        SynonymRuleManager.initial(new Configuration(ignoreCase, expand, analyzer, dbUrl));
+        // filters with the same dictionary settings share one manager, it is released when the index closes;
+        // a new dictionary is loaded in the background
+        this.manager = managers.initial(new Configuration(env, settings), indexSettings.getUUID());
+        LOGGER.info("Synonym filter [{}] of index [{}] uses dictionary {}, state: {}", name,
+                indexSettings.getIndex().getName(), manager.getConfiguration().getMapId(), manager.getLoadState());
+
+        // the output settings only apply to this filter, they are not part of the shared dictionary
+        this.stacked = settings.getAsBoolean("stacked", false);
+        this.keepOriginal = settings.getAsBoolean("keep_original", false);
+        this.maxExpansions = settings.getAsInt("max_expansions", 0);
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-        return new DynamicSynonymTokenFilter(tokenStream);
+        // the analyzers create their filters once per thread, so only the first documents of a thread may wait
+        if (initPolicy == InitPolicy.BLOCK && manager.getLoadState() == SynonymRuleManager.LoadState.LOADING) {
+            long remainingNanos = initDeadlineNanos - System.nanoTime();
+            if (remainingNanos > 0 && !manager.awaitInitialLoad(remainingNanos, TimeUnit.NANOSECONDS)) {
+                LOGGER.warn("Synonym dictionary {} is not loaded yet, state: {}; pass the tokens through.",
+                        manager.getConfiguration().getMapId(), manager.getLoadState());
+            }
+        }
+        return new DynamicSynonymTokenFilter(tokenStream, manager, stacked, keepOriginal, maxExpansions);
     }
 }
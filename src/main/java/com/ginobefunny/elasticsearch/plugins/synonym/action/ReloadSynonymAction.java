@@ -0,0 +1,41 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.action;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Makes the nodes check the synonym db for new rules right away.
+ */
+public class ReloadSynonymAction extends Action<ReloadSynonymRequest, ReloadSynonymResponse, ReloadSynonymRequestBuilder> {
+
+    public static final ReloadSynonymAction INSTANCE = new ReloadSynonymAction();
+
+    public static final String NAME = "cluster:admin/dynamic_synonym/reload";
+
+    private ReloadSynonymAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ReloadSynonymResponse newResponse() {
+        return new ReloadSynonymResponse();
+    }
+
+    @Override
+    public ReloadSynonymRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ReloadSynonymRequestBuilder(client, this);
+    }
+}
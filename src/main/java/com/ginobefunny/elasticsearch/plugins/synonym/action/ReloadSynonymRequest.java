@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.action;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+/**
+ * Reloads the synonym rules on the given nodes, all nodes if none are given.
+ */
+public class ReloadSynonymRequest extends BaseNodesRequest<ReloadSynonymRequest> {
+
+    public ReloadSynonymRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
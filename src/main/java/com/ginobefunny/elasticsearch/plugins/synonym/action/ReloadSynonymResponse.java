@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.action;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReloadSynonymResponse extends BaseNodesResponse<ReloadSynonymResponse.NodeResponse> implements ToXContent {
+
+    ReloadSynonymResponse() {
+    }
+
+    public ReloadSynonymResponse(ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NodeResponse::readNodeResponse);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+        out.writeStreamableList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (NodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            builder.startObject("dictionaries");
+            for (DictionaryReload dictionary : node.dictionaries) {
+                builder.startObject(dictionary.mapId);
+                builder.field("previous_version", dictionary.previousVersion);
+                builder.field("version", dictionary.version);
+                builder.field("reloaded", dictionary.version > dictionary.previousVersion);
+                builder.endObject();
+            }
+            builder.endObject();
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * The versions of one dictionary before and after the check.
+     */
+    public static class DictionaryReload {
+
+        private final String mapId;
+
+        private final long previousVersion;
+
+        private final long version;
+
+        public DictionaryReload(String mapId, long previousVersion, long version) {
+            this.mapId = mapId;
+            this.previousVersion = previousVersion;
+            this.version = version;
+        }
+
+        public String getMapId() {
+            return mapId;
+        }
+
+        public long getPreviousVersion() {
+            return previousVersion;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * The dictionaries checked on one node, a node without an index using the filter has none.
+     */
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private List<DictionaryReload> dictionaries;
+
+        NodeResponse() {
+        }
+
+        NodeResponse(DiscoveryNode node, List<DictionaryReload> dictionaries) {
+            super(node);
+            this.dictionaries = dictionaries;
+        }
+
+        public List<DictionaryReload> getDictionaries() {
+            return dictionaries;
+        }
+
+        static NodeResponse readNodeResponse(StreamInput in) throws IOException {
+            NodeResponse response = new NodeResponse();
+            response.readFrom(in);
+            return response;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            int size = in.readVInt();
+            dictionaries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                dictionaries.add(new DictionaryReload(in.readString(), in.readLong(), in.readLong()));
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(dictionaries.size());
+            for (DictionaryReload dictionary : dictionaries) {
+                out.writeString(dictionary.mapId);
+                out.writeLong(dictionary.previousVersion);
+                out.writeLong(dictionary.version);
+            }
+        }
+    }
+}
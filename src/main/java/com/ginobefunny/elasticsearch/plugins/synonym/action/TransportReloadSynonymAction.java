@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.action;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a version check on every requested node and waits for the reload it triggers.
+ */
+public class TransportReloadSynonymAction extends TransportNodesAction<ReloadSynonymRequest, ReloadSynonymResponse,
+        TransportReloadSynonymAction.NodeRequest, ReloadSynonymResponse.NodeResponse> {
+
+    private static final TimeValue DEFAULT_WAIT = TimeValue.timeValueSeconds(60);
+
+    private final SynonymRuleManagers managers;
+
+    @Inject
+    public TransportReloadSynonymAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                        TransportService transportService, ActionFilters actionFilters,
+                                        IndexNameExpressionResolver indexNameExpressionResolver,
+                                        SynonymRuleManagers managers) {
+        super(settings, ReloadSynonymAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, ReloadSynonymRequest::new, NodeRequest::new, ThreadPool.Names.GENERIC,
+                ReloadSynonymResponse.NodeResponse.class);
+        this.managers = managers;
+    }
+
+    @Override
+    protected ReloadSynonymResponse newResponse(ReloadSynonymRequest request,
+                                                List<ReloadSynonymResponse.NodeResponse> responses,
+                                                List<FailedNodeException> failures) {
+        return new ReloadSynonymResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, ReloadSynonymRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected ReloadSynonymResponse.NodeResponse newNodeResponse() {
+        return new ReloadSynonymResponse.NodeResponse();
+    }
+
+    @Override
+    protected ReloadSynonymResponse.NodeResponse nodeOperation(NodeRequest request) {
+        List<SynonymRuleManager> managers = this.managers.getManagers();
+        List<Long> previousVersions = new ArrayList<>(managers.size());
+        List<Future<Long>> checks = new ArrayList<>(managers.size());
+        for (SynonymRuleManager manager : managers) {
+            previousVersions.add(manager.getLoadedVersion());
+            checks.add(manager.checkNow());
+        }
+
+        long deadline = System.nanoTime() + (request.timeout == null ? DEFAULT_WAIT : request.timeout).nanos();
+        List<ReloadSynonymResponse.DictionaryReload> dictionaries = new ArrayList<>(managers.size());
+        try {
+            for (int i = 0; i < managers.size(); i++) {
+                long version = checks.get(i).get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                dictionaries.add(new ReloadSynonymResponse.DictionaryReload(
+                        managers.get(i).getConfiguration().getMapId(), previousVersions.get(i), version));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchException("Interrupted while reloading synonym rule", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new ElasticsearchException("Failed to reload synonym rule", e);
+        }
+
+        return new ReloadSynonymResponse.NodeResponse(clusterService.localNode(), dictionaries);
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private TimeValue timeout;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, ReloadSynonymRequest request) {
+            super(nodeId);
+            this.timeout = request.timeout();
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            timeout = in.readOptionalWriteable(TimeValue::new);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeOptionalWriteable(timeout);
+        }
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.cluster;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.DynamicSynonymPlugin;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SimpleSynonymMap;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymMapCoordinator;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymMapGeneration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SnapshotUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateObserver;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.node.NodeClosedException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportResponseHandler;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets one node, the elected master or the configured loader node, poll the db and compile the maps. The loader
+ * publishes every reloaded map to the other nodes, which also fetch it from the loader when they start or miss
+ * a publication. The maps are shipped in the snapshot format, tagged with their rule version.
+ *
+ * A fetch only carries the map id. The loader finds the filter settings of the map in its index metadata, so it
+ * loads a dictionary none of its indices uses, e.g. on a dedicated master node, and keeps it while other nodes fetch
+ * it. A node whose fetch fails polls the source itself until the loader serves the map again.
+ */
+public class ClusterSynonymMapCoordinator extends AbstractLifecycleComponent implements SynonymMapCoordinator {
+
+    public static final Setting<Boolean> CLUSTER_MODE_SETTING =
+            Setting.boolSetting("dynamic_synonym.cluster_mode", false, Setting.Property.NodeScope);
+
+    /** the name of the node loading the rules, the elected master if empty **/
+    public static final Setting<String> LOADER_NODE_SETTING =
+            Setting.simpleString("dynamic_synonym.loader_node", Setting.Property.NodeScope);
+
+    static final String PUBLISH_ACTION_NAME = "internal:dynamic_synonym/map/publish";
+
+    static final String FETCH_ACTION_NAME = "internal:dynamic_synonym/map/fetch";
+
+    private static final String FILTER_SETTINGS_PREFIX = "index.analysis.filter";
+
+    private static final TimeValue FETCH_TIMEOUT = TimeValue.timeValueSeconds(30);
+
+    /** how long a fetch waits for the loader to see the index metadata of the map and to load the dictionary **/
+    private static final TimeValue LOAD_TIMEOUT = TimeValue.timeValueSeconds(20);
+
+    private static final TimeValue LEASE_CHECK_INTERVAL = TimeValue.timeValueMinutes(1);
+
+    /** a dictionary loaded for the other nodes is released when no node fetched it for this many check intervals **/
+    private static final int LEASE_CHECK_INTERVALS = 3;
+
+    private final ClusterService clusterService;
+
+    private final TransportService transportService;
+
+    private final Environment environment;
+
+    private final ThreadPool threadPool;
+
+    private final SynonymRuleManagers managers;
+
+    private final boolean enabled;
+
+    private final String loaderNodeName;
+
+    /** the last map serialized by this node per map id, shared by the publication and the fetches of its version **/
+    private final Map<String, SerializedMap> serializedMaps = new ConcurrentHashMap<>();
+
+    /** the dictionaries this node loads for the other nodes by map id, guarded by this **/
+    private final Map<String, Lease> leases = new HashMap<>();
+
+    private ThreadPool.Cancellable leaseCheck;
+
+    @Inject
+    public ClusterSynonymMapCoordinator(Settings settings, ClusterService clusterService,
+                                        TransportService transportService, Environment environment,
+                                        ThreadPool threadPool, SynonymRuleManagers managers) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.transportService = transportService;
+        this.environment = environment;
+        this.threadPool = threadPool;
+        this.managers = managers;
+        this.enabled = CLUSTER_MODE_SETTING.get(settings);
+        this.loaderNodeName = LOADER_NODE_SETTING.get(settings);
+    }
+
+    @Override
+    protected void doStart() {
+        if (!enabled) {
+            return;
+        }
+
+        transportService.registerRequestHandler(PUBLISH_ACTION_NAME, PublishRequest::new, ThreadPool.Names.GENERIC,
+                (request, channel) -> {
+                    handlePublish(request);
+                    channel.sendResponse(TransportResponse.Empty.INSTANCE);
+                });
+        transportService.registerRequestHandler(FETCH_ACTION_NAME, FetchRequest::new, ThreadPool.Names.GENERIC,
+                this::handleFetch);
+        leaseCheck = threadPool.scheduleWithFixedDelay(this::releaseIdleDictionaries, LEASE_CHECK_INTERVAL,
+                ThreadPool.Names.GENERIC);
+        managers.setCoordinator(this);
+    }
+
+    @Override
+    protected void doStop() {
+        if (enabled) {
+            managers.setCoordinator(null);
+            leaseCheck.cancel();
+        }
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+    }
+
+    @Override
+    public boolean isLocalLoader() {
+        DiscoveryNode loader = loaderNode();
+        return loader != null && loader.equals(clusterService.localNode());
+    }
+
+    @Override
+    public void publish(String mapId, long version, SimpleSynonymMap synonymMap) {
+        byte[] bytes;
+        try {
+            bytes = serialize(mapId, version, synonymMap);
+        } catch (IOException e) {
+            logger.warn("Serialize synonym map of version " + version + " failed!", e);
+            return;
+        }
+
+        PublishRequest request = new PublishRequest(mapId, version, bytes);
+        TransportRequestOptions options = TransportRequestOptions.builder().withCompress(true).build();
+        DiscoveryNode localNode = clusterService.localNode();
+        for (DiscoveryNode node : clusterService.state().nodes()) {
+            if (node.equals(localNode)) {
+                continue;
+            }
+
+            transportService.sendRequest(node, PUBLISH_ACTION_NAME, request, options,
+                    new TransportResponseHandler<TransportResponse.Empty>() {
+                        @Override
+                        public TransportResponse.Empty newInstance() {
+                            return TransportResponse.Empty.INSTANCE;
+                        }
+
+                        @Override
+                        public void handleResponse(TransportResponse.Empty response) {
+                        }
+
+                        @Override
+                        public void handleException(TransportException exp) {
+                            // the node catches up with its next fetch
+                            logger.warn("Publish synonym map of version " + version + " to " + node + " failed!", exp);
+                        }
+
+                        @Override
+                        public String executor() {
+                            return ThreadPool.Names.SAME;
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public void fetch(Configuration cfg, long knownVersion, ActionListener<SnapshotUtils.Snapshot> listener) {
+        DiscoveryNode loader = loaderNode();
+        if (loader == null) {
+            listener.onFailure(new IllegalStateException("no synonym loader node in the cluster"));
+            return;
+        }
+
+        TransportRequestOptions options = TransportRequestOptions.builder()
+                .withCompress(true).withTimeout(FETCH_TIMEOUT).build();
+        transportService.sendRequest(loader, FETCH_ACTION_NAME, new FetchRequest(cfg.getMapId(), knownVersion),
+                options, new TransportResponseHandler<FetchResponse>() {
+                    @Override
+                    public FetchResponse newInstance() {
+                        return new FetchResponse();
+                    }
+
+                    @Override
+                    public void handleResponse(FetchResponse response) {
+                        SnapshotUtils.Snapshot snapshot;
+                        try {
+                            snapshot = response.bytes == null ? null
+                                    : SnapshotUtils.fromBytes(response.bytes, cfg.isOffHeap());
+                        } catch (Exception e) {
+                            listener.onFailure(e);
+                            return;
+                        }
+                        listener.onResponse(snapshot);
+                    }
+
+                    @Override
+                    public void handleException(TransportException exp) {
+                        listener.onFailure(exp);
+                    }
+
+                    @Override
+                    public String executor() {
+                        // the map is deserialized off the network thread
+                        return ThreadPool.Names.GENERIC;
+                    }
+                });
+    }
+
+    private DiscoveryNode loaderNode() {
+        DiscoveryNodes nodes = clusterService.state().nodes();
+        if (loaderNodeName == null || loaderNodeName.isEmpty()) {
+            return nodes.getMasterNode();
+        }
+
+        for (DiscoveryNode node : nodes) {
+            if (loaderNodeName.equals(node.getName())) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private void handlePublish(PublishRequest request) throws IOException {
+        SynonymRuleManager manager = managers.getManager(request.mapId);
+        // no index on this node uses the dictionary yet if there is no manager, it fetches the map when one does
+        if (manager != null && request.version > manager.getLoadedVersion()) {
+            SnapshotUtils.Snapshot snapshot = SnapshotUtils.fromBytes(request.bytes,
+                    manager.getConfiguration().isOffHeap());
+            manager.installSynonymMap(snapshot.getVersion(), snapshot.getSynonymMap());
+        }
+    }
+
+    private void handleFetch(FetchRequest request, TransportChannel channel) throws Exception {
+        if (!isLocalLoader()) {
+            channel.sendResponse(fetchResponse(request, managers.getManager(request.mapId), false));
+            return;
+        }
+
+        if (isLeased(request.mapId) || findConfiguration(clusterService.state(), request.mapId) != null) {
+            serveFetch(request, channel);
+            return;
+        }
+
+        // the fetching node may apply the metadata of a new index before this node does
+        ClusterStateObserver observer = new ClusterStateObserver(clusterService, LOAD_TIMEOUT, logger,
+                threadPool.getThreadContext());
+        observer.waitForNextChange(new ClusterStateObserver.Listener() {
+            @Override
+            public void onNewClusterState(ClusterState state) {
+                threadPool.generic().execute(() -> serveFetch(request, channel));
+            }
+
+            @Override
+            public void onClusterServiceClose() {
+                sendFailure(channel, new NodeClosedException(clusterService.localNode()));
+            }
+
+            @Override
+            public void onTimeout(TimeValue timeout) {
+                serveFetch(request, channel);
+            }
+        }, state -> findConfiguration(state, request.mapId) != null);
+    }
+
+    private void serveFetch(FetchRequest request, TransportChannel channel) {
+        SynonymRuleManager manager;
+        try {
+            manager = leaseDictionary(request.mapId);
+        } catch (Exception e) {
+            sendFailure(channel, e);
+            return;
+        }
+
+        if (manager == null || manager.getLoadState() != SynonymRuleManager.LoadState.LOADING) {
+            replyFetch(request, channel, manager, new AtomicBoolean());
+            return;
+        }
+
+        // answer once the dictionary is loaded instead of holding a thread meanwhile
+        AtomicBoolean replied = new AtomicBoolean();
+        ScheduledFuture<?> timeout = threadPool.schedule(LOAD_TIMEOUT, ThreadPool.Names.GENERIC,
+                () -> replyFetch(request, channel, manager, replied));
+        manager.whenInitiallyLoaded(() -> threadPool.generic().execute(() -> {
+            timeout.cancel(false);
+            replyFetch(request, channel, manager, replied);
+        }));
+    }
+
+    private void replyFetch(FetchRequest request, TransportChannel channel, SynonymRuleManager manager,
+                            AtomicBoolean replied) {
+        if (!replied.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            channel.sendResponse(fetchResponse(request, manager, true));
+        } catch (Exception e) {
+            sendFailure(channel, e);
+        }
+    }
+
+    private void sendFailure(TransportChannel channel, Exception e) {
+        try {
+            channel.sendResponse(e);
+        } catch (IOException inner) {
+            inner.addSuppressed(e);
+            logger.warn("Send synonym map fetch failure failed!", inner);
+        }
+    }
+
+    private FetchResponse fetchResponse(FetchRequest request, SynonymRuleManager manager, boolean loader)
+            throws IOException {
+        if (manager == null) {
+            return new FetchResponse(null);
+        }
+
+        // pinned, a reload may retire the map while it is serialized
+        SynonymMapGeneration current = manager.acquireGeneration();
+        if (current == null) {
+            if (loader) {
+                // the fetching node polls the source itself meanwhile
+                throw new IllegalStateException("synonym map [" + request.mapId + "] is " + manager.getLoadState()
+                        + " on the loader node");
+            }
+            return new FetchResponse(null);
+        }
+
+        try {
+            if (current.getVersion() <= request.knownVersion) {
+                return new FetchResponse(null);
+            }
+            return new FetchResponse(serialize(request.mapId, current.getVersion(), current.getSynonymMap()));
+        } finally {
+            current.release();
+        }
+    }
+
+    /**
+     * Takes the dictionary of the fetched map, which is loaded for the other nodes if no index on this node uses it.
+     * Every fetch renews the lease of the dictionary, see {@link #releaseIdleDictionaries()}.
+     *
+     * @return the dictionary, its initial load may still be running
+     */
+    private synchronized SynonymRuleManager leaseDictionary(String mapId) {
+        Lease lease = leases.get(mapId);
+        SynonymRuleManager manager;
+        if (lease == null) {
+            Configuration cfg = findConfiguration(clusterService.state(), mapId);
+            if (cfg == null) {
+                // e.g. the rules_path resolves to another file under the config directory of this node
+                throw new IllegalArgumentException("no synonym filter of the cluster compiles to map [" + mapId
+                        + "] on the loader node");
+            }
+            lease = new Lease(cfg.getDBCheckMaxInterval().nanos() * LEASE_CHECK_INTERVALS);
+            leases.put(mapId, lease);
+            manager = managers.initial(cfg, leaseOwner(mapId));
+        } else {
+            manager = managers.getManager(mapId);
+        }
+        lease.lastFetchNanos = System.nanoTime();
+        return manager;
+    }
+
+    private synchronized boolean isLeased(String mapId) {
+        return leases.containsKey(mapId);
+    }
+
+    /**
+     * Finds the filter settings of the map in the index metadata, which every node holds, so the fetching nodes do
+     * not send them along with the db credentials they contain.
+     *
+     * @return null if no synonym filter of the cluster state compiles to the map on this node
+     */
+    private Configuration findConfiguration(ClusterState state, String mapId) {
+        for (IndexMetaData index : state.metaData()) {
+            for (Settings filter : index.getSettings().getGroups(FILTER_SETTINGS_PREFIX).values()) {
+                if (!DynamicSynonymPlugin.PLUGIN_NAME.equals(filter.get("type"))) {
+                    continue;
+                }
+                try {
+                    Configuration cfg = new Configuration(environment, filter);
+                    if (cfg.getMapId().equals(mapId)) {
+                        return cfg;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // e.g. the rules_path is outside the config directory of this node
+                    logger.debug("Skip synonym filter of index " + index.getIndex(), e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the dictionaries loaded for the other nodes which no node fetched for a few check intervals, e.g.
+     * because their indices were removed or another node became the loader. A dictionary an index on this node uses
+     * stays loaded.
+     */
+    private void releaseIdleDictionaries() {
+        List<String> idle = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            Iterator<Map.Entry<String, Lease>> it = leases.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Lease> entry = it.next();
+                if (now - entry.getValue().lastFetchNanos > entry.getValue().durationNanos) {
+                    it.remove();
+                    idle.add(entry.getKey());
+                }
+            }
+        }
+
+        for (String mapId : idle) {
+            logger.info("Release synonym map [{}], no node fetched it lately.", mapId);
+            managers.release(leaseOwner(mapId));
+        }
+
+        // only the loader serves the maps, and only those of the loaded dictionaries
+        boolean loader = isLocalLoader();
+        serializedMaps.keySet().removeIf(mapId -> !loader || managers.getManager(mapId) == null);
+    }
+
+    /**
+     * @return the key the dictionary loaded for the other nodes is held by in place of an index
+     */
+    private static String leaseOwner(String mapId) {
+        return "_loader_" + mapId;
+    }
+
+    private byte[] serialize(String mapId, long version, SimpleSynonymMap synonymMap) throws IOException {
+        SerializedMap serializedMap = serializedMaps.get(mapId);
+        if (serializedMap != null && serializedMap.version == version) {
+            return serializedMap.bytes;
+        }
+
+        byte[] bytes = SnapshotUtils.toBytes(version, synonymMap);
+        // a fetch of an older generation, which is still pinned, must not replace the newer map
+        serializedMaps.merge(mapId, new SerializedMap(version, bytes),
+                (previous, next) -> previous.version >= next.version ? previous : next);
+        return bytes;
+    }
+
+    private static final class Lease {
+
+        private final long durationNanos;
+
+        /** guarded by the coordinator **/
+        private long lastFetchNanos;
+
+        Lease(long durationNanos) {
+            this.durationNanos = durationNanos;
+        }
+    }
+
+    private static final class SerializedMap {
+
+        private final long version;
+
+        private final byte[] bytes;
+
+        SerializedMap(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    public static class PublishRequest extends TransportRequest {
+
+        private String mapId;
+
+        private long version;
+
+        private byte[] bytes;
+
+        public PublishRequest() {
+        }
+
+        PublishRequest(String mapId, long version, byte[] bytes) {
+            this.mapId = mapId;
+            this.version = version;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            mapId = in.readString();
+            version = in.readLong();
+            bytes = in.readByteArray();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(mapId);
+            out.writeLong(version);
+            out.writeByteArray(bytes);
+        }
+    }
+
+    public static class FetchRequest extends TransportRequest {
+
+        private String mapId;
+
+        private long knownVersion;
+
+        public FetchRequest() {
+        }
+
+        FetchRequest(String mapId, long knownVersion) {
+            this.mapId = mapId;
+            this.knownVersion = knownVersion;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            mapId = in.readString();
+            knownVersion = in.readLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(mapId);
+            out.writeLong(knownVersion);
+        }
+    }
+
+    public static class FetchResponse extends TransportResponse {
+
+        /** null if the loader has no newer map **/
+        private byte[] bytes;
+
+        public FetchResponse() {
+        }
+
+        FetchResponse(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            bytes = in.readBoolean() ? in.readByteArray() : null;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeBoolean(bytes != null);
+            if (bytes != null) {
+                out.writeByteArray(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.reindex;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SimpleSynonymMap;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymChange;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.SpanNearQueryBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the terms of a {@link SynonymChange} into the queries matching the documents whose index time expansions
+ * are stale: the documents holding a changed term or one of its former outputs in one of the fields.
+ *
+ * Single words of a field go into one terms query, every phrase is a span near query. A bool query takes at most
+ * {@link #MAX_CLAUSES} clauses, the default of indices.query.bool.max_clause_count, so many phrases are split over
+ * several queries; a document matching several of them is reindexed once per query.
+ */
+public final class SelectiveReindexPlanner {
+
+    static final int MAX_CLAUSES = 1024;
+
+    private SelectiveReindexPlanner() {
+    }
+
+    /**
+     * @return the queries to run one after the other, empty if no term changed
+     */
+    public static List<QueryBuilder> plan(SynonymChange change, List<String> fields) {
+        if (change.isTruncated()) {
+            throw new IllegalArgumentException("the changed terms from version " + change.getFromVersion()
+                    + " to " + change.getToVersion() + " are not known, reindex all documents instead");
+        }
+        if (fields.isEmpty()) {
+            throw new IllegalArgumentException("no field to search the changed terms in");
+        }
+
+        List<String> words = new ArrayList<>();
+        List<String[]> phrases = new ArrayList<>();
+        for (String term : change.getSearchTerms()) {
+            if (term.indexOf(SimpleSynonymMap.WORD_SEPARATOR) < 0) {
+                words.add(term);
+            } else {
+                phrases.add(term.split(String.valueOf(SimpleSynonymMap.WORD_SEPARATOR)));
+            }
+        }
+
+        List<QueryBuilder> queries = new ArrayList<>();
+        BoolQueryBuilder query = null;
+        int clauses = 0;
+        if (!words.isEmpty()) {
+            query = QueryBuilders.boolQuery();
+            for (String field : fields) {
+                query.should(QueryBuilders.termsQuery(field, words));
+            }
+            clauses = fields.size();
+        }
+        for (String[] phrase : phrases) {
+            if (query == null || clauses + fields.size() > MAX_CLAUSES) {
+                if (query != null) {
+                    queries.add(filter(query));
+                }
+                query = QueryBuilders.boolQuery();
+                clauses = 0;
+            }
+            for (String field : fields) {
+                query.should(phraseQuery(field, phrase));
+            }
+            clauses += fields.size();
+        }
+        if (query != null) {
+            queries.add(filter(query));
+        }
+
+        return queries;
+    }
+
+    private static QueryBuilder filter(BoolQueryBuilder query) {
+        return QueryBuilders.constantScoreQuery(query.minimumShouldMatch(1));
+    }
+
+    private static SpanNearQueryBuilder phraseQuery(String field, String[] words) {
+        SpanNearQueryBuilder query = new SpanNearQueryBuilder(QueryBuilders.spanTermQuery(field, words[0]), 0);
+        for (int i = 1; i < words.length; i++) {
+            query.addClause(QueryBuilders.spanTermQuery(field, words[i]));
+        }
+        return query.inOrder(true);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.reindex;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reindexes the documents matching the queries of a {@link SelectiveReindexPlanner} plan into themselves, so that
+ * they are analyzed with the current synonym map. It works like _update_by_query without a script, which lives in
+ * the reindex module and is not available to plugins: the documents are scrolled in batches and written back with
+ * their version, a document changed in the meantime is counted as a conflict and left alone since its new version
+ * was analyzed with the new map already.
+ *
+ * The task runs asynchronously, the next batch is requested once the previous one is written back and the
+ * throttle delay has passed. The tasks are started and kept for the status API by {@link SelectiveReindexTasks}.
+ */
+public class SelectiveReindexTask implements ToXContent {
+
+    /**
+     * State of a task.
+     */
+    public enum State {
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
+    }
+
+    private static final Logger LOGGER = ESLoggerFactory.getLogger(SelectiveReindexTask.class.getName());
+
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+
+    private final String id = UUIDs.base64UUID();
+
+    private final Client client;
+
+    private final ThreadPool threadPool;
+
+    private final String[] indices;
+
+    private final String mapId;
+
+    private final long fromVersion;
+
+    private final long toVersion;
+
+    private final List<QueryBuilder> queries;
+
+    private final int batchSize;
+
+    /** docs per second, not throttled if not positive **/
+    private final float requestsPerSecond;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile State state = State.RUNNING;
+
+    private volatile String failure;
+
+    private volatile int query;
+
+    private volatile long matched;
+
+    private volatile long updated;
+
+    private volatile long conflicts;
+
+    private volatile long batches;
+
+    private volatile long throttledMillis;
+
+    private volatile long endTime;
+
+    public SelectiveReindexTask(Client client, ThreadPool threadPool, String[] indices, String mapId, long fromVersion,
+                                long toVersion, List<QueryBuilder> queries, int batchSize, float requestsPerSecond) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch_size must be positive but was [" + batchSize + "]");
+        }
+        this.client = client;
+        this.threadPool = threadPool;
+        this.indices = indices;
+        this.mapId = mapId;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.queries = queries;
+        this.batchSize = batchSize;
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void start() {
+        LOGGER.info("Start selective reindex {} of {} for synonym changes from version {} to {}, {} queries.", id,
+                Arrays.toString(indices), fromVersion, toVersion, queries.size());
+        startQuery();
+    }
+
+    /**
+     * Stops the task after the batch in flight.
+     */
+    public void cancel() {
+        if (state == State.RUNNING) {
+            state = State.CANCELLED;
+        }
+    }
+
+    private void startQuery() {
+        if (state != State.RUNNING) {
+            finish(null);
+            return;
+        }
+        if (query >= queries.size()) {
+            state = State.COMPLETED;
+            finish(null);
+            return;
+        }
+
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(queries.get(query))
+                .size(batchSize)
+                .version(true)
+                .sort("_doc")
+                .storedFields(Arrays.asList("_source", "_routing", "_parent"));
+        SearchRequest request = new SearchRequest(indices).scroll(SCROLL_KEEP_ALIVE).source(source);
+        client.search(request, ActionListener.wrap(this::onBatch, this::onFailure));
+    }
+
+    private void onBatch(SearchResponse response) {
+        SearchHit[] hits = response.getHits().getHits();
+        if (hits.length == 0 || state != State.RUNNING) {
+            clearScroll(response.getScrollId());
+            query++;
+            startQuery();
+            return;
+        }
+
+        long batchStart = System.nanoTime();
+        matched += hits.length;
+        BulkRequest bulk = new BulkRequest();
+        for (SearchHit hit : hits) {
+            if (hit.getSourceRef() == null) {
+                clearScroll(response.getScrollId());
+                onFailure(new IllegalStateException("document [" + hit.getIndex() + "][" + hit.getType() + "]["
+                        + hit.getId() + "] has no _source to reindex"));
+                return;
+            }
+
+            IndexRequest index = new IndexRequest(hit.getIndex(), hit.getType(), hit.getId())
+                    .source(hit.getSourceRef())
+                    .version(hit.getVersion())
+                    .versionType(VersionType.INTERNAL);
+            SearchHitField routing = hit.field("_routing");
+            if (routing != null) {
+                index.routing(routing.getValue());
+            }
+            SearchHitField parent = hit.field("_parent");
+            if (parent != null) {
+                index.parent(parent.getValue());
+            }
+            bulk.add(index);
+        }
+
+        client.bulk(bulk, ActionListener.wrap(bulkResponse -> {
+            if (!onBulk(bulkResponse)) {
+                clearScroll(response.getScrollId());
+                return;
+            }
+            batches++;
+            long delayNanos = throttleNanos(hits.length) - (System.nanoTime() - batchStart);
+            if (delayNanos > 0) {
+                throttledMillis += TimeUnit.NANOSECONDS.toMillis(delayNanos);
+                threadPool.schedule(TimeValue.timeValueNanos(delayNanos), ThreadPool.Names.GENERIC,
+                        () -> nextBatch(response.getScrollId()));
+            } else {
+                nextBatch(response.getScrollId());
+            }
+        }, e -> {
+            clearScroll(response.getScrollId());
+            onFailure(e);
+        }));
+    }
+
+    /**
+     * @return false if the task failed
+     */
+    private boolean onBulk(BulkResponse response) {
+        for (BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) {
+                updated++;
+            } else if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                conflicts++;
+            } else {
+                onFailure(item.getFailure().getCause());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long throttleNanos(int docs) {
+        return requestsPerSecond > 0 ? (long) (docs * TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : 0L;
+    }
+
+    private void nextBatch(String scrollId) {
+        if (state != State.RUNNING) {
+            // cancelled during the throttle delay
+            clearScroll(scrollId);
+            finish(null);
+            return;
+        }
+        SearchScrollRequest request = new SearchScrollRequest(scrollId).scroll(SCROLL_KEEP_ALIVE);
+        client.searchScroll(request, ActionListener.wrap(this::onBatch, this::onFailure));
+    }
+
+    private void clearScroll(String scrollId) {
+        if (scrollId == null) {
+            return;
+        }
+
+        ClearScrollRequest request = new ClearScrollRequest();
+        request.addScrollId(scrollId);
+        client.clearScroll(request, new ActionListener<ClearScrollResponse>() {
+            @Override
+            public void onResponse(ClearScrollResponse clearScrollResponse) {
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                LOGGER.debug("Clear scroll of selective reindex failed.", e);
+            }
+        });
+    }
+
+    private void onFailure(Throwable e) {
+        this.failure = e.toString();
+        this.state = State.FAILED;
+        finish(e);
+    }
+
+    private void finish(Throwable e) {
+        this.endTime = System.currentTimeMillis();
+        if (e == null) {
+            LOGGER.info("Selective reindex {} {}: matched {}, updated {}, conflicts {}.", id,
+                    state.name().toLowerCase(Locale.ROOT), matched, updated, conflicts);
+        } else {
+            LOGGER.warn("Selective reindex " + id + " failed!", e);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("id", id);
+        builder.field("indices", indices);
+        builder.field("map_id", mapId);
+        builder.field("from_version", fromVersion);
+        builder.field("to_version", toVersion);
+        builder.field("state", state.name().toLowerCase(Locale.ROOT));
+        builder.field("failure", failure);
+        builder.field("queries", queries.size());
+        builder.field("current_query", Math.min(query, queries.size()));
+        builder.field("matched", matched);
+        builder.field("updated", updated);
+        builder.field("version_conflicts", conflicts);
+        builder.field("batches", batches);
+        builder.field("batch_size", batchSize);
+        builder.field("requests_per_second", requestsPerSecond);
+        builder.timeValueField("throttled_millis", "throttled", throttledMillis);
+        builder.field("start_time", startTime);
+        builder.field("end_time", endTime);
+        return builder;
+    }
+}
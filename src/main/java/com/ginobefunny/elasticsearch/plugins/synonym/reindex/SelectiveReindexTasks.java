@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.reindex;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The selective reindex tasks of a node, one instance per plugin instance like the dictionaries. The running tasks
+ * and the latest finished ones, up to {@link #KEPT_TASKS} tasks in all, are kept for the status API.
+ */
+public class SelectiveReindexTasks {
+
+    private static final int KEPT_TASKS = 20;
+
+    /** id -> task, the oldest first, guarded by this **/
+    private final Map<String, SelectiveReindexTask> tasks = new LinkedHashMap<>();
+
+    /** set once the node shuts down, guarded by this **/
+    private boolean closed = false;
+
+    public synchronized List<SelectiveReindexTask> getTasks() {
+        return new ArrayList<>(tasks.values());
+    }
+
+    /**
+     * @return the task with the id, null if it is unknown or no longer kept
+     */
+    public synchronized SelectiveReindexTask getTask(String id) {
+        return tasks.get(id);
+    }
+
+    /**
+     * Registers and starts the task.
+     *
+     * @throws IllegalStateException if the node shuts down
+     */
+    public void start(SelectiveReindexTask task) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("node is shutting down, selective reindex not started");
+            }
+            tasks.put(task.getId(), task);
+            Iterator<SelectiveReindexTask> it = tasks.values().iterator();
+            while (tasks.size() > KEPT_TASKS && it.hasNext()) {
+                if (it.next().getState() != SelectiveReindexTask.State.RUNNING) {
+                    it.remove();
+                }
+            }
+        }
+        task.start();
+    }
+
+    /**
+     * Cancels the running tasks when the node shuts down, they stop after the batch in flight.
+     */
+    public void cancelAll() {
+        List<SelectiveReindexTask> cancelling;
+        synchronized (this) {
+            closed = true;
+            cancelling = new ArrayList<>(tasks.values());
+        }
+        for (SelectiveReindexTask task : cancelling) {
+            task.cancel();
+        }
+    }
+}
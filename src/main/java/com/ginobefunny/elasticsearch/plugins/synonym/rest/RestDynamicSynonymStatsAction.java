@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.rest;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Returns the synonym metrics of the node handling the request: GET /_dynamic_synonym/stats
+ */
+public class RestDynamicSynonymStatsAction extends BaseRestHandler {
+
+    private final SynonymRuleManagers managers;
+
+    @Inject
+    public RestDynamicSynonymStatsAction(Settings settings, RestController controller, SynonymRuleManagers managers) {
+        super(settings);
+        this.managers = managers;
+        controller.registerHandler(RestRequest.Method.GET, "/_dynamic_synonym/stats", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("node", Node.NODE_NAME_SETTING.get(settings));
+            builder.startObject("memory");
+            builder.byteSizeField("budget_in_bytes", "budget", Configuration.MEMORY_BUDGET_SETTING.get(settings));
+            builder.byteSizeField("used_in_bytes", "used", managers.getLiveBytes());
+            builder.endObject();
+            // a dictionary is loaded by the first index using it
+            builder.startObject("dictionaries");
+            for (SynonymRuleManager manager : managers.getManagers()) {
+                Configuration cfg = manager.getConfiguration();
+                builder.startObject(cfg.getMapId());
+                builder.field("tokenizer", cfg.getTokenizerName());
+                builder.field("ignore_case", cfg.isIgnoreCase());
+                builder.field("normalize", cfg.isNormalize());
+                builder.field("expand", cfg.isExpand());
+                builder.field("state", manager.getLoadState().name().toLowerCase(Locale.ROOT));
+                manager.getMetrics().toXContent(builder, request);
+                builder.endObject();
+            }
+            builder.endObject();
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
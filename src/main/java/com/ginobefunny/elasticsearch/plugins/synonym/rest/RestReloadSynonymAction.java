@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.rest;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.action.ReloadSynonymAction;
+import com.ginobefunny.elasticsearch.plugins.synonym.action.ReloadSynonymRequest;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import java.io.IOException;
+
+/**
+ * Checks the synonym db for new rules right away instead of waiting for the next poll:
+ * POST /_dynamic_synonym/reload on all nodes, POST /_dynamic_synonym/reload/{node_id} on some, e.g. _local.
+ */
+public class RestReloadSynonymAction extends BaseRestHandler {
+
+    @Inject
+    public RestReloadSynonymAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.POST, "/_dynamic_synonym/reload", this);
+        controller.registerHandler(RestRequest.Method.POST, "/_dynamic_synonym/reload/{node_id}", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        String[] nodesIds = Strings.splitStringByCommaToArray(request.param("node_id"));
+        ReloadSynonymRequest reloadRequest = new ReloadSynonymRequest(nodesIds);
+        reloadRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(ReloadSynonymAction.INSTANCE, reloadRequest,
+                new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
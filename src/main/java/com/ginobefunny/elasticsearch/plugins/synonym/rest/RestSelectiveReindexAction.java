@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.rest;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.reindex.SelectiveReindexPlanner;
+import com.ginobefunny.elasticsearch.plugins.synonym.reindex.SelectiveReindexTask;
+import com.ginobefunny.elasticsearch.plugins.synonym.reindex.SelectiveReindexTasks;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymChange;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reindexes the documents affected by synonym changes on the node handling the request:
+ * POST /{index}/_dynamic_synonym/reindex/{map_id}?field={fields}&amp;since={version} starts a task for the changes
+ * after a version (by default the last change), with optional batch_size (default 1000) and requests_per_second
+ * (docs per second, not throttled by default). GET /_dynamic_synonym/reindex and
+ * GET /_dynamic_synonym/reindex/{task_id} return the tasks, POST /_dynamic_synonym/reindex/{task_id}/_cancel
+ * stops one.
+ */
+public class RestSelectiveReindexAction extends BaseRestHandler {
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final SynonymRuleManagers managers;
+
+    private final SelectiveReindexTasks tasks;
+
+    @Inject
+    public RestSelectiveReindexAction(Settings settings, RestController controller, SynonymRuleManagers managers,
+                                      SelectiveReindexTasks tasks) {
+        super(settings);
+        this.managers = managers;
+        this.tasks = tasks;
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/_dynamic_synonym/reindex/{map_id}", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_dynamic_synonym/reindex", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_dynamic_synonym/reindex/{task_id}", this);
+        controller.registerHandler(RestRequest.Method.POST, "/_dynamic_synonym/reindex/{task_id}/_cancel", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        if (request.method() == RestRequest.Method.GET) {
+            String taskId = request.param("task_id");
+            List<SelectiveReindexTask> found = taskId == null ? tasks.getTasks() : Arrays.asList(getTask(taskId));
+            return channel -> {
+                XContentBuilder builder = channel.newBuilder();
+                builder.startObject();
+                builder.startArray("tasks");
+                for (SelectiveReindexTask task : found) {
+                    builder.startObject();
+                    task.toXContent(builder, request);
+                    builder.endObject();
+                }
+                builder.endArray();
+                builder.endObject();
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+            };
+        }
+
+        SelectiveReindexTask task;
+        if (request.hasParam("task_id")) {
+            task = getTask(request.param("task_id"));
+            task.cancel();
+        } else {
+            String mapId = request.param("map_id");
+            SynonymRuleManager manager = managers.getManager(mapId);
+            if (manager == null) {
+                throw new ResourceNotFoundException("synonym dictionary [{}] is not loaded on this node", mapId);
+            }
+
+            SynonymChange change = manager.getChangesSince(request.paramAsLong("since", -1L));
+            List<String> fields = Arrays.asList(Strings.splitStringByCommaToArray(request.param("field")));
+            List<QueryBuilder> queries = SelectiveReindexPlanner.plan(change, fields);
+            task = new SelectiveReindexTask(client, client.threadPool(),
+                    Strings.splitStringByCommaToArray(request.param("index")), mapId, change.getFromVersion(),
+                    change.getToVersion(), queries, request.paramAsInt("batch_size", DEFAULT_BATCH_SIZE),
+                    request.paramAsFloat("requests_per_second", -1f));
+            tasks.start(task);
+        }
+
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.startObject("task");
+            task.toXContent(builder, request);
+            builder.endObject();
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+
+    private SelectiveReindexTask getTask(String taskId) {
+        SelectiveReindexTask task = tasks.getTask(taskId);
+        if (task == null) {
+            throw new ResourceNotFoundException("selective reindex task [{}] not found", taskId);
+        }
+        return task;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.rest;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.reindex.SelectiveReindexPlanner;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymChange;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Returns the terms whose synonyms changed on the node handling the request:
+ * GET /_dynamic_synonym/changes lists the kept version changes of every dictionary,
+ * GET /_dynamic_synonym/changes/{map_id}?since={version}&amp;field={fields} merges the changes after a version
+ * (by default the last change) and returns the queries for _update_by_query on the given fields. Add terms=true
+ * for the changed terms.
+ */
+public class RestSynonymChangesAction extends BaseRestHandler {
+
+    private final SynonymRuleManagers managers;
+
+    @Inject
+    public RestSynonymChangesAction(Settings settings, RestController controller, SynonymRuleManagers managers) {
+        super(settings);
+        this.managers = managers;
+        controller.registerHandler(RestRequest.Method.GET, "/_dynamic_synonym/changes", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_dynamic_synonym/changes/{map_id}", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        String mapId = request.param("map_id");
+        // the params are read by toXContent, which runs after the check for unconsumed params
+        request.paramAsBoolean("terms", false);
+        if (mapId == null) {
+            return channel -> {
+                XContentBuilder builder = channel.newBuilder();
+                builder.startObject();
+                for (SynonymRuleManager manager : managers.getManagers()) {
+                    builder.startObject(manager.getConfiguration().getMapId());
+                    builder.field("loaded_version", manager.getLoadedVersion());
+                    builder.startArray("changes");
+                    for (SynonymChange change : manager.getChanges()) {
+                        builder.startObject();
+                        change.toXContent(builder, request);
+                        builder.endObject();
+                    }
+                    builder.endArray();
+                    builder.endObject();
+                }
+                builder.endObject();
+                channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+            };
+        }
+
+        SynonymRuleManager manager = managers.getManager(mapId);
+        if (manager == null) {
+            throw new ResourceNotFoundException("synonym dictionary [{}] is not loaded on this node", mapId);
+        }
+        SynonymChange change = manager.getChangesSince(request.paramAsLong("since", -1L));
+        List<String> fields = Arrays.asList(Strings.splitStringByCommaToArray(request.param("field")));
+        List<QueryBuilder> queries = fields.isEmpty() || change.isTruncated()
+                ? Collections.<QueryBuilder>emptyList() : SelectiveReindexPlanner.plan(change, fields);
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("map_id", mapId);
+            change.toXContent(builder, request);
+            builder.startArray("queries");
+            for (QueryBuilder query : queries) {
+                query.toXContent(builder, request);
+            }
+            builder.endArray();
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.rest;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymDryRun;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.action.RestBuilderListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles candidate synonym rules into a throwaway map on the node handling the request and reports its size,
+ * compile time, failed rules and changed terms against the live map, without publishing it:
+ * GET /_dynamic_synonym/dry_run/{map_id}?version={version} compiles a version of the rule source (by default the
+ * current one), POST /_dynamic_synonym/dry_run/{map_id} with {"rules": [...], "removed_rules": [...]} compiles the
+ * live map with the rules added and removed, or only the given rules with "replace": true. Add terms=true for the
+ * changed terms.
+ */
+public class RestSynonymDryRunAction extends BaseRestHandler {
+
+    private final SynonymRuleManagers managers;
+
+    @Inject
+    public RestSynonymDryRunAction(Settings settings, RestController controller, SynonymRuleManagers managers) {
+        super(settings);
+        this.managers = managers;
+        controller.registerHandler(RestRequest.Method.GET, "/_dynamic_synonym/dry_run/{map_id}", this);
+        controller.registerHandler(RestRequest.Method.POST, "/_dynamic_synonym/dry_run/{map_id}", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        String mapId = request.param("map_id");
+        SynonymRuleManager manager = managers.getManager(mapId);
+        if (manager == null) {
+            throw new ResourceNotFoundException("synonym dictionary [{}] is not loaded on this node", mapId);
+        }
+
+        long version = request.paramAsLong("version", 0L);
+        request.paramAsBoolean("terms", false);
+        Map<String, Object> body = request.hasContent()
+                ? XContentHelper.convertToMap(request.content(), false).v2() : Collections.<String, Object>emptyMap();
+        List<String> rules = getRules(body, "rules");
+        List<String> removedRules = getRules(body, "removed_rules");
+        boolean replace = Boolean.TRUE.equals(body.get("replace"));
+        if (version > 0 && (rules != null || removedRules != null)) {
+            throw new IllegalArgumentException("either a version or rules can be compiled, not both");
+        }
+
+        return channel -> manager.dryRun(version, rules, removedRules, replace,
+                new RestBuilderListener<SynonymDryRun>(channel) {
+                    @Override
+                    public RestResponse buildResponse(SynonymDryRun result, XContentBuilder builder) throws Exception {
+                        builder.startObject();
+                        builder.field("map_id", mapId);
+                        result.toXContent(builder, request);
+                        builder.endObject();
+                        return new BytesRestResponse(RestStatus.OK, builder);
+                    }
+                });
+    }
+
+    private static List<String> getRules(Map<String, Object> body, String field) {
+        Object value = body.get(field);
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException("[" + field + "] must be an array of rules");
+        }
+
+        List<String> rules = new ArrayList<>();
+        for (Object rule : (List<?>) value) {
+            rules.add(String.valueOf(rule));
+        }
+        return rules;
+    }
+}
@@ -13,26 +13,145 @@
  */
 package com.ginobefunny.elasticsearch.plugins.synonym.service;
 
+import com.ginobefunny.elasticsearch.plugins.synonym.DynamicSynonymPlugin;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Created by ginozhang on 2017/1/12.
  */
 public class Configuration {
 
+    /**
+     * the settings the map key starts with, resolved and defaulted, the filter type and the settings each filter
+     * applies on its own, see DynamicSynonymTokenFilterFactory
+     */
+    private static final Set<String> MAP_KEY_SETTINGS = new HashSet<>(Arrays.asList("type", "rules_path",
+            "rules_url", "db_url", "dictionary", "tokenizer", "ignore_case", "normalize", "expand", "init_policy",
+            "init_timeout", "stacked", "keep_original", "max_expansions"));
+
+    /** heap all synonym maps of the node may take, including the maps being built and the retired ones in use **/
+    public static final Setting<ByteSizeValue> MEMORY_BUDGET_SETTING =
+            Setting.memorySizeSetting("dynamic_synonym.memory_budget", "10%", Setting.Property.NodeScope);
+
     private final boolean ignoreCase;
 
+    private final boolean normalize;
+
     private final boolean expand;
 
     private final String dbUrl;
 
+    private final String dictionary;
+
+    private final Path rulesPath;
+
+    private final String rulesUrl;
+
+    private final String tokenizerName;
+
     private final Analyzer analyzer;
 
-    public Configuration(boolean ignoreCase, boolean expand, Analyzer analyzer, String dbUrl) {
-        this.ignoreCase = ignoreCase;
-        this.expand = expand;
-        this.analyzer = analyzer;
-        this.dbUrl = dbUrl;
+    private final boolean deltaReload;
+
+    private final Path snapshotDir;
+
+    private final boolean offHeap;
+
+    private final boolean prefilter;
+
+    private final int changeHistory;
+
+    private final int changeMaxTerms;
+
+    private final int dbPoolSize;
+
+    private final TimeValue dbConnectTimeout;
+
+    private final TimeValue dbQueryTimeout;
+
+    private final int dbFetchSize;
+
+    private final TimeValue rulesUrlConnectTimeout;
+
+    private final TimeValue rulesUrlReadTimeout;
+
+    private final int buildParallelism;
+
+    private final int buildRulesPerSecond;
+
+    private final TimeValue dbCheckInterval;
+
+    private final TimeValue dbCheckMaxInterval;
+
+    private final TimeValue dbCheckRetryInterval;
+
+    private final long memoryBudget;
+
+    private final Settings settings;
+
+    public Configuration(Environment env, Settings settings) {
+        this.settings = settings;
+        // get the filter setting params
+        this.ignoreCase = settings.getAsBoolean("ignore_case", false);
+        this.normalize = settings.getAsBoolean("normalize", false);
+        this.expand = settings.getAsBoolean("expand", true);
+        this.dbUrl = settings.get("db_url");
+        this.dictionary = settings.get("dictionary");
+        String rulesPathSetting = settings.get("rules_path");
+        this.rulesPath = rulesPathSetting == null ? null : resolveConfigFile(env, rulesPathSetting);
+        this.rulesUrl = settings.get("rules_url");
+        this.tokenizerName = settings.get("tokenizer", "whitespace");
+        this.deltaReload = settings.getAsBoolean("delta_reload", false);
+        this.snapshotDir = settings.getAsBoolean("snapshot", true) && env.dataFiles().length > 0
+                ? env.dataFiles()[0].resolve(DynamicSynonymPlugin.PLUGIN_NAME) : null;
+        this.offHeap = settings.getAsBoolean("off_heap", false);
+        this.prefilter = settings.getAsBoolean("prefilter", true);
+        this.changeHistory = settings.getAsInt("change_history", 0);
+        this.changeMaxTerms = settings.getAsInt("change_max_terms", 100000);
+        this.dbPoolSize = settings.getAsInt("db_pool_size", 2);
+        this.dbConnectTimeout = settings.getAsTime("db_connect_timeout", TimeValue.timeValueSeconds(10));
+        this.dbQueryTimeout = settings.getAsTime("db_query_timeout", TimeValue.timeValueSeconds(60));
+        this.dbFetchSize = settings.getAsInt("db_fetch_size", 1000);
+        this.rulesUrlConnectTimeout = settings.getAsTime("rules_url_connect_timeout", TimeValue.timeValueSeconds(10));
+        this.rulesUrlReadTimeout = settings.getAsTime("rules_url_read_timeout", TimeValue.timeValueSeconds(60));
+        this.buildParallelism = Math.max(1, Math.min(settings.getAsInt("build_parallelism", 1),
+                Runtime.getRuntime().availableProcessors()));
+        this.buildRulesPerSecond = Math.max(0, settings.getAsInt("build_rules_per_second", 0));
+        this.dbCheckInterval = settings.getAsTime("db_check_interval", TimeValue.timeValueSeconds(10));
+        TimeValue maxInterval = settings.getAsTime("db_check_max_interval", TimeValue.timeValueSeconds(60));
+        this.dbCheckMaxInterval = maxInterval.millis() < dbCheckInterval.millis() ? dbCheckInterval : maxInterval;
+        this.dbCheckRetryInterval = settings.getAsTime("db_check_retry_interval", TimeValue.timeValueSeconds(5));
+        this.memoryBudget = MEMORY_BUDGET_SETTING.get(env.settings()).getBytes();
+
+        if ("standand".equalsIgnoreCase(tokenizerName)) {
+            this.analyzer = new StandardAnalyzer();
+        } else if ("keyword".equalsIgnoreCase(tokenizerName)) {
+            this.analyzer = new KeywordAnalyzer();
+        } else if ("simple".equalsIgnoreCase(tokenizerName)) {
+            this.analyzer = new SimpleAnalyzer();
+        } else {
+            this.analyzer = new WhitespaceAnalyzer();
+        }
     }
 
     public Analyzer getAnalyzer() {
@@ -43,6 +162,13 @@ public class Configuration {
         return ignoreCase;
     }
 
+    /**
+     * @return true if compatibility forms like full-width letters are folded to their NFKC form when matching
+     */
+    public boolean isNormalize() {
+        return normalize;
+    }
+
     public boolean isExpand() {
         return expand;
     }
@@ -50,4 +176,189 @@ public class Configuration {
     public String getDBUrl() {
         return dbUrl;
     }
+
+    /**
+     * @return the value of the dictionary column the db rules are selected by, null if the table has no such column
+     */
+    public String getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * The plugin may only read below the config directory of the node, see plugin-security.policy.
+     */
+    private static Path resolveConfigFile(Environment env, String file) {
+        Path configDir = env.configFile().toAbsolutePath().normalize();
+        Path path = configDir.resolve(file).normalize();
+        if (!path.startsWith(configDir)) {
+            throw new IllegalArgumentException("rules_path [" + file + "] must be inside the config directory ["
+                    + configDir + "]");
+        }
+        return path;
+    }
+
+    /**
+     * @return the file to read the rules from, relative paths are resolved against the config directory
+     */
+    public Path getRulesPath() {
+        return rulesPath;
+    }
+
+    /**
+     * @return the http(s) url to download the rules from
+     */
+    public String getRulesUrl() {
+        return rulesUrl;
+    }
+
+    public TimeValue getRulesUrlConnectTimeout() {
+        return rulesUrlConnectTimeout;
+    }
+
+    public TimeValue getRulesUrlReadTimeout() {
+        return rulesUrlReadTimeout;
+    }
+
+    public String getTokenizerName() {
+        return tokenizerName;
+    }
+
+    public boolean isDeltaReload() {
+        return deltaReload;
+    }
+
+    public int getDBPoolSize() {
+        return dbPoolSize;
+    }
+
+    public TimeValue getDBConnectTimeout() {
+        return dbConnectTimeout;
+    }
+
+    public TimeValue getDBQueryTimeout() {
+        return dbQueryTimeout;
+    }
+
+    public int getDBFetchSize() {
+        return dbFetchSize;
+    }
+
+    /**
+     * @return the number of threads parsing and analyzing rules when a map is built
+     */
+    public int getBuildParallelism() {
+        return buildParallelism;
+    }
+
+    /**
+     * @return the number of rules a build takes per second at most, 0 for no limit
+     */
+    public int getBuildRulesPerSecond() {
+        return buildRulesPerSecond;
+    }
+
+    /**
+     * @return the delay between version checks after a change
+     */
+    public TimeValue getDBCheckInterval() {
+        return dbCheckInterval;
+    }
+
+    /**
+     * @return the longest delay between version checks, the delay doubles up to it while nothing changes
+     */
+    public TimeValue getDBCheckMaxInterval() {
+        return dbCheckMaxInterval;
+    }
+
+    /**
+     * @return the delay before the first re-check after a failed check, doubling on repeated failures
+     */
+    public TimeValue getDBCheckRetryInterval() {
+        return dbCheckRetryInterval;
+    }
+
+    /**
+     * @return the directory to keep compiled map snapshots in, null if snapshots are disabled
+     */
+    public Path getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    /**
+     * @return true if the compiled map tables are kept in direct memory instead of the heap
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return true if the compiled map rejects most misses with a bloom filter before probing its tables
+     */
+    public boolean isPrefilter() {
+        return prefilter;
+    }
+
+    /**
+     * @return the number of version changes whose changed terms are kept for selective reindexing, 0 disables it
+     */
+    public int getChangeHistory() {
+        return changeHistory;
+    }
+
+    /**
+     * @return the max number of terms of a kept change, a larger change only tells that it was truncated
+     */
+    public int getChangeMaxTerms() {
+        return changeMaxTerms;
+    }
+
+    /**
+     * @return the node's budget for all synonym maps in bytes, see {@link #MEMORY_BUDGET_SETTING}
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the filter settings the configuration is read from
+     */
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return a key identifying the settings of the dictionary, filters share a dictionary only if all their settings
+     * match, e.g. a filter with off_heap does not get the heap map of another one
+     */
+    public String getMapKey() {
+        String source = rulesPath != null ? "rules_path=" + rulesPath
+                : rulesUrl != null ? "rules_url=" + rulesUrl
+                : "db_url=" + dbUrl + (dictionary != null ? ";dictionary=" + dictionary : "");
+        StringBuilder key = new StringBuilder(source).append(";tokenizer=")
+                .append(tokenizerName.toLowerCase(Locale.ROOT)).append(";ignore_case=").append(ignoreCase)
+                .append(";normalize=").append(normalize).append(";expand=").append(expand);
+        for (Map.Entry<String, String> setting : new TreeMap<>(settings.getAsMap()).entrySet()) {
+            if (!MAP_KEY_SETTINGS.contains(setting.getKey())) {
+                key.append(';').append(setting.getKey()).append('=').append(setting.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return a digest of the map key, the key holds the db url and its credentials which must not leave the node
+     */
+    public String getMapId() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder mapId = new StringBuilder();
+            for (byte b : digest.digest(getMapKey().getBytes(StandardCharsets.UTF_8))) {
+                mapId.append(String.format(Locale.ROOT, "%02x", b));
+            }
+            return mapId.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
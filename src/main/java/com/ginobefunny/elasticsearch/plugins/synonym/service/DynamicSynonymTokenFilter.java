@@ -17,15 +17,31 @@ import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.AttributeSource;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * Created by ginozhang on 2017/1/12.
+ *
+ * Replaces the tokens which have synonyms by the synonyms. Phrase inputs are matched greedily, the longest input
+ * starting at a token wins. Tokens are only buffered while the tokens read so far are a prefix of some input
+ * phrase, so a token without synonyms passes through without being copied. A buffered token is copied into the
+ * attributes of its buffer slot, which are cloned once per slot and reused, so a hit does not allocate.
+ *
+ * By default each synonym token takes a position of its own. With {@code stacked} the synonyms are emitted as a
+ * token graph like lucene's SynonymGraphFilter does: every synonym, and the original tokens with
+ * {@code keepOriginal}, is a path from the position of the first matched token to a common end position, the
+ * position length of the tokens is set accordingly.
+ *
+ * The stream pins the current map generation in {@link #reset()} and releases it in {@link #close()}, so a
+ * document is analyzed with one dictionary even when the rules are reloaded halfway.
  */
-public class DynamicSynonymTokenFilter extends TokenFilter {
+public final class DynamicSynonymTokenFilter extends TokenFilter {
 
     public static final String TYPE_SYNONYM = "SYNONYM";
 
@@ -35,62 +51,457 @@ public class DynamicSynonymTokenFilter extends TokenFilter {
 
     private final OffsetAttribute offset = addAttribute(OffsetAttribute.class);
 
-    private String currentInput = null;
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+
+    private final PositionLengthAttribute posLenAtt = addAttribute(PositionLengthAttribute.class);
+
+    private final SynonymRuleManager manager;
+
+    /** emit the synonyms as a graph over the positions of the matched tokens **/
+    private final boolean stacked;
+
+    /** emit the matched tokens themselves before their synonyms, a synonym equal to them is skipped **/
+    private final boolean keepOriginal;
+
+    /** max number of synonyms emitted for one match, 0 for no limit **/
+    private final int maxExpansions;
+
+    /** the generation used by this stream between reset and close, null if no map is loaded **/
+    private SynonymMapGeneration generation = null;
+
+    /** ring buffer of the tokens read ahead, the slots and their attributes are reused **/
+    private BufferedToken[] buffer = new BufferedToken[] {new BufferedToken()};
+
+    private int bufferHead = 0;
+
+    private int bufferCount = 0;
+
+    private boolean inputExhausted = false;
+
+    /** the terms of the tokens being matched, joined by the phrase separator **/
+    private char[] key = new char[16];
+
+    private int keyLength = 0;
+
+    /** number of input tokens of the match being emitted **/
+    private int matchWords = 0;
 
-    private int startOffset = 0;
+    /** paths of the match: output index or -1 for the original tokens, number of tokens and first own node **/
+    private int pathCount = 0;
 
-    private int endOffset = 0;
+    private int[] pathOutputs = new int[4];
 
-    private List<String> currentWords = null;
+    private int[] pathWords = new int[4];
 
-    private int currentIndex = 0;
+    private int[] pathFirstNodes = new int[4];
 
-    public DynamicSynonymTokenFilter(TokenStream input) {
+    /** the chars of the outputs of the paths **/
+    private char[] pathChars = new char[64];
+
+    private int pathCharsLength = 0;
+
+    private int[] pathCharStarts = new int[4];
+
+    /** cursor over the path tokens: with {@link #stacked} the first tokens of all paths come first **/
+    private boolean emitFirstTokens = false;
+
+    private int emitPath = 0;
+
+    private int emitWord = 0;
+
+    /** output positions, only tracked with {@link #stacked} since a match may take more positions than its input **/
+    private int nextNode = 0;
+
+    private int lastNode = -1;
+
+    private int matchStartNode = 0;
+
+    private int matchEndNode = 0;
+
+    /** counts of this stream, added to the metrics when the stream ends **/
+    private long lookupCount = 0L;
+
+    private long hitCount = 0L;
+
+    private long emittedCount = 0L;
+
+    public DynamicSynonymTokenFilter(TokenStream input, SynonymRuleManager manager) {
+        this(input, manager, false, false, 0);
+    }
+
+    public DynamicSynonymTokenFilter(TokenStream input, SynonymRuleManager manager, boolean stacked,
+                                     boolean keepOriginal, int maxExpansions) {
         super(input);
+        this.manager = manager;
+        this.stacked = stacked;
+        this.keepOriginal = keepOriginal;
+        this.maxExpansions = maxExpansions;
     }
 
     @Override
     public boolean incrementToken() throws IOException {
-        if (currentInput == null) {
-            if (!input.incrementToken()) {
-                return false;
+        while (true) {
+            if (pathCount > 0) {
+                if (nextPathToken()) {
+                    return true;
+                }
+                endMatch();
             }
 
-            currentInput = new String(termAtt.buffer(), 0, termAtt.length());
-            startOffset = offset.startOffset();
-            endOffset = offset.endOffset();
-            currentWords = SynonymRuleManager.getSingleton().getSynonymWords(currentInput);
-            if (currentWords == null || currentWords.isEmpty()) {
-                currentInput = null;
+            SimpleSynonymMap synonymMap = generation == null ? null : generation.getSynonymMap();
+            int entry;
+            if (bufferCount == 0) {
+                if (inputExhausted || !input.incrementToken()) {
+                    inputExhausted = true;
+                    return false;
+                }
+
+                lookupCount++;
+                entry = synonymMap == null ? -1 : synonymMap.lookup(termAtt.buffer(), 0, termAtt.length());
+                if (entry < 0 && (synonymMap == null || synonymMap.getMaxInputWords() == 1
+                        || !synonymMap.isPrefix(termAtt.buffer(), 0, termAtt.length()))) {
+                    // 返回当前的token
+                    updatePosition(posIncAtt.getPositionIncrement());
+                    return true;
+                }
 
-                // 返回当前的token
-                return true;
+                bufferCurrentToken();
+            } else {
+                lookupCount++;
+                BufferedToken first = bufferedToken(0);
+                entry = synonymMap == null ? -1 : synonymMap.lookup(first.term, 0, first.termLength);
+            }
+
+            if (synonymMap != null && match(synonymMap, entry)) {
+                continue;
+            }
+
+            BufferedToken first = bufferedToken(0);
+            first.attributes.copyTo(this);
+            updatePosition(first.posInc);
+            removeBufferedTokens(1);
+            return true;
+        }
+    }
+
+    /**
+     * Finds the longest input starting at the first buffered token, reading ahead while the tokens are a prefix.
+     *
+     * @param entry the entry of the first token alone
+     * @return true if a match was found, its paths are ready to be emitted
+     */
+    private boolean match(SimpleSynonymMap synonymMap, int entry) throws IOException {
+        BufferedToken first = bufferedToken(0);
+        keyLength = 0;
+        appendKey(first.term, first.termLength);
+        int bestEntry = entry;
+        int bestWords = entry < 0 ? 0 : 1;
+        int bestKeyLength = keyLength;
+
+        int maxWords = synonymMap.getMaxInputWords();
+        for (int words = 1; words < maxWords && synonymMap.isPrefix(key, 0, keyLength); words++) {
+            if (bufferCount <= words && !bufferNextToken()) {
+                break;
+            }
+
+            BufferedToken next = bufferedToken(words);
+            if (next.posInc != 1) {
+                // phrases do not span holes or stacked tokens
+                break;
+            }
+
+            key = ArrayUtil.grow(key, keyLength + 1);
+            key[keyLength++] = SimpleSynonymMap.WORD_SEPARATOR;
+            appendKey(next.term, next.termLength);
+            int nextEntry = synonymMap.lookup(key, 0, keyLength);
+            if (nextEntry >= 0) {
+                bestEntry = nextEntry;
+                bestWords = words + 1;
+                bestKeyLength = keyLength;
             }
-            currentIndex = 0;
         }
 
-        if (currentIndex >= currentWords.size()) {
-            currentInput = null;
-            return incrementToken();
+        if (bestWords == 0) {
+            return false;
         }
 
-        String newWords = currentWords.get(currentIndex);
-        currentIndex++;
-        clearAttributes();
-        char[] output = newWords.toCharArray();
-        termAtt.copyBuffer(output, 0, output.length);
-        typeAtt.setType(TYPE_SYNONYM);
-        offset.setOffset(startOffset, endOffset);
+        hitCount++;
+        startMatch(synonymMap, bestEntry, bestWords, bestKeyLength);
         return true;
     }
 
+    private void startMatch(SimpleSynonymMap synonymMap, int entry, int words, int matchKeyLength) {
+        this.matchWords = words;
+
+        pathCount = 0;
+        int charCount = 0;
+        if (keepOriginal) {
+            addPath(-1, words, charCount);
+        }
+
+        int outputCount = synonymMap.getOutputCount(entry);
+        int expansions = 0;
+        for (int i = 0; i < outputCount && (maxExpansions <= 0 || expansions < maxExpansions); i++) {
+            if (keepOriginal && synonymMap.outputEquals(entry, i, key, 0, matchKeyLength)) {
+                continue;
+            }
+
+            int length = synonymMap.getOutputLength(entry, i);
+            pathChars = ArrayUtil.grow(pathChars, charCount + length);
+            synonymMap.copyOutput(entry, i, pathChars, charCount);
+            int outputWords = 1;
+            for (int c = charCount; c < charCount + length; c++) {
+                if (pathChars[c] == SimpleSynonymMap.WORD_SEPARATOR) {
+                    outputWords++;
+                }
+            }
+            addPath(i, outputWords, charCount);
+            charCount += length;
+            expansions++;
+        }
+        pathCharsLength = charCount;
+
+        // every path starts at the node of the first token and ends at a common node, in between each path has
+        // nodes of its own
+        int node = stacked ? nextNode + bufferedToken(0).posInc - 1 : 0;
+        matchStartNode = node;
+        for (int i = 0; i < pathCount; i++) {
+            pathFirstNodes[i] = node + 1;
+            node += pathWords[i] - 1;
+        }
+        matchEndNode = node + 1;
+
+        emitFirstTokens = stacked;
+        emitPath = 0;
+        emitWord = 0;
+        if (pathCount == 0) {
+            // a term without outputs is dropped
+            endMatch();
+        }
+    }
+
+    private void addPath(int output, int words, int charStart) {
+        if (pathCount == pathOutputs.length) {
+            int size = ArrayUtil.oversize(pathCount + 1, Integer.BYTES);
+            pathOutputs = ArrayUtil.grow(pathOutputs, size);
+            pathWords = ArrayUtil.grow(pathWords, size);
+            pathFirstNodes = ArrayUtil.grow(pathFirstNodes, size);
+            pathCharStarts = ArrayUtil.grow(pathCharStarts, size);
+        }
+
+        pathOutputs[pathCount] = output;
+        pathWords[pathCount] = words;
+        pathCharStarts[pathCount] = charStart;
+        pathCount++;
+    }
+
+    /**
+     * Emits the next token of the match's paths.
+     *
+     * @return false if all tokens are emitted
+     */
+    private boolean nextPathToken() {
+        while (emitPath < pathCount) {
+            int path = emitPath;
+            int word = emitWord;
+            if (word >= pathWords[path]) {
+                emitPath++;
+                emitWord = stacked ? 1 : 0;
+                continue;
+            }
+
+            if (emitFirstTokens) {
+                if (++emitPath == pathCount) {
+                    emitFirstTokens = false;
+                    emitPath = 0;
+                    emitWord = 1;
+                }
+            } else {
+                emitWord++;
+            }
+
+            emitPathToken(path, word);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void emitPathToken(int path, int word) {
+        if (pathOutputs[path] < 0) {
+            bufferedToken(word).attributes.copyTo(this);
+        } else {
+            clearAttributes();
+            copyPathWord(path, word);
+            typeAtt.setType(TYPE_SYNONYM);
+            offset.setOffset(bufferedToken(0).startOffset, bufferedToken(matchWords - 1).endOffset);
+            emittedCount++;
+        }
+
+        if (stacked) {
+            int startNode = word == 0 ? matchStartNode : pathFirstNodes[path] + word - 1;
+            int endNode = word == pathWords[path] - 1 ? matchEndNode : pathFirstNodes[path] + word;
+            posIncAtt.setPositionIncrement(startNode - lastNode);
+            posLenAtt.setPositionLength(endNode - startNode);
+            lastNode = startNode;
+        }
+    }
+
+    private void copyPathWord(int path, int word) {
+        int end = path + 1 < pathCount ? pathCharStarts[path + 1] : pathCharsLength;
+        int start = pathCharStarts[path];
+        for (int i = 0; i < word; i++) {
+            while (pathChars[start] != SimpleSynonymMap.WORD_SEPARATOR) {
+                start++;
+            }
+            start++;
+        }
+
+        int length = 0;
+        while (start + length < end && pathChars[start + length] != SimpleSynonymMap.WORD_SEPARATOR) {
+            length++;
+        }
+        termAtt.copyBuffer(pathChars, start, length);
+    }
+
+    private void endMatch() {
+        removeBufferedTokens(matchWords);
+        if (stacked) {
+            nextNode = matchEndNode;
+        }
+        matchWords = 0;
+        pathCount = 0;
+    }
+
+    /**
+     * Moves a token which passes through to its output position, see {@link #nextNode}.
+     */
+    private void updatePosition(int posInc) {
+        if (stacked) {
+            int node = nextNode + posInc - 1;
+            posIncAtt.setPositionIncrement(node - lastNode);
+            lastNode = node;
+            nextNode = node + 1;
+        }
+    }
+
+    private void appendKey(char[] term, int length) {
+        key = ArrayUtil.grow(key, keyLength + length);
+        System.arraycopy(term, 0, key, keyLength, length);
+        keyLength += length;
+    }
+
+    private BufferedToken bufferedToken(int index) {
+        return buffer[(bufferHead + index) % buffer.length];
+    }
+
+    private boolean bufferNextToken() throws IOException {
+        if (inputExhausted || !input.incrementToken()) {
+            inputExhausted = true;
+            return false;
+        }
+
+        bufferCurrentToken();
+        return true;
+    }
+
+    private void bufferCurrentToken() {
+        if (bufferCount == buffer.length) {
+            BufferedToken[] newBuffer = new BufferedToken[buffer.length * 2];
+            for (int i = 0; i < newBuffer.length; i++) {
+                newBuffer[i] = i < bufferCount ? bufferedToken(i) : new BufferedToken();
+            }
+            buffer = newBuffer;
+            bufferHead = 0;
+        }
+
+        BufferedToken token = bufferedToken(bufferCount++);
+        if (token.attributes == null) {
+            token.attributes = cloneAttributes();
+        } else {
+            try {
+                copyTo(token.attributes);
+            } catch (IllegalArgumentException e) {
+                // a filter of the chain added an attribute after the slot was cloned
+                token.attributes = cloneAttributes();
+            }
+        }
+        token.term = ArrayUtil.grow(token.term, termAtt.length());
+        System.arraycopy(termAtt.buffer(), 0, token.term, 0, termAtt.length());
+        token.termLength = termAtt.length();
+        token.posInc = posIncAtt.getPositionIncrement();
+        token.startOffset = offset.startOffset();
+        token.endOffset = offset.endOffset();
+    }
+
+    private void removeBufferedTokens(int count) {
+        bufferHead = (bufferHead + count) % buffer.length;
+        bufferCount -= count;
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        flushMetrics();
+    }
+
     @Override
     public void reset() throws IOException {
         super.reset();
-        currentInput = null;
-        startOffset = 0;
-        endOffset = 0;
-        currentWords = null;
-        currentIndex = 0;
+        flushMetrics();
+        releaseGeneration();
+        generation = manager.acquireGeneration();
+        removeBufferedTokens(bufferCount);
+        bufferHead = 0;
+        inputExhausted = false;
+        keyLength = 0;
+        matchWords = 0;
+        pathCount = 0;
+        nextNode = 0;
+        lastNode = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            releaseGeneration();
+        }
+    }
+
+    private void releaseGeneration() {
+        if (generation != null) {
+            generation.release();
+            generation = null;
+        }
+    }
+
+    private void flushMetrics() {
+        if (lookupCount > 0) {
+            manager.getMetrics().recordTokens(lookupCount, hitCount, emittedCount);
+            lookupCount = 0L;
+            hitCount = 0L;
+            emittedCount = 0L;
+        }
+    }
+
+    /**
+     * A token read ahead while matching a phrase.
+     */
+    private static final class BufferedToken {
+
+        /** a clone of the stream's attributes holding the token, null until the slot is first used **/
+        private AttributeSource attributes;
+
+        private char[] term = new char[16];
+
+        private int termLength;
+
+        private int posInc;
+
+        private int startOffset;
+
+        private int endOffset;
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.OffHeapBlock;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The texts of the available rules of a dictionary by rule id, kept for delta reloads which retract the previous text
+ * of a changed rule. The ids are stored sorted next to the UTF-8 encoded texts in one buffer, which is off the heap
+ * if the map is. The rules changed by deltas are kept apart until they are merged into a new buffer, like the overlay
+ * of a {@link SimpleSynonymMap}.
+ */
+final class RuleTexts {
+
+    /** the changed rules are merged into the buffer once there are more than this many... **/
+    private static final int MIN_COMPACT_SIZE = 1024;
+
+    /** ...and more than 1/8 of the rules in the buffer **/
+    private static final int COMPACT_RATIO = 8;
+
+    /** the owner of the buffer if it is off the heap, shared with the texts of the following deltas **/
+    private final OffHeapBlock block;
+
+    private final ByteBuffer buffer;
+
+    private final LongBuffer ids;
+
+    /** the text of the i-th id is texts[offsets[i], offsets[i + 1]) **/
+    private final IntBuffer offsets;
+
+    private final ByteBuffer texts;
+
+    /** rule id -> text of the rules changed since the buffer was written, null for rules no longer available **/
+    private final Map<Long, String> changed;
+
+    private final int size;
+
+    private RuleTexts(OffHeapBlock block, ByteBuffer buffer, int count, Map<Long, String> changed, int size) {
+        this.block = block;
+        this.buffer = buffer;
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(count * Long.BYTES);
+        this.ids = slice.slice().order(buffer.order()).asLongBuffer();
+        slice.limit(count * Long.BYTES + (count + 1) * Integer.BYTES).position(count * Long.BYTES);
+        this.offsets = slice.slice().order(buffer.order()).asIntBuffer();
+        slice.limit(buffer.capacity()).position(count * Long.BYTES + (count + 1) * Integer.BYTES);
+        this.texts = slice.slice();
+        this.changed = changed;
+        this.size = size;
+    }
+
+    /**
+     * @return the text of the available rule, null if there is none with the id
+     */
+    String get(long id) {
+        if (changed.containsKey(id)) {
+            return changed.get(id);
+        }
+
+        int low = 0;
+        int high = ids.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = ids.get(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return text(mid);
+            }
+        }
+        return null;
+    }
+
+    private String text(int index) {
+        int start = offsets.get(index);
+        byte[] bytes = new byte[offsets.get(index + 1) - start];
+        ByteBuffer text = texts.duplicate();
+        text.position(start);
+        text.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of available rules
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the heap and direct memory used by the texts
+     */
+    long bytesUsed() {
+        long bytes = buffer.capacity();
+        for (String text : changed.values()) {
+            // the entry, the boxed id and the string
+            bytes += 3 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + Long.BYTES
+                    + (text == null ? 0 : RamUsageEstimator.sizeOf(text.toCharArray()));
+        }
+        return bytes;
+    }
+
+    /**
+     * Applies the rules changed by a delta, this instance stays valid until it is released.
+     *
+     * @param rules rules with unique ids, the unavailable ones are removed
+     * @return the texts after the delta, null if they exceed a buffer
+     */
+    RuleTexts apply(List<SynonymRule> rules, boolean offHeap) {
+        Map<Long, String> next = new HashMap<>(changed);
+        int nextSize = size;
+        for (SynonymRule rule : rules) {
+            boolean existed = get(rule.getId()) != null;
+            next.put(rule.getId(), rule.isAvailable() ? rule.getRule() : null);
+            nextSize += (rule.isAvailable() ? 1 : 0) - (existed ? 1 : 0);
+        }
+
+        int count = ids.limit();
+        if (next.size() <= Math.max(MIN_COMPACT_SIZE, count / COMPACT_RATIO)) {
+            if (block != null) {
+                block.retain();
+            }
+            return new RuleTexts(block, buffer, count, next, nextSize);
+        }
+
+        Builder builder = new Builder();
+        for (int i = 0; i < count; i++) {
+            long id = ids.get(i);
+            if (!next.containsKey(id)) {
+                builder.add(id, text(i));
+            }
+        }
+        for (Map.Entry<Long, String> rule : next.entrySet()) {
+            if (rule.getValue() != null) {
+                builder.add(rule.getKey(), rule.getValue());
+            }
+        }
+        return builder.build(offHeap);
+    }
+
+    /**
+     * Frees the buffer if it is off the heap and no later texts share it.
+     */
+    void release() {
+        if (block != null) {
+            block.release();
+        }
+    }
+
+    /**
+     * Collects the texts of a full load, the ids must be unique.
+     */
+    static final class Builder {
+
+        private long[] ids = new long[16];
+
+        /** the text of the i-th id added is bytes[starts[i], starts[i] + lengths[i]) **/
+        private int[] starts = new int[16];
+
+        private int[] lengths = new int[16];
+
+        private byte[] bytes = new byte[1024];
+
+        private int count = 0;
+
+        private long byteCount = 0L;
+
+        /** set once the texts exceed a buffer, the texts are dropped then **/
+        private boolean overflow = false;
+
+        void add(long id, String text) {
+            if (overflow) {
+                return;
+            }
+
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            long headerBytes = (long) (count + 1) * Long.BYTES + (long) (count + 2) * Integer.BYTES;
+            if (byteCount + utf8.length + headerBytes > ArrayUtil.MAX_ARRAY_LENGTH) {
+                overflow = true;
+                ids = null;
+                starts = null;
+                lengths = null;
+                bytes = null;
+                return;
+            }
+
+            if (count == ids.length) {
+                ids = ArrayUtil.grow(ids, count + 1);
+                // the int arrays grow by other steps than the long one
+                starts = ArrayUtil.grow(starts, ids.length);
+                lengths = ArrayUtil.grow(lengths, ids.length);
+            }
+            bytes = ArrayUtil.grow(bytes, (int) byteCount + utf8.length);
+            System.arraycopy(utf8, 0, bytes, (int) byteCount, utf8.length);
+            ids[count] = id;
+            starts[count] = (int) byteCount;
+            lengths[count] = utf8.length;
+            count++;
+            byteCount += utf8.length;
+        }
+
+        /**
+         * @return the texts sorted by id, null if they exceed a buffer
+         */
+        RuleTexts build(boolean offHeap) {
+            if (overflow) {
+                return null;
+            }
+
+            new InPlaceMergeSorter() {
+                @Override
+                protected int compare(int i, int j) {
+                    return Long.compare(ids[i], ids[j]);
+                }
+
+                @Override
+                protected void swap(int i, int j) {
+                    long id = ids[i];
+                    ids[i] = ids[j];
+                    ids[j] = id;
+                    int start = starts[i];
+                    starts[i] = starts[j];
+                    starts[j] = start;
+                    int length = lengths[i];
+                    lengths[i] = lengths[j];
+                    lengths[j] = length;
+                }
+            }.sort(0, count);
+
+            int capacity = count * Long.BYTES + (count + 1) * Integer.BYTES + (int) byteCount;
+            OffHeapBlock block = offHeap ? OffHeapBlock.allocate(capacity) : null;
+            ByteBuffer buffer = block != null ? block.getBuffer() : ByteBuffer.allocate(capacity);
+            ByteBuffer out = buffer.duplicate().order(buffer.order());
+            for (int i = 0; i < count; i++) {
+                out.putLong(ids[i]);
+            }
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                out.putInt(offset);
+                offset += lengths[i];
+            }
+            out.putInt(offset);
+            for (int i = 0; i < count; i++) {
+                out.put(bytes, starts[i], lengths[i]);
+            }
+            return new RuleTexts(block, buffer, count, new HashMap<>(), count);
+        }
+    }
+}
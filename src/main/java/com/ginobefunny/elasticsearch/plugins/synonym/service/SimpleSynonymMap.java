@@ -14,182 +14,1748 @@
 package com.ginobefunny.elasticsearch.plugins.synonym.service;
 
 import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.Monitor;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.OffHeapBlock;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymBuildExecutor;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 
+import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * Created by ginozhang on 2017/1/12.
  * SEE: org.apache.lucene.analysis.synonym.SolrSynonymParser
+ *
+ * The compiled map is immutable: every distinct word is stored once in a shared char pool and input terms are
+ * found through an open-addressing hash table over that pool. The outputs of a rule are stored once as a group of
+ * word ordinals and every input term of the rule points to the group, so an equivalence set of N terms takes O(N)
+ * space instead of N x N. A term which belongs to several groups emits a merged group, which is shared by all terms
+ * belonging to the same groups. Lookups work on a char[] slice, so the analysis path never allocates.
+ * With off_heap the tables are kept in one direct buffer instead of heap arrays, which is freed by
+ * {@link #release()} instead of the garbage collector.
+ * Use {@link Builder} to parse the rules and compile a new map.
+ *
+ * Every term keeps the number of rules that map it to each of its groups, so a rule change can be applied as a
+ * delta: the changed terms are compiled into a small overlay map which shadows this map's tables, and the tables
+ * themselves are shared with the previous generation. Once the overlay grows too big the two are compacted again.
+ *
+ * A rule word analyzed to several tokens is kept as a phrase: its tokens joined by {@link #WORD_SEPARATOR}, like
+ * lucene's SynonymMap does. The proper prefixes of the input phrases are kept in a second hash table, which works
+ * as a trie over token sequences: the filter only looks ahead while the tokens read so far are a prefix.
+ *
+ * Most tokens have no synonym, so each table has a {@link TermPrefilter} which rejects most misses before the table
+ * is probed.
  */
 public class SimpleSynonymMap {
 
     private static final Logger LOGGER = ESLoggerFactory.getLogger(Monitor.class.getName());
 
-    private Map<String, List<String>> ruleMap = new HashMap<String, List<String>>();
+    /** the overlay is compacted into the base tables once it holds more than this many terms... **/
+    static final int MIN_OVERLAY_COMPACT_SIZE = 1024;
+
+    /** ...and more than 1/8 of the base terms **/
+    static final int OVERLAY_COMPACT_RATIO = 8;
+
+    /** separates the tokens of a phrase **/
+    public static final char WORD_SEPARATOR = '\u0000';
+
+    /** estimated heap the builder and the compiled map take per input term, besides its chars... **/
+    private static final int INPUT_TERM_BYTES = 160;
+
+    /** ...per link from an input term to one of its groups... **/
+    private static final int GROUP_LINK_BYTES = 48;
+
+    /** ...and per word of a group, besides its chars **/
+    private static final int GROUP_WORD_BYTES = 56;
+
+    /** number of the largest rules reported when a build exceeds its memory limit **/
+    private static final int REPORTED_RULES = 5;
+
+    /** number of failed rules a builder keeps with their errors **/
+    private static final int REPORTED_FAILURES = 20;
+
+    /** number of rules handed to the parser threads at once in a parallel build **/
+    private static final int PARALLEL_BATCH_SIZE = 4096;
+
+    /** number of rules between the rate checks of a throttled build **/
+    private static final int THROTTLE_CHECK_RULES = 64;
+
+    /** hash slot -> entry ordinal + 1, 0 marks an empty slot; the length is a power of two **/
+    private final int[] slots;
+
+    /** entry ordinal -> word ordinal of the input term **/
+    private final int[] entryWords;
+
+    /** entry ordinal -> group ordinal emitted for the term, -1 if the term has no output **/
+    private final int[] entryOutputGroups;
+
+    /** entry ordinal -> start index in {@link #entryGroups}, has one more slot marking the end of the last entry **/
+    private final int[] entryGroupsOffsets;
+
+    /** group ordinals the rules of each entry map it to, in rule order **/
+    private final int[] entryGroups;
+
+    /** number of rules which map the entry to the group at the same index of {@link #entryGroups} **/
+    private final int[] entryGroupRuleCounts;
+
+    /** group ordinal -> start index in {@link #groupWords}, has one more slot marking the end of the last group **/
+    private final int[] groupOffsets;
+
+    /** word ordinals of all groups **/
+    private final int[] groupWords;
+
+    /** word ordinal -> start index in {@link #wordChars}, has one more slot marking the end of the last word **/
+    private final int[] wordOffsets;
+
+    private final char[] wordChars;
+
+    /** hash slot -> word ordinal + 1 of a proper prefix of an input phrase, 0 marks an empty slot **/
+    private final int[] prefixSlots;
+
+    /** max number of tokens of an input term **/
+    private final int maxInputWords;
+
+    /** the {@link TermFolding} mode the rules were folded with, lookups fold the term the same way **/
+    private final int folding;
+
+    /** char -> folded char, null if terms are not folded **/
+    private final char[] foldTable;
+
+    /** terms changed by deltas since the last compaction, an entry without outputs hides the base entry **/
+    private final SimpleSynonymMap overlay;
+
+    /** the tables in direct memory, the arrays above are null then; shared with the maps of later deltas **/
+    private final OffHeapTables offHeap;
+
+    /** rejects most terms which are not in the term table, null if disabled **/
+    private final TermPrefilter termFilter;
 
-    private final Configuration configuration;
+    /** rejects most terms which are not in the prefix table, null if disabled **/
+    private final TermPrefilter prefixFilter;
 
-    public SimpleSynonymMap(Configuration cfg) {
-        this.configuration = cfg;
+    private final int entryCount;
+
+    private final int groupCount;
+
+    private final int wordCount;
+
+    private final int slotMask;
+
+    private final int prefixSlotMask;
+
+    private SimpleSynonymMap(int[] slots, int[] entryWords, int[] entryOutputGroups, int[] entryGroupsOffsets,
+                             int[] entryGroups, int[] entryGroupRuleCounts, int[] groupOffsets, int[] groupWords,
+                             int[] wordOffsets, char[] wordChars, int[] prefixSlots, int maxInputWords,
+                             int folding, TermPrefilter termFilter, TermPrefilter prefixFilter,
+                             SimpleSynonymMap overlay, OffHeapTables offHeap) {
+        this.slots = slots;
+        this.entryWords = entryWords;
+        this.entryOutputGroups = entryOutputGroups;
+        this.entryGroupsOffsets = entryGroupsOffsets;
+        this.entryGroups = entryGroups;
+        this.entryGroupRuleCounts = entryGroupRuleCounts;
+        this.groupOffsets = groupOffsets;
+        this.groupWords = groupWords;
+        this.wordOffsets = wordOffsets;
+        this.wordChars = wordChars;
+        this.prefixSlots = prefixSlots;
+        this.maxInputWords = maxInputWords;
+        this.folding = folding;
+        this.foldTable = TermFolding.table(folding);
+        this.termFilter = termFilter;
+        this.prefixFilter = prefixFilter;
+        this.overlay = overlay;
+        this.offHeap = offHeap;
+        this.entryCount = offHeap == null ? entryWords.length : offHeap.entryWords.limit();
+        this.groupCount = (offHeap == null ? groupOffsets.length : offHeap.groupOffsets.limit()) - 1;
+        this.wordCount = (offHeap == null ? wordOffsets.length : offHeap.wordOffsets.limit()) - 1;
+        this.slotMask = (offHeap == null ? slots.length : offHeap.slots.limit()) - 1;
+        this.prefixSlotMask = (offHeap == null ? prefixSlots.length : offHeap.prefixSlots.limit()) - 1;
     }
 
-    public void addRule(String rule) {
-        try {
-            addInternal(rule);
-        } catch (Throwable t) {
-            LOGGER.error("Add synonym rule failed. rule: " + rule, t);
+    /**
+     * Keeps the tables on the heap, or copies them to direct memory if {@code offHeap} is set.
+     */
+    private static SimpleSynonymMap create(int[] slots, int[] entryWords, int[] entryOutputGroups,
+                                           int[] entryGroupsOffsets, int[] entryGroups, int[] entryGroupRuleCounts,
+                                           int[] groupOffsets, int[] groupWords, int[] wordOffsets, char[] wordChars,
+                                           int[] prefixSlots, int maxInputWords, int folding,
+                                           TermPrefilter termFilter, TermPrefilter prefixFilter,
+                                           SimpleSynonymMap overlay, boolean offHeap) {
+        if (!offHeap) {
+            return new SimpleSynonymMap(slots, entryWords, entryOutputGroups, entryGroupsOffsets, entryGroups,
+                    entryGroupRuleCounts, groupOffsets, groupWords, wordOffsets, wordChars, prefixSlots,
+                    maxInputWords, folding, termFilter, prefixFilter, overlay, null);
         }
+
+        // the prefilters are small and hot, they stay on the heap
+        OffHeapTables tables = new OffHeapTables(slots, entryWords, entryOutputGroups, entryGroupsOffsets,
+                entryGroups, entryGroupRuleCounts, groupOffsets, groupWords, wordOffsets, wordChars, prefixSlots);
+        return new SimpleSynonymMap(null, null, null, null, null, null, null, null, null, null, null, maxInputWords,
+                folding, termFilter, prefixFilter, overlay, tables);
     }
 
-    private void addInternal(String line) throws IOException {
-        String sides[] = split(line, "=>");
-        if (sides.length > 1) { // explicit mapping
-            if (sides.length != 2) {
-                throw new IllegalArgumentException("more than one explicit mapping specified on the same line");
+    private SimpleSynonymMap withOverlay(SimpleSynonymMap overlay) {
+        if (offHeap != null) {
+            offHeap.block.retain();
+        }
+        return new SimpleSynonymMap(slots, entryWords, entryOutputGroups, entryGroupsOffsets, entryGroups,
+                entryGroupRuleCounts, groupOffsets, groupWords, wordOffsets, wordChars, prefixSlots, maxInputWords,
+                folding, termFilter, prefixFilter, overlay, offHeap);
+    }
+
+    /**
+     * Frees the off-heap tables of this map, unless a map built on top of it by a delta still shares them. The map
+     * must not be used afterwards; maps on the heap are left to the garbage collector.
+     */
+    public void release() {
+        if (offHeap != null) {
+            offHeap.block.release();
+        }
+        if (overlay != null) {
+            overlay.release();
+        }
+    }
+
+    /**
+     * Looks up the input term held in {@code buffer[offset, offset + length)}. The term is folded like the rules
+     * were, see {@link TermFolding}, the buffer is not changed.
+     *
+     * @return the entry ordinal of the term or -1 if the term has no synonym
+     */
+    public int lookup(char[] buffer, int offset, int length) {
+        if (overlay != null) {
+            int entry = overlay.lookup(buffer, offset, length);
+            if (entry >= 0) {
+                // overlay entries are numbered after the base entries
+                return overlay.getOutputCount(entry) == 0 ? -1 : entryCount + entry;
             }
+        }
 
-            List<String> inputList = new ArrayList<>();
-            String inputStrings[] = split(sides[0], ",");
-            for (int i = 0; i < inputStrings.length; i++) {
-                inputList.addAll(analyze(process(inputStrings[i])));
+        return lookupBase(buffer, offset, length);
+    }
+
+    private int lookupBase(char[] buffer, int offset, int length) {
+        if (termFilter != null && !termFilter.mayContain(length, firstChar(buffer, offset, length))) {
+            return -1;
+        }
+
+        int hash = hash(foldTable, buffer, offset, length);
+        if (termFilter != null && !termFilter.mayContain(hash)) {
+            return -1;
+        }
+
+        int mask = slotMask;
+        int slot = hash & mask;
+        int entry;
+        while ((entry = slot(slot)) != 0) {
+            int word = entryWord(entry - 1);
+            if (equals(word, buffer, offset, length)) {
+                return entry - 1;
             }
+            slot = (slot + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return true if the tokens in {@code buffer[offset, offset + length)}, joined by {@link #WORD_SEPARATOR}, are
+     * followed by more tokens in some input phrase
+     */
+    public boolean isPrefix(char[] buffer, int offset, int length) {
+        if (overlay != null && overlay.isPrefix(buffer, offset, length)) {
+            return true;
+        }
+
+        if (prefixFilter != null && !prefixFilter.mayContain(length, firstChar(buffer, offset, length))) {
+            return false;
+        }
+
+        int hash = hash(foldTable, buffer, offset, length);
+        if (prefixFilter != null && !prefixFilter.mayContain(hash)) {
+            return false;
+        }
 
-            List<String> outputList = new ArrayList<>();
-            String outputStrings[] = split(sides[1], ",");
-            for (int i = 0; i < outputStrings.length; i++) {
-                outputList.addAll(analyze(process(outputStrings[i])));
+        int mask = prefixSlotMask;
+        int slot = hash & mask;
+        int word;
+        while ((word = prefixSlot(slot)) != 0) {
+            if (equals(word - 1, buffer, offset, length)) {
+                return true;
             }
+            slot = (slot + 1) & mask;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the max number of tokens of an input term, 1 if there are no phrases
+     */
+    public int getMaxInputWords() {
+        return overlay == null ? maxInputWords : Math.max(maxInputWords, overlay.getMaxInputWords());
+    }
+
+    public int getOutputCount(int entry) {
+        if (entry >= entryCount) {
+            return overlay.getOutputCount(entry - entryCount);
+        }
+
+        int group = entryOutputGroup(entry);
+        return group < 0 ? 0 : groupOffset(group + 1) - groupOffset(group);
+    }
+
+    /**
+     * Copies the {@code index}-th output of the given entry into the term attribute.
+     */
+    public void copyOutput(int entry, int index, CharTermAttribute termAtt) {
+        if (entry >= entryCount) {
+            overlay.copyOutput(entry - entryCount, index, termAtt);
+            return;
+        }
+
+        int word = groupWord(groupOffset(entryOutputGroup(entry)) + index);
+        int start = wordOffset(word);
+        int length = wordOffset(word + 1) - start;
+        copyChars(start, termAtt.resizeBuffer(length), 0, length);
+        termAtt.setLength(length);
+    }
+
+    /**
+     * @return the length of the {@code index}-th output of the given entry, including the separators of a phrase
+     */
+    public int getOutputLength(int entry, int index) {
+        if (entry >= entryCount) {
+            return overlay.getOutputLength(entry - entryCount, index);
+        }
+
+        int word = groupWord(groupOffset(entryOutputGroup(entry)) + index);
+        return wordOffset(word + 1) - wordOffset(word);
+    }
+
+    /**
+     * Copies the {@code index}-th output of the given entry into {@code dest}, which must have room for
+     * {@link #getOutputLength(int, int)} chars.
+     */
+    public void copyOutput(int entry, int index, char[] dest, int offset) {
+        if (entry >= entryCount) {
+            overlay.copyOutput(entry - entryCount, index, dest, offset);
+            return;
+        }
+
+        int word = groupWord(groupOffset(entryOutputGroup(entry)) + index);
+        int start = wordOffset(word);
+        copyChars(start, dest, offset, wordOffset(word + 1) - start);
+    }
+
+    /**
+     * @return true if the {@code index}-th output of the given entry equals the term in
+     * {@code buffer[offset, offset + length)}
+     */
+    public boolean outputEquals(int entry, int index, char[] buffer, int offset, int length) {
+        if (entry >= entryCount) {
+            return overlay.outputEquals(entry - entryCount, index, buffer, offset, length);
+        }
+
+        return equals(groupWord(groupOffset(entryOutputGroup(entry)) + index), buffer, offset, length);
+    }
+
+    public List<String> getSynonymWords(String input) {
+        int entry = lookup(input.toCharArray(), 0, input.length());
+        if (entry < 0) {
+            return null;
+        }
 
-            // these mappings are explicit and never preserve original
-            for (String input : inputList) {
-                for (String output : outputList) {
-                    addToRuleMap(input, output);
+        // the entry tells the table, the overlay is not probed again
+        if (entry >= entryCount) {
+            return overlay.group(overlay.entryOutputGroup(entry - entryCount));
+        }
+
+        return group(entryOutputGroup(entry));
+    }
+
+    /**
+     * Reports the terms whose outputs differ between {@code previous} and this map: added and removed terms and terms
+     * whose output words changed. A map built by a delta on top of {@code previous} shares its tables, only the terms
+     * of both overlays are compared then; otherwise all terms of both maps are.
+     *
+     * @param consumer gets every changed term with its outputs in {@code previous}, empty for an added term, and
+     *                 returns false to stop the diff
+     * @return false if the consumer stopped the diff
+     */
+    public boolean forEachChangedTerm(SimpleSynonymMap previous, BiPredicate<String, List<String>> consumer) {
+        if (sharesTables(previous)) {
+            Set<String> candidates = new HashSet<>();
+            if (overlay != null) {
+                overlay.addTerms(candidates);
+            }
+            if (previous.overlay != null) {
+                previous.overlay.addTerms(candidates);
+            }
+            for (String term : candidates) {
+                if (!reportIfChanged(previous, term, consumer)) {
+                    return false;
                 }
             }
-        } else {
-            List<String> inputList = new ArrayList<>();
-            String inputStrings[] = split(line, ",");
-            for (int i = 0; i < inputStrings.length; i++) {
-                inputList.addAll(analyze(process(inputStrings[i])));
+            return true;
+        }
+
+        return forEachTerm(term -> reportIfChanged(previous, term, consumer))
+                && previous.forEachTerm(term -> lookup(term.toCharArray(), 0, term.length()) >= 0
+                        || consumer.test(term, previous.getSynonymWords(term)));
+    }
+
+    private boolean sharesTables(SimpleSynonymMap other) {
+        return offHeap != null ? offHeap == other.offHeap : slots == other.slots;
+    }
+
+    private boolean reportIfChanged(SimpleSynonymMap previous, String term,
+                                    BiPredicate<String, List<String>> consumer) {
+        char[] chars = term.toCharArray();
+        int entry = lookup(chars, 0, chars.length);
+        int previousEntry = previous.lookup(chars, 0, chars.length);
+        if (previousEntry < 0) {
+            return entry < 0 || consumer.test(term, Collections.<String>emptyList());
+        } else if (entry < 0 || !sameOutputs(entry, previous, previousEntry)) {
+            return consumer.test(term, previous.getSynonymWords(term));
+        }
+        return true;
+    }
+
+    private boolean sameOutputs(int entry, SimpleSynonymMap other, int otherEntry) {
+        int count = getOutputCount(entry);
+        if (count != other.getOutputCount(otherEntry)) {
+            return false;
+        }
+
+        char[] chars = new char[16];
+        for (int i = 0; i < count; i++) {
+            int length = getOutputLength(entry, i);
+            chars = ArrayUtil.grow(chars, length);
+            copyOutput(entry, i, chars, 0);
+            if (!other.outputEquals(otherEntry, i, chars, 0, length)) {
+                return false;
             }
+        }
 
-            if (configuration.isExpand()) {
-                // all pairs
-                for (String input : inputList) {
-                    for (String output : inputList) {
-                        addToRuleMap(input, output);
-                    }
+        return true;
+    }
+
+    /**
+     * Calls the consumer with every term which has outputs in this map, until it returns false.
+     *
+     * @return false if the consumer stopped
+     */
+    private boolean forEachTerm(Predicate<String> consumer) {
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (entryOutputGroup(entry) < 0) {
+                continue;
+            }
+
+            String term = word(entryWord(entry));
+            // the overlay has the current outputs of the terms it holds
+            if ((overlay == null || overlay.lookupBase(term.toCharArray(), 0, term.length()) < 0)
+                    && !consumer.test(term)) {
+                return false;
+            }
+        }
+
+        return overlay == null || overlay.forEachTerm(consumer);
+    }
+
+    private void addTerms(Set<String> terms) {
+        for (int entry = 0; entry < entryCount; entry++) {
+            terms.add(word(entryWord(entry)));
+        }
+    }
+
+    /**
+     * @return the number of input terms in this map, including the terms changed by deltas
+     */
+    public int size() {
+        return entryCount + (overlay == null ? 0 : overlay.size());
+    }
+
+    /**
+     * @return the estimated heap used by this map in bytes
+     */
+    public long ramBytesUsed() {
+        return tablesRamBytesUsed() + (overlay == null ? 0 : overlay.ramBytesUsed());
+    }
+
+    /**
+     * @return the heap used by the tables of this map without the overlay
+     */
+    private long tablesRamBytesUsed() {
+        long bytes = (termFilter == null ? 0 : termFilter.ramBytesUsed())
+                + (prefixFilter == null ? 0 : prefixFilter.ramBytesUsed());
+        if (offHeap != null) {
+            return bytes;
+        }
+
+        return bytes + RamUsageEstimator.sizeOf(slots) + RamUsageEstimator.sizeOf(entryWords)
+                + RamUsageEstimator.sizeOf(entryOutputGroups) + RamUsageEstimator.sizeOf(entryGroupsOffsets)
+                + RamUsageEstimator.sizeOf(entryGroups) + RamUsageEstimator.sizeOf(entryGroupRuleCounts)
+                + RamUsageEstimator.sizeOf(groupOffsets) + RamUsageEstimator.sizeOf(groupWords)
+                + RamUsageEstimator.sizeOf(wordOffsets) + RamUsageEstimator.sizeOf(wordChars)
+                + RamUsageEstimator.sizeOf(prefixSlots);
+    }
+
+    /**
+     * Adds the tables of this map and of its overlay with their heap and direct memory in bytes. A map built by a
+     * delta adds the tables it shares with the previous map under the same key, so they can be counted once.
+     *
+     * @param tables an identity map, the keys are opaque
+     */
+    void collectTables(Map<Object, Long> tables) {
+        tables.put(offHeap != null ? offHeap : slots,
+                tablesRamBytesUsed() + (offHeap == null ? 0L : offHeap.block.capacity()));
+        if (overlay != null) {
+            overlay.collectTables(tables);
+        }
+    }
+
+    /**
+     * @return the direct memory used by this map in bytes
+     */
+    public long offHeapBytesUsed() {
+        return (offHeap == null ? 0L : offHeap.block.capacity())
+                + (overlay == null ? 0 : overlay.offHeapBytesUsed());
+    }
+
+    /**
+     * Writes the compiled tables followed by the overlay tables, if any.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeInts(out, slotMask + 1, this::slot);
+        writeInts(out, entryCount, this::entryWord);
+        writeInts(out, entryCount, this::entryOutputGroup);
+        writeInts(out, entryCount + 1, this::entryGroupsOffset);
+        writeInts(out, entryGroupsOffset(entryCount), this::entryGroup);
+        writeInts(out, entryGroupsOffset(entryCount), this::entryGroupRuleCount);
+        writeInts(out, groupCount + 1, this::groupOffset);
+        writeInts(out, groupOffset(groupCount), this::groupWord);
+        writeInts(out, wordCount + 1, this::wordOffset);
+        out.writeInt(wordOffset(wordCount));
+        for (int i = 0; i < wordOffset(wordCount); i++) {
+            out.writeChar(wordChar(i));
+        }
+        writeInts(out, prefixSlotMask + 1, this::prefixSlot);
+        out.writeInt(maxInputWords);
+        out.writeByte(folding);
+        out.writeBoolean(termFilter != null);
+        if (termFilter != null) {
+            termFilter.writeTo(out);
+            prefixFilter.writeTo(out);
+        }
+
+        out.writeBoolean(overlay != null);
+        if (overlay != null) {
+            overlay.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a map written by {@link #writeTo(DataOutput)}, starting at the buffer's position. The tables are copied
+     * to the heap, or to direct memory if {@code offHeap} is set.
+     */
+    public static SimpleSynonymMap readFrom(ByteBuffer buffer, boolean offHeap) {
+        int[] slots = readInts(buffer);
+        int[] entryWords = readInts(buffer);
+        int[] entryOutputGroups = readInts(buffer);
+        int[] entryGroupsOffsets = readInts(buffer);
+        int[] entryGroups = readInts(buffer);
+        int[] entryGroupRuleCounts = readInts(buffer);
+        int[] groupOffsets = readInts(buffer);
+        int[] groupWords = readInts(buffer);
+        int[] wordOffsets = readInts(buffer);
+        char[] wordChars = new char[buffer.getInt()];
+        buffer.asCharBuffer().get(wordChars);
+        buffer.position(buffer.position() + wordChars.length * Character.BYTES);
+        int[] prefixSlots = readInts(buffer);
+        int maxInputWords = buffer.getInt();
+        int folding = buffer.get();
+        TermPrefilter termFilter = null;
+        TermPrefilter prefixFilter = null;
+        if (buffer.get() != 0) {
+            termFilter = TermPrefilter.readFrom(buffer);
+            prefixFilter = TermPrefilter.readFrom(buffer);
+        }
+        if (Integer.bitCount(slots.length) != 1 || Integer.bitCount(prefixSlots.length) != 1
+                || entryOutputGroups.length != entryWords.length
+                || entryGroupsOffsets.length != entryWords.length + 1
+                || entryGroupRuleCounts.length != entryGroups.length) {
+            throw new IllegalArgumentException("corrupted synonym map");
+        }
+
+        SimpleSynonymMap overlay = buffer.get() != 0 ? readFrom(buffer, offHeap) : null;
+        return create(slots, entryWords, entryOutputGroups, entryGroupsOffsets, entryGroups, entryGroupRuleCounts,
+                groupOffsets, groupWords, wordOffsets, wordChars, prefixSlots, maxInputWords, folding, termFilter,
+                prefixFilter, overlay, offHeap);
+    }
+
+    private static void writeInts(DataOutput out, int length, IntUnaryOperator values) throws IOException {
+        out.writeInt(length);
+        for (int i = 0; i < length; i++) {
+            out.writeInt(values.applyAsInt(i));
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    private int slot(int index) {
+        return offHeap == null ? slots[index] : offHeap.slots.get(index);
+    }
+
+    private int entryWord(int entry) {
+        return offHeap == null ? entryWords[entry] : offHeap.entryWords.get(entry);
+    }
+
+    private int entryOutputGroup(int entry) {
+        return offHeap == null ? entryOutputGroups[entry] : offHeap.entryOutputGroups.get(entry);
+    }
+
+    private int entryGroupsOffset(int entry) {
+        return offHeap == null ? entryGroupsOffsets[entry] : offHeap.entryGroupsOffsets.get(entry);
+    }
+
+    private int entryGroup(int index) {
+        return offHeap == null ? entryGroups[index] : offHeap.entryGroups.get(index);
+    }
+
+    private int entryGroupRuleCount(int index) {
+        return offHeap == null ? entryGroupRuleCounts[index] : offHeap.entryGroupRuleCounts.get(index);
+    }
+
+    private int groupOffset(int group) {
+        return offHeap == null ? groupOffsets[group] : offHeap.groupOffsets.get(group);
+    }
+
+    private int groupWord(int index) {
+        return offHeap == null ? groupWords[index] : offHeap.groupWords.get(index);
+    }
+
+    private int wordOffset(int word) {
+        return offHeap == null ? wordOffsets[word] : offHeap.wordOffsets.get(word);
+    }
+
+    private char wordChar(int index) {
+        return offHeap == null ? wordChars[index] : offHeap.wordChars.get(index);
+    }
+
+    private int prefixSlot(int index) {
+        return offHeap == null ? prefixSlots[index] : offHeap.prefixSlots.get(index);
+    }
+
+    private void copyChars(int start, char[] dest, int offset, int length) {
+        if (offHeap == null) {
+            System.arraycopy(wordChars, start, dest, offset, length);
+            return;
+        }
+
+        // absolute gets, a bulk get would need a duplicate of the buffer
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = offHeap.wordChars.get(start + i);
+        }
+    }
+
+    private String word(int word) {
+        char[] chars = new char[wordOffset(word + 1) - wordOffset(word)];
+        copyChars(wordOffset(word), chars, 0, chars.length);
+        return new String(chars);
+    }
+
+    private List<String> group(int group) {
+        if (group < 0) {
+            return Collections.emptyList();
+        }
+
+        List<String> words = new ArrayList<>(groupOffset(group + 1) - groupOffset(group));
+        for (int i = groupOffset(group); i < groupOffset(group + 1); i++) {
+            words.add(word(groupWord(i)));
+        }
+
+        return words;
+    }
+
+    /**
+     * @return the groups of a term with their rule counts, as currently visible through this map
+     */
+    private Map<List<String>, Integer> getGroupRuleCounts(String input) {
+        Map<List<String>, Integer> groups = new LinkedHashMap<>();
+        char[] chars = input.toCharArray();
+        SimpleSynonymMap table = this;
+        int entry = -1;
+        if (overlay != null) {
+            entry = overlay.lookupBase(chars, 0, chars.length);
+            table = overlay;
+        }
+        if (entry < 0) {
+            entry = lookupBase(chars, 0, chars.length);
+            table = this;
+        }
+
+        if (entry >= 0) {
+            for (int i = table.entryGroupsOffset(entry); i < table.entryGroupsOffset(entry + 1); i++) {
+                groups.put(table.group(table.entryGroup(i)), table.entryGroupRuleCount(i));
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * @return all visible terms with their groups and rule counts, the overlay being merged into the base; used for
+     * overlays, the tables of a whole map are streamed by {@link #compactedRuleCounts(Map)}
+     */
+    private Map<String, Map<List<String>, Integer>> toRuleCounts() {
+        Map<String, Map<List<String>, Integer>> ruleCounts = new HashMap<>();
+        List<List<String>> groups = new ArrayList<>(Collections.nCopies(groupCount, null));
+        for (int entry = 0; entry < entryCount; entry++) {
+            Map<List<String>, Integer> entryRuleCounts = new LinkedHashMap<>();
+            for (int i = entryGroupsOffset(entry); i < entryGroupsOffset(entry + 1); i++) {
+                // materialize every group once, the terms of a group share the list
+                List<String> group = groups.get(entryGroup(i));
+                if (group == null) {
+                    group = group(entryGroup(i));
+                    groups.set(entryGroup(i), group);
                 }
-            } else {
-                // all subsequent inputs map to first one; we also add inputs[0] here
-                // so that we "effectively" (because we remove the original input and
-                // add back a synonym with the same text) change that token's type to
-                // SYNONYM (matching legacy behavior):
-                for (int i = 0; i < inputList.size(); i++) {
-                    addToRuleMap(inputList.get(i), inputList.get(0));
+                entryRuleCounts.put(group, entryGroupRuleCount(i));
+            }
+            ruleCounts.put(word(entryWord(entry)), entryRuleCounts);
+        }
+
+        if (overlay != null) {
+            for (Map.Entry<String, Map<List<String>, Integer>> changed : overlay.toRuleCounts().entrySet()) {
+                if (changed.getValue().isEmpty()) {
+                    ruleCounts.remove(changed.getKey());
+                } else {
+                    ruleCounts.put(changed.getKey(), changed.getValue());
                 }
             }
         }
+
+        return ruleCounts;
+    }
+
+    /**
+     * @param changed the terms replacing the ones of these tables, without groups if they are removed
+     * @return the terms of these tables which are not changed followed by the changed terms which have groups, read
+     * from the tables term by term while the compilation iterates: a compaction does not copy the whole map to the
+     * heap first. The terms of a group share its list, and the group map of a term is reused for the next one.
+     */
+    private RuleCounts compactedRuleCounts(Map<String, Map<List<String>, Integer>> changed) {
+        int size = entryCount;
+        for (Map.Entry<String, Map<List<String>, Integer>> rule : changed.entrySet()) {
+            char[] key = rule.getKey().toCharArray();
+            if (lookupBase(key, 0, key.length) >= 0) {
+                size--;
+            }
+            if (!rule.getValue().isEmpty()) {
+                size++;
+            }
+        }
+
+        int termCount = size;
+        List<List<String>> groups = new ArrayList<>(Collections.nCopies(groupCount, null));
+        return new RuleCounts() {
+            @Override
+            public int size() {
+                return termCount;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Map<List<String>, Integer>>> iterator() {
+                Iterator<Map.Entry<String, Map<List<String>, Integer>>> changedRules = changed.entrySet().iterator();
+                Map<List<String>, Integer> entryRuleCounts = new LinkedHashMap<>();
+                return new Iterator<Map.Entry<String, Map<List<String>, Integer>>>() {
+
+                    private int entry = 0;
+
+                    /** looked up by hasNext, not before, as it reuses the group map of the current term **/
+                    private Map.Entry<String, Map<List<String>, Integer>> next;
+
+                    private Map.Entry<String, Map<List<String>, Integer>> advance() {
+                        for (; entry < entryCount; entry++) {
+                            String term = word(entryWord(entry));
+                            if (changed.containsKey(term)) {
+                                continue;
+                            }
+
+                            entryRuleCounts.clear();
+                            for (int i = entryGroupsOffset(entry); i < entryGroupsOffset(entry + 1); i++) {
+                                List<String> group = groups.get(entryGroup(i));
+                                if (group == null) {
+                                    group = group(entryGroup(i));
+                                    groups.set(entryGroup(i), group);
+                                }
+                                entryRuleCounts.put(group, entryGroupRuleCount(i));
+                            }
+                            entry++;
+                            return new AbstractMap.SimpleImmutableEntry<>(term, entryRuleCounts);
+                        }
+
+                        while (changedRules.hasNext()) {
+                            Map.Entry<String, Map<List<String>, Integer>> rule = changedRules.next();
+                            if (!rule.getValue().isEmpty()) {
+                                return rule;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        if (next == null) {
+                            next = advance();
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Map<List<String>, Integer>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, Map<List<String>, Integer>> current = next;
+                        next = null;
+                        return current;
+                    }
+                };
+            }
+        };
     }
 
-    private Set<String> analyze(String text) throws IOException {
-        Set<String> result = new HashSet<String>();
-        Analyzer analyzer = configuration.getAnalyzer();
-        try (TokenStream ts = analyzer.tokenStream("", text)) {
-            CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
-            PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
-            ts.reset();
-            while (ts.incrementToken()) {
-                int length = termAtt.length();
-                if (length == 0) {
-                    throw new IllegalArgumentException("term: " + text + " analyzed to a zero-length token");
+    /**
+     * The terms a map is compiled from with their groups and rule counts. Every pass of the compilation iterates
+     * them once; the group map of a term may only be used until the next term is taken.
+     */
+    private interface RuleCounts extends Iterable<Map.Entry<String, Map<List<String>, Integer>>> {
+
+        int size();
+
+        static RuleCounts of(Map<String, Map<List<String>, Integer>> ruleCounts) {
+            return new RuleCounts() {
+                @Override
+                public int size() {
+                    return ruleCounts.size();
                 }
-                if (posIncAtt.getPositionIncrement() != 1) {
-                    throw new IllegalArgumentException("term: " + text + " analyzed to a token with posinc != 1");
+
+                @Override
+                public Iterator<Map.Entry<String, Map<List<String>, Integer>>> iterator() {
+                    return ruleCounts.entrySet().iterator();
                 }
+            };
+        }
+    }
 
-                result.add(new String(termAtt.buffer(), 0, termAtt.length()));
+    /**
+     * Compiles terms with their groups and rule counts; terms without groups are kept, they mark deletions
+     * when the result is used as an overlay.
+     */
+    private static SimpleSynonymMap compile(Map<String, Map<List<String>, Integer>> ruleCounts, long memoryLimit,
+                                            Configuration configuration) {
+        return compile(RuleCounts.of(ruleCounts), memoryLimit, configuration);
+    }
+
+    private static SimpleSynonymMap compile(RuleCounts ruleCounts, long memoryLimit, Configuration configuration) {
+        boolean prefilter = configuration.isPrefilter();
+        Map<String, Integer> wordOrds = new HashMap<>();
+        StringBuilder wordChars = new StringBuilder();
+        IntsRefBuilder wordOffsets = new IntsRefBuilder();
+        Map<List<String>, Integer> groupOrdsByIdentity = new IdentityHashMap<>();
+        Map<List<String>, Integer> groupOrds = new HashMap<>();
+        Map<List<Integer>, Integer> mergedGroupOrds = new HashMap<>();
+        IntsRefBuilder groupOffsets = new IntsRefBuilder();
+        IntsRefBuilder groupWords = new IntsRefBuilder();
+        IntsRefBuilder entryGroups = new IntsRefBuilder();
+        IntsRefBuilder entryGroupRuleCounts = new IntsRefBuilder();
+
+        int size = ruleCounts.size();
+        int[] slots = new int[Math.max(2, Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1)];
+        int[] entryWords = new int[size];
+        int[] entryOutputGroups = new int[size];
+        int[] entryGroupsOffsets = new int[size + 1];
+        TermPrefilter.Builder termFilter = prefilter ? new TermPrefilter.Builder(size) : null;
+        int entry = 0;
+        for (Map.Entry<String, Map<List<String>, Integer>> rule : ruleCounts) {
+            entryWords[entry] = internWord(rule.getKey(), wordOrds, wordOffsets, wordChars);
+            entryGroupsOffsets[entry] = entryGroups.length();
+            for (Map.Entry<List<String>, Integer> group : rule.getValue().entrySet()) {
+                Integer ord = groupOrdsByIdentity.get(group.getKey());
+                if (ord == null) {
+                    ord = groupOrds.get(group.getKey());
+                    if (ord == null) {
+                        ord = groupOffsets.length();
+                        groupOrds.put(group.getKey(), ord);
+                        groupOffsets.append(groupWords.length());
+                        for (String word : group.getKey()) {
+                            groupWords.append(internWord(word, wordOrds, wordOffsets, wordChars));
+                        }
+                    }
+                    groupOrdsByIdentity.put(group.getKey(), ord);
+                }
+                entryGroups.append(ord);
+                entryGroupRuleCounts.append(group.getValue());
             }
 
-            ts.end();
-            return result;
+            int groupCount = entryGroups.length() - entryGroupsOffsets[entry];
+            if (groupCount == 0) {
+                entryOutputGroups[entry] = -1;
+            } else if (groupCount == 1) {
+                entryOutputGroups[entry] = entryGroups.intAt(entryGroupsOffsets[entry]);
+            } else {
+                // a term of several groups emits the union of their words, shared by the terms of the same groups
+                List<Integer> merged = new ArrayList<>(groupCount);
+                for (int i = entryGroupsOffsets[entry]; i < entryGroups.length(); i++) {
+                    merged.add(entryGroups.intAt(i));
+                }
+                Integer ord = mergedGroupOrds.get(merged);
+                if (ord == null) {
+                    // the groups were accounted by the builder, their unions are not
+                    if ((long) groupWords.length() * Integer.BYTES + wordChars.length() * 2L > memoryLimit) {
+                        throw new IllegalStateException("synonym map exceeds the memory limit of " + memoryLimit
+                                + " bytes while merging the " + groupCount + " groups of term ["
+                                + rule.getKey() + "]");
+                    }
+                    Set<Integer> words = new LinkedHashSet<>();
+                    for (int group : merged) {
+                        for (int i = groupOffsets.intAt(group); i < (group + 1 < groupOffsets.length()
+                                ? groupOffsets.intAt(group + 1) : groupWords.length()); i++) {
+                            words.add(groupWords.intAt(i));
+                        }
+                    }
+                    ord = groupOffsets.length();
+                    mergedGroupOrds.put(merged, ord);
+                    groupOffsets.append(groupWords.length());
+                    for (int word : words) {
+                        groupWords.append(word);
+                    }
+                }
+                entryOutputGroups[entry] = ord;
+            }
+
+            char[] key = rule.getKey().toCharArray();
+            int hash = hash(null, key, 0, key.length);
+            if (termFilter != null) {
+                termFilter.add(key, 0, key.length, hash);
+            }
+            int slot = hash & (slots.length - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = ++entry;
+        }
+        entryGroupsOffsets[size] = entryGroups.length();
+
+        // every proper prefix of an input phrase is interned once, the filter probes them while it looks ahead
+        Set<Integer> prefixes = new LinkedHashSet<>();
+        int maxInputWords = 1;
+        for (Map.Entry<String, Map<List<String>, Integer>> rule : ruleCounts) {
+            String input = rule.getKey();
+            int words = 1;
+            for (int i = input.indexOf(WORD_SEPARATOR); i >= 0; i = input.indexOf(WORD_SEPARATOR, i + 1)) {
+                prefixes.add(internWord(input.substring(0, i), wordOrds, wordOffsets, wordChars));
+                words++;
+            }
+            maxInputWords = Math.max(maxInputWords, words);
+        }
+        int[] prefixSlots = new int[Math.max(2, Integer.highestOneBit(Math.max(1, prefixes.size()) * 2 - 1) << 1)];
+        groupOffsets.append(groupWords.length());
+        wordOffsets.append(wordChars.length());
+
+        char[] wordCharArray = new char[wordChars.length()];
+        wordChars.getChars(0, wordChars.length(), wordCharArray, 0);
+
+        int[] wordOffsetArray = toArray(wordOffsets);
+        TermPrefilter.Builder prefixFilter = prefilter ? new TermPrefilter.Builder(prefixes.size()) : null;
+        for (int prefix : prefixes) {
+            int start = wordOffsetArray[prefix];
+            int length = wordOffsetArray[prefix + 1] - start;
+            int hash = hash(null, wordCharArray, start, length);
+            if (prefixFilter != null) {
+                prefixFilter.add(wordCharArray, start, length, hash);
+            }
+            int slot = hash & (prefixSlots.length - 1);
+            while (prefixSlots[slot] != 0) {
+                slot = (slot + 1) & (prefixSlots.length - 1);
+            }
+            prefixSlots[slot] = prefix + 1;
+        }
+
+        return create(slots, entryWords, entryOutputGroups, entryGroupsOffsets, toArray(entryGroups),
+                toArray(entryGroupRuleCounts), toArray(groupOffsets), toArray(groupWords), wordOffsetArray,
+                wordCharArray, prefixSlots, maxInputWords, TermFolding.mode(configuration),
+                termFilter == null ? null : termFilter.build(),
+                prefixFilter == null ? null : prefixFilter.build(), null, configuration.isOffHeap());
+    }
+
+    private static int internWord(String word, Map<String, Integer> wordOrds, IntsRefBuilder wordOffsets,
+                                  StringBuilder wordChars) {
+        Integer ord = wordOrds.get(word);
+        if (ord == null) {
+            ord = wordOffsets.length();
+            wordOrds.put(word, ord);
+            wordOffsets.append(wordChars.length());
+            wordChars.append(word);
         }
+
+        return ord;
+    }
+
+    private static int[] toArray(IntsRefBuilder ints) {
+        return Arrays.copyOf(ints.ints(), ints.length());
     }
 
-    private void addToRuleMap(String inputString, String outputString) {
-        List<String> outputs = ruleMap.get(inputString);
-        if (outputs == null) {
-            outputs = new ArrayList<String>();
-            ruleMap.put(inputString, outputs);
+    private boolean equals(int word, char[] buffer, int offset, int length) {
+        int start = wordOffset(word);
+        if (wordOffset(word + 1) - start != length) {
+            return false;
         }
 
-        if (!outputs.contains(outputString)) {
-            outputs.add(outputString);
+        char[] fold = foldTable;
+        if (fold == null) {
+            for (int i = 0; i < length; i++) {
+                if (wordChar(start + i) != buffer[offset + i]) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                if (wordChar(start + i) != fold[buffer[offset + i]]) {
+                    return false;
+                }
+            }
         }
+
+        return true;
     }
 
-    private static String[] split(String s, String separator) {
-        List<String> list = new ArrayList<String>(2);
-        StringBuilder sb = new StringBuilder();
-        int pos = 0, end = s.length();
-        while (pos < end) {
-            if (s.startsWith(separator, pos)) {
-                if (sb.length() > 0) {
-                    list.add(sb.toString());
-                    sb = new StringBuilder();
+    private char firstChar(char[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        return foldTable == null ? buffer[offset] : foldTable[buffer[offset]];
+    }
+
+    /**
+     * @param fold the fold table applied to the chars before hashing, null for compiled words which are folded
+     */
+    private static int hash(char[] fold, char[] buffer, int offset, int length) {
+        int h = 0;
+        if (fold == null) {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                h = 31 * h + buffer[i];
+            }
+        } else {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                h = 31 * h + fold[buffer[i]];
+            }
+        }
+
+        // spread the bits, the table is indexed by the low bits only
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * Parses synonym rules and compiles them into a {@link SimpleSynonymMap}. Not thread safe.
+     */
+    public static class Builder {
+
+        /** input -> output group -> number of rules mapping the input to the group, negative for removed rules **/
+        private final Map<String, Map<List<String>, Integer>> ruleMap = new HashMap<String, Map<List<String>, Integer>>();
+
+        /** interned output groups, so the inputs of the same group share one list **/
+        private final Map<List<String>, List<String>> groups = new HashMap<List<String>, List<String>>();
+
+        private final Configuration configuration;
+
+        /** number of threads parsing and analyzing rules, 1 parses them on the calling thread **/
+        private final int parallelism;
+
+        /** parses the rules if the parallelism is above 1 **/
+        private Executor executor = SynonymBuildExecutor.executor(null);
+
+        /** rules waiting to be parsed in parallel, with their weight **/
+        private List<String> pendingRules = new ArrayList<>();
+
+        private List<Integer> pendingWeights = new ArrayList<>();
+
+        /** the parts of the batch being parsed while the caller keeps adding rules, in the order of the rules **/
+        private List<Future<List<ParsedRule>>> parsingBatch;
+
+        private List<Integer> parsingWeights;
+
+        /** time spent parsing and analyzing rules, summed over the threads **/
+        private final LongAdder parseNanos = new LongAdder();
+
+        private final LongAdder analyzeNanos = new LongAdder();
+
+        /** time the caller spent handing rules to this builder **/
+        private long addNanos = 0L;
+
+        /** the build is aborted once the estimated heap of the builder exceeds the limit **/
+        private long memoryLimit = Long.MAX_VALUE;
+
+        private long estimatedBytes = 0L;
+
+        /** the rules which added the most bytes so far, to tell which rules blew up the build **/
+        private final String[] largestRules = new String[REPORTED_RULES];
+
+        private final long[] largestRuleBytes = new long[REPORTED_RULES];
+
+        /** rules per second the builder takes at most, 0 for no limit **/
+        private final int rulesPerSecond;
+
+        private long addedRules = 0L;
+
+        private long firstAddNanos;
+
+        private long throttleNanos = 0L;
+
+        private volatile boolean cancelled = false;
+
+        private boolean logFailures = true;
+
+        private int failedRuleCount = 0;
+
+        /** the first failed rules and their errors **/
+        private final List<String[]> failedRules = new ArrayList<>();
+
+        public Builder(Configuration cfg) {
+            this.configuration = cfg;
+            this.parallelism = cfg.getBuildParallelism();
+            this.rulesPerSecond = cfg.getBuildRulesPerSecond();
+        }
+
+        public void addRule(String rule) {
+            addRule(rule, 1);
+        }
+
+        /**
+         * Sets the threads parsing the rules if the build parallelism is above 1, see {@link SynonymBuildExecutor}.
+         */
+        public void setExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        /**
+         * Limits the estimated heap of the build, a build exceeding it fails with an {@link IllegalStateException}
+         * naming the largest rules.
+         */
+        public void setMemoryLimit(long memoryLimit) {
+            this.memoryLimit = memoryLimit;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        /**
+         * Turns the error log of rules which cannot be added off, e.g. for a dry run; they are still counted.
+         */
+        public void setLogFailures(boolean logFailures) {
+            this.logFailures = logFailures;
+        }
+
+        /**
+         * @return the number of added rules which could not be parsed or analyzed
+         */
+        public int getFailedRuleCount() {
+            return failedRuleCount;
+        }
+
+        /**
+         * @return the first failed rules as pairs of the rule and its error
+         */
+        public List<String[]> getFailedRules() {
+            return failedRules;
+        }
+
+        /**
+         * Retracts a rule which was added to the map this builder will be applied on, see {@link #build(SimpleSynonymMap)}.
+         */
+        public void removeRule(String rule) {
+            addRule(rule, -1);
+        }
+
+        private void addRule(String rule, int weight) {
+            long start = System.nanoTime();
+            try {
+                throttle();
+                if (parallelism <= 1) {
+                    merge(parse(rule), weight);
+                    return;
                 }
-                pos += separator.length();
-                continue;
+
+                pendingRules.add(rule);
+                pendingWeights.add(weight);
+                if (pendingRules.size() >= PARALLEL_BATCH_SIZE) {
+                    submitPendingRules();
+                }
+            } catch (RuntimeException e) {
+                cancelParsingBatch();
+                throw e;
+            } finally {
+                addNanos += System.nanoTime() - start;
             }
+        }
 
-            char ch = s.charAt(pos++);
-            if (ch == '\\') {
-                sb.append(ch);
-                if (pos >= end) break;  // ERROR, or let it go?
-                ch = s.charAt(pos++);
+        /**
+         * Aborts the build from another thread, the next {@link #addRule(String)}, {@link #removeRule(String)} or
+         * {@link #build()} throws a {@link CancellationException}.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        /**
+         * Fails a cancelled build and sleeps while the rules come in faster than the configured rate, so a large
+         * reload spreads its parsing instead of taking the cpu from searches and indexing in one burst.
+         */
+        private void throttle() {
+            if (cancelled) {
+                throw new CancellationException("Synonym map build cancelled.");
+            }
+            if (rulesPerSecond <= 0) {
+                return;
+            }
+            if (addedRules++ == 0) {
+                firstAddNanos = System.nanoTime();
+                return;
+            }
+            if (addedRules % THROTTLE_CHECK_RULES != 0) {
+                return;
             }
 
-            sb.append(ch);
+            long aheadNanos = addedRules * 1000000000L / rulesPerSecond - (System.nanoTime() - firstAddNanos);
+            if (aheadNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Synonym map build interrupted.");
+                }
+                throttleNanos += aheadNanos;
+            }
         }
 
-        if (sb.length() > 0) {
-            list.add(sb.toString());
+        /**
+         * Time spent parsing rules excluding the analysis, summed over the threads.
+         */
+        public long getParseNanos() {
+            return parseNanos.sum() - analyzeNanos.sum();
         }
 
-        return list.toArray(new String[list.size()]);
-    }
+        /**
+         * Time spent analyzing the words of the rules, summed over the threads.
+         */
+        public long getAnalyzeNanos() {
+            return analyzeNanos.sum();
+        }
 
-    private String process(String input) {
+        /**
+         * Time the caller spent in {@link #addRule(String)} and {@link #removeRule(String)}.
+         */
+        public long getAddNanos() {
+            return addNanos;
+        }
 
-        String inputStr = configuration.isIgnoreCase() ? input.trim().toLowerCase(Locale.getDefault()) : input;
-        if (inputStr.indexOf("\\") >= 0) {
-            StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < inputStr.length(); i++) {
-                char ch = inputStr.charAt(i);
-                if (ch == '\\' && i < inputStr.length() - 1) {
-                    sb.append(inputStr.charAt(++i));
+        /**
+         * Time the caller slept in {@link #addRule(String)} and {@link #removeRule(String)} to stay under the rate.
+         */
+        public long getThrottleNanos() {
+            return throttleNanos;
+        }
+
+        private void submitPendingRules() {
+            mergeParsingBatch();
+            // every thread analyzes with its own token stream, the analyzer reuses them per thread
+            List<String> rules = pendingRules;
+            int partSize = (rules.size() + parallelism - 1) / parallelism;
+            List<Future<List<ParsedRule>>> parts = new ArrayList<>(parallelism);
+            for (int from = 0; from < rules.size(); from += partSize) {
+                List<String> part = rules.subList(from, Math.min(rules.size(), from + partSize));
+                FutureTask<List<ParsedRule>> parsing = new FutureTask<>(
+                        () -> part.stream().map(this::parse).collect(Collectors.toList()));
+                try {
+                    executor.execute(parsing);
+                } catch (EsRejectedExecutionException | RejectedExecutionException e) {
+                    // the pool is busy with the builds of other dictionaries, or the node is shutting down
+                    parsing.run();
+                }
+                parts.add(parsing);
+            }
+            parsingBatch = parts;
+            parsingWeights = pendingWeights;
+            pendingRules = new ArrayList<>();
+            pendingWeights = new ArrayList<>();
+        }
+
+        /**
+         * Merges the parsed batch in the order the rules were added, so the result does not depend on the scheduling.
+         */
+        private void mergeParsingBatch() {
+            if (parsingBatch == null) {
+                return;
+            }
+
+            int rule = 0;
+            try {
+                for (Future<List<ParsedRule>> part : parsingBatch) {
+                    for (ParsedRule parsedRule : part.get()) {
+                        merge(parsedRule, parsingWeights.get(rule++));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while parsing synonym rules.", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to parse synonym rules.", e.getCause());
+            }
+            parsingBatch = null;
+            parsingWeights = null;
+        }
+
+        private void flush() {
+            if (cancelled) {
+                cancelParsingBatch();
+                throw new CancellationException("Synonym map build cancelled.");
+            }
+            if (parallelism <= 1) {
+                return;
+            }
+
+            try {
+                if (!pendingRules.isEmpty()) {
+                    submitPendingRules();
+                }
+                mergeParsingBatch();
+            } catch (RuntimeException e) {
+                cancelParsingBatch();
+                throw e;
+            }
+        }
+
+        /**
+         * Drops the batch being parsed, the parts not started yet are skipped by the pool.
+         */
+        private void cancelParsingBatch() {
+            if (parsingBatch != null) {
+                for (Future<List<ParsedRule>> part : parsingBatch) {
+                    part.cancel(false);
+                }
+                parsingBatch = null;
+                parsingWeights = null;
+            }
+        }
+
+        private void merge(ParsedRule parsedRule, int weight) {
+            if (parsedRule.error != null) {
+                if (weight > 0) {
+                    failedRuleCount++;
+                    if (failedRules.size() < REPORTED_FAILURES) {
+                        failedRules.add(new String[] {parsedRule.rule, parsedRule.error.toString()});
+                    }
+                    if (logFailures) {
+                        LOGGER.error("Add synonym rule failed. rule: " + parsedRule.rule, parsedRule.error);
+                    }
+                } else {
+                    // the rule could not be added in the first place either
+                    LOGGER.debug("Remove synonym rule failed. rule: " + parsedRule.rule, parsedRule.error);
+                }
+                return;
+            }
+
+            if (parsedRule.outputs.isEmpty()) {
+                return;
+            }
+
+            long ruleBytes = 0L;
+            List<String> group = groups.get(parsedRule.outputs);
+            if (group == null) {
+                group = parsedRule.outputs;
+                groups.put(group, group);
+                for (String word : group) {
+                    ruleBytes += GROUP_WORD_BYTES + word.length() * 2L;
+                }
+            }
+
+            for (String input : parsedRule.inputs) {
+                ruleBytes += addToRuleMap(input, group, weight);
+            }
+            account(parsedRule.rule, ruleBytes);
+        }
+
+        private void account(String rule, long ruleBytes) {
+            estimatedBytes += ruleBytes;
+            int smallest = 0;
+            for (int i = 1; i < REPORTED_RULES; i++) {
+                if (largestRuleBytes[i] < largestRuleBytes[smallest]) {
+                    smallest = i;
+                }
+            }
+            if (ruleBytes > largestRuleBytes[smallest]) {
+                largestRules[smallest] = rule;
+                largestRuleBytes[smallest] = ruleBytes;
+            }
+
+            if (estimatedBytes > memoryLimit) {
+                StringBuilder message = new StringBuilder("synonym map exceeds the memory limit of ")
+                        .append(memoryLimit).append(" bytes, largest rules:");
+                Integer[] order = new Integer[REPORTED_RULES];
+                for (int i = 0; i < REPORTED_RULES; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, (a, b) -> Long.compare(largestRuleBytes[b], largestRuleBytes[a]));
+                for (int i : order) {
+                    if (largestRules[i] != null) {
+                        String text = largestRules[i].length() > 100
+                                ? largestRules[i].substring(0, 100) + "..." : largestRules[i];
+                        message.append(" [").append(text).append("] ").append(largestRuleBytes[i]).append(" bytes;");
+                    }
+                }
+                throw new IllegalStateException(message.toString());
+            }
+        }
+
+        /**
+         * Parses and analyzes a rule, safe to call from several threads.
+         */
+        private ParsedRule parse(String rule) {
+            long start = System.nanoTime();
+            try {
+                return parseInternal(rule);
+            } catch (Throwable t) {
+                return new ParsedRule(rule, null, null, t);
+            } finally {
+                parseNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        private ParsedRule parseInternal(String line) throws IOException {
+            String sides[] = split(line, "=>");
+            if (sides.length > 1) { // explicit mapping
+                if (sides.length != 2) {
+                    throw new IllegalArgumentException("more than one explicit mapping specified on the same line");
+                }
+
+                List<String> inputList = new ArrayList<>();
+                String inputStrings[] = split(sides[0], ",");
+                for (int i = 0; i < inputStrings.length; i++) {
+                    addPhrase(inputList, analyze(process(inputStrings[i])));
+                }
+
+                List<String> outputList = new ArrayList<>();
+                String outputStrings[] = split(sides[1], ",");
+                for (int i = 0; i < outputStrings.length; i++) {
+                    addPhrase(outputList, analyze(process(outputStrings[i])));
+                }
+
+                // these mappings are explicit and never preserve original
+                return new ParsedRule(line, distinct(inputList), distinct(outputList), null);
+            } else {
+                List<String> inputList = new ArrayList<>();
+                String inputStrings[] = split(line, ",");
+                for (int i = 0; i < inputStrings.length; i++) {
+                    addPhrase(inputList, analyze(process(inputStrings[i])));
+                }
+
+                inputList = distinct(inputList);
+                if (configuration.isExpand()) {
+                    // all pairs, the inputs being the group
+                    return new ParsedRule(line, inputList, inputList, null);
                 } else {
+                    // all subsequent inputs map to first one; we also add inputs[0] here
+                    // so that we "effectively" (because we remove the original input and
+                    // add back a synonym with the same text) change that token's type to
+                    // SYNONYM (matching legacy behavior):
+                    List<String> outputList = inputList.isEmpty()
+                            ? Collections.<String>emptyList() : Collections.singletonList(inputList.get(0));
+                    return new ParsedRule(line, inputList, outputList, null);
+                }
+            }
+        }
+
+        private static List<String> distinct(List<String> words) {
+            return new ArrayList<>(new LinkedHashSet<>(words));
+        }
+
+        private static void addPhrase(List<String> words, String phrase) {
+            if (phrase.length() > 0) {
+                words.add(phrase);
+            }
+        }
+
+        /**
+         * @return the tokens of the text joined by {@link #WORD_SEPARATOR}, empty if the text has no tokens
+         */
+        private String analyze(String text) throws IOException {
+            long start = System.nanoTime();
+            StringBuilder result = new StringBuilder();
+            Analyzer analyzer = configuration.getAnalyzer();
+            try (TokenStream ts = analyzer.tokenStream("", text)) {
+                CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+                PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+                ts.reset();
+                while (ts.incrementToken()) {
+                    int length = termAtt.length();
+                    if (length == 0) {
+                        throw new IllegalArgumentException("term: " + text + " analyzed to a zero-length token");
+                    }
+                    if (posIncAtt.getPositionIncrement() != 1) {
+                        throw new IllegalArgumentException("term: " + text + " analyzed to a token with posinc != 1");
+                    }
+
+                    if (result.length() > 0) {
+                        result.append(WORD_SEPARATOR);
+                    }
+                    result.append(termAtt.buffer(), 0, length);
+                }
+
+                ts.end();
+                return result.toString();
+            } finally {
+                analyzeNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * @return the estimated bytes added by the link
+         */
+        private long addToRuleMap(String inputString, List<String> group, int ruleWeight) {
+            long bytes = 0L;
+            Map<List<String>, Integer> inputGroups = ruleMap.get(inputString);
+            if (inputGroups == null) {
+                inputGroups = new LinkedHashMap<List<String>, Integer>();
+                ruleMap.put(inputString, inputGroups);
+                bytes += INPUT_TERM_BYTES + inputString.length() * 2L;
+            }
+
+            Integer count = inputGroups.get(group);
+            inputGroups.put(group, count == null ? ruleWeight : count + ruleWeight);
+            return count == null ? bytes + GROUP_LINK_BYTES : bytes;
+        }
+
+        private static String[] split(String s, String separator) {
+            List<String> list = new ArrayList<String>(2);
+            StringBuilder sb = new StringBuilder();
+            int pos = 0, end = s.length();
+            while (pos < end) {
+                if (s.startsWith(separator, pos)) {
+                    if (sb.length() > 0) {
+                        list.add(sb.toString());
+                        sb = new StringBuilder();
+                    }
+                    pos += separator.length();
+                    continue;
+                }
+
+                char ch = s.charAt(pos++);
+                if (ch == '\\') {
                     sb.append(ch);
+                    if (pos >= end) break;  // ERROR, or let it go?
+                    ch = s.charAt(pos++);
                 }
+
+                sb.append(ch);
+            }
+
+            if (sb.length() > 0) {
+                list.add(sb.toString());
+            }
+
+            return list.toArray(new String[list.size()]);
+        }
+
+        private String process(String input) {
+
+            char[] foldTable = TermFolding.table(TermFolding.mode(configuration));
+            String inputStr = foldTable != null ? TermFolding.fold(input.trim(), foldTable) : input;
+            if (inputStr.indexOf("\\") >= 0) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < inputStr.length(); i++) {
+                    char ch = inputStr.charAt(i);
+                    if (ch == '\\' && i < inputStr.length() - 1) {
+                        sb.append(inputStr.charAt(++i));
+                    } else {
+                        sb.append(ch);
+                    }
+                }
+                return sb.toString();
+            }
+            return inputStr;
+        }
+
+        public SimpleSynonymMap build() {
+            flush();
+            return compile(ruleMap, memoryLimit, configuration);
+        }
+
+        /**
+         * Applies the added and removed rules on top of a previous map. Only the changed terms are compiled,
+         * the previous map's tables are shared by the returned map.
+         */
+        public SimpleSynonymMap build(SimpleSynonymMap previous) {
+            if (previous == null) {
+                return build();
+            }
+
+            flush();
+            Map<String, Map<List<String>, Integer>> changed = previous.overlay == null
+                    ? new HashMap<>() : previous.overlay.toRuleCounts();
+            for (Map.Entry<String, Map<List<String>, Integer>> rule : ruleMap.entrySet()) {
+                Map<List<String>, Integer> inputGroups = changed.get(rule.getKey());
+                if (inputGroups == null) {
+                    inputGroups = previous.getGroupRuleCounts(rule.getKey());
+                }
+
+                for (Map.Entry<List<String>, Integer> group : rule.getValue().entrySet()) {
+                    Integer count = inputGroups.get(group.getKey());
+                    int newCount = (count == null ? 0 : count) + group.getValue();
+                    if (newCount > 0) {
+                        inputGroups.put(group.getKey(), newCount);
+                    } else {
+                        inputGroups.remove(group.getKey());
+                    }
+                }
+
+                changed.put(rule.getKey(), inputGroups);
             }
-            return sb.toString();
+
+            if (changed.size() > Math.max(MIN_OVERLAY_COMPACT_SIZE, previous.entryCount / OVERLAY_COMPACT_RATIO)) {
+                // the tables are read term by term, the changed terms are the only ones copied to the heap
+                return compile(previous.compactedRuleCounts(changed), memoryLimit, configuration);
+            }
+
+            return previous.withOverlay(compile(changed, memoryLimit, configuration));
         }
-        return inputStr;
     }
 
-    public List<String> getSynonymWords(String input) {
-        if (!ruleMap.containsKey(input)) {
-            return null;
+    /**
+     * The tables of a map copied to one direct buffer, every table is a view of its part of the buffer.
+     */
+    private static final class OffHeapTables {
+
+        private final OffHeapBlock block;
+
+        private final IntBuffer slots;
+
+        private final IntBuffer entryWords;
+
+        private final IntBuffer entryOutputGroups;
+
+        private final IntBuffer entryGroupsOffsets;
+
+        private final IntBuffer entryGroups;
+
+        private final IntBuffer entryGroupRuleCounts;
+
+        private final IntBuffer groupOffsets;
+
+        private final IntBuffer groupWords;
+
+        private final IntBuffer wordOffsets;
+
+        private final CharBuffer wordChars;
+
+        private final IntBuffer prefixSlots;
+
+        private OffHeapTables(int[] slots, int[] entryWords, int[] entryOutputGroups, int[] entryGroupsOffsets,
+                              int[] entryGroups, int[] entryGroupRuleCounts, int[] groupOffsets, int[] groupWords,
+                              int[] wordOffsets, char[] wordChars, int[] prefixSlots) {
+            long ints = (long) slots.length + entryWords.length + entryOutputGroups.length
+                    + entryGroupsOffsets.length + entryGroups.length + entryGroupRuleCounts.length
+                    + groupOffsets.length + groupWords.length + wordOffsets.length + prefixSlots.length;
+            long bytes = ints * Integer.BYTES + (long) wordChars.length * Character.BYTES;
+            if (bytes > Integer.MAX_VALUE) {
+                throw new IllegalStateException("synonym map of " + bytes + " bytes exceeds an off-heap block");
+            }
+
+            this.block = OffHeapBlock.allocate((int) bytes);
+            ByteBuffer buffer = block.getBuffer();
+            this.slots = putInts(buffer, slots);
+            this.entryWords = putInts(buffer, entryWords);
+            this.entryOutputGroups = putInts(buffer, entryOutputGroups);
+            this.entryGroupsOffsets = putInts(buffer, entryGroupsOffsets);
+            this.entryGroups = putInts(buffer, entryGroups);
+            this.entryGroupRuleCounts = putInts(buffer, entryGroupRuleCounts);
+            this.groupOffsets = putInts(buffer, groupOffsets);
+            this.groupWords = putInts(buffer, groupWords);
+            this.wordOffsets = putInts(buffer, wordOffsets);
+            this.prefixSlots = putInts(buffer, prefixSlots);
+            ByteBuffer slice = buffer.slice().order(buffer.order());
+            this.wordChars = slice.asCharBuffer();
+            this.wordChars.put(wordChars).clear();
+        }
+
+        /**
+         * @return a view of the values copied to the buffer's position, which is moved past them
+         */
+        private static IntBuffer putInts(ByteBuffer buffer, int[] values) {
+            ByteBuffer slice = buffer.slice().order(buffer.order());
+            slice.limit(values.length * Integer.BYTES);
+            buffer.position(buffer.position() + slice.limit());
+            IntBuffer ints = slice.asIntBuffer();
+            ints.put(values).clear();
+            return ints;
         }
+    }
+
+    /**
+     * The analyzed terms of a rule: every input is mapped to the group of outputs.
+     */
+    private static final class ParsedRule {
+
+        private final String rule;
+
+        private final List<String> inputs;
 
-        return ruleMap.get(input);
+        private final List<String> outputs;
+
+        private final Throwable error;
+
+        private ParsedRule(String rule, List<String> inputs, List<String> outputs, Throwable error) {
+            this.rule = rule;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.error = error;
+        }
     }
 
 }
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The terms whose synonyms changed between two loaded versions of a dictionary. Documents analyzed at index time
+ * with the older map keep its expansions of these terms until they are reindexed.
+ */
+public class SynonymChange implements ToXContent {
+
+    private final long fromVersion;
+
+    private final long toVersion;
+
+    private final long timestamp;
+
+    /** input terms whose outputs were added, removed or changed, phrases joined by the word separator **/
+    private final Set<String> terms;
+
+    /** the changed terms and their outputs before the change: the indexed terms of the affected documents **/
+    private final Set<String> searchTerms;
+
+    /** set if not all changed terms are known, only a full reindex covers the change then **/
+    private final boolean truncated;
+
+    private SynonymChange(long fromVersion, long toVersion, long timestamp, Set<String> terms, Set<String> searchTerms,
+                          boolean truncated) {
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.timestamp = timestamp;
+        this.terms = Collections.unmodifiableSet(terms);
+        this.searchTerms = Collections.unmodifiableSet(searchTerms);
+        this.truncated = truncated;
+    }
+
+    /**
+     * Diffs two maps. The diff stops once the change has more than {@code maxTerms} search terms, the change is
+     * truncated then.
+     */
+    static SynonymChange between(SimpleSynonymMap previous, long fromVersion, SimpleSynonymMap map, long toVersion,
+                                 int maxTerms) {
+        Set<String> terms = new TreeSet<>();
+        Set<String> searchTerms = new TreeSet<>();
+        boolean truncated = !map.forEachChangedTerm(previous, (term, previousOutputs) -> {
+            if (searchTerms.size() + previousOutputs.size() + 1 > maxTerms) {
+                return false;
+            }
+            terms.add(term);
+            searchTerms.add(term);
+            searchTerms.addAll(previousOutputs);
+            return true;
+        });
+
+        if (truncated) {
+            terms.clear();
+            searchTerms.clear();
+        }
+        return new SynonymChange(fromVersion, toVersion, System.currentTimeMillis(), terms, searchTerms, truncated);
+    }
+
+    /**
+     * Merges consecutive changes into one change from {@code fromVersion} to {@code toVersion}.
+     *
+     * @param truncated set if the changes do not cover all versions since {@code fromVersion}
+     */
+    static SynonymChange merge(long fromVersion, long toVersion, List<SynonymChange> changes, boolean truncated,
+                               int maxTerms) {
+        Set<String> terms = new TreeSet<>();
+        Set<String> searchTerms = new TreeSet<>();
+        long timestamp = 0L;
+        for (SynonymChange change : changes) {
+            truncated |= change.truncated;
+            if (truncated) {
+                break;
+            }
+            terms.addAll(change.terms);
+            searchTerms.addAll(change.searchTerms);
+            truncated = searchTerms.size() > maxTerms;
+            timestamp = Math.max(timestamp, change.timestamp);
+        }
+
+        if (truncated) {
+            terms.clear();
+            searchTerms.clear();
+        }
+        return new SynonymChange(fromVersion, toVersion, timestamp, terms, searchTerms, truncated);
+    }
+
+    public long getFromVersion() {
+        return fromVersion;
+    }
+
+    public long getToVersion() {
+        return toVersion;
+    }
+
+    public Set<String> getTerms() {
+        return terms;
+    }
+
+    public Set<String> getSearchTerms() {
+        return searchTerms;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Writes the versions and counts, and the terms too if the {@code terms} param is set.
+     */
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("from_version", fromVersion);
+        builder.field("to_version", toVersion);
+        builder.field("timestamp", timestamp);
+        builder.field("truncated", truncated);
+        builder.field("term_count", terms.size());
+        builder.field("search_term_count", searchTerms.size());
+        if (params.paramAsBoolean("terms", false)) {
+            writeTerms(builder, "terms", terms);
+            writeTerms(builder, "search_terms", searchTerms);
+        }
+        return builder;
+    }
+
+    private static void writeTerms(XContentBuilder builder, String name, Set<String> terms) throws IOException {
+        builder.startArray(name);
+        for (String term : terms) {
+            builder.value(term.replace(SimpleSynonymMap.WORD_SEPARATOR, ' '));
+        }
+        builder.endArray();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a candidate rule set would do if it went live: its size, the time and memory its compilation takes, the rules
+ * which fail and the terms whose synonyms change against the live map. See
+ * {@link SynonymRuleManager#dryRun(long, List, List, boolean, org.elasticsearch.action.ActionListener)}.
+ */
+public class SynonymDryRun implements ToXContent {
+
+    long liveVersion;
+
+    /** the version of the compiled rules, -1 for rules given with the request **/
+    long version = -1L;
+
+    /** set if the candidate cannot be compiled, e.g. because it exceeds the memory budget **/
+    String error;
+
+    int ruleCount;
+
+    int failedRuleCount;
+
+    List<String[]> failedRules = Collections.emptyList();
+
+    int termCount;
+
+    int liveTermCount;
+
+    long ramBytes;
+
+    long offHeapBytes;
+
+    long liveRamBytes;
+
+    long liveOffHeapBytes;
+
+    /** the heap the builder estimated while it merged the rules **/
+    long estimatedBytes;
+
+    /** the heap a reload may take next to the live maps **/
+    long memoryLimit;
+
+    long dbNanos;
+
+    long parseNanos;
+
+    long analyzeNanos;
+
+    long buildNanos;
+
+    long totalNanos;
+
+    /** the terms whose synonyms would change, null if the candidate cannot be compiled **/
+    SynonymChange change;
+
+    public boolean isValid() {
+        return error == null;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getFailedRuleCount() {
+        return failedRuleCount;
+    }
+
+    public SynonymChange getChange() {
+        return change;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("valid", isValid());
+        builder.field("error", error);
+        builder.field("live_version", liveVersion);
+        builder.field("version", version);
+        builder.field("rules", ruleCount);
+        builder.field("failed_rules", failedRuleCount);
+        builder.startArray("failures");
+        for (String[] failedRule : failedRules) {
+            builder.startObject();
+            builder.field("rule", failedRule[0]);
+            builder.field("error", failedRule[1]);
+            builder.endObject();
+        }
+        builder.endArray();
+
+        builder.startObject("map");
+        builder.field("terms", termCount);
+        builder.field("live_terms", liveTermCount);
+        builder.byteSizeField("ram_bytes", "ram", ramBytes);
+        builder.byteSizeField("off_heap_bytes", "off_heap", offHeapBytes);
+        builder.byteSizeField("live_ram_bytes", "live_ram", liveRamBytes);
+        builder.byteSizeField("live_off_heap_bytes", "live_off_heap", liveOffHeapBytes);
+        builder.byteSizeField("estimated_bytes", "estimated", estimatedBytes);
+        builder.byteSizeField("memory_limit_bytes", "memory_limit", memoryLimit);
+        builder.endObject();
+
+        builder.startObject("time");
+        builder.timeValueField("db_in_millis", "db", TimeUnit.NANOSECONDS.toMillis(dbNanos), TimeUnit.MILLISECONDS);
+        builder.timeValueField("parse_in_millis", "parse", TimeUnit.NANOSECONDS.toMillis(parseNanos),
+                TimeUnit.MILLISECONDS);
+        builder.timeValueField("analyze_in_millis", "analyze", TimeUnit.NANOSECONDS.toMillis(analyzeNanos),
+                TimeUnit.MILLISECONDS);
+        builder.timeValueField("build_in_millis", "build", TimeUnit.NANOSECONDS.toMillis(buildNanos),
+                TimeUnit.MILLISECONDS);
+        builder.timeValueField("total_in_millis", "total", TimeUnit.NANOSECONDS.toMillis(totalNanos),
+                TimeUnit.MILLISECONDS);
+        builder.endObject();
+
+        if (change != null) {
+            builder.startObject("diff");
+            change.toXContent(builder, params);
+            builder.endObject();
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SnapshotUtils;
+import org.elasticsearch.action.ActionListener;
+
+/**
+ * Shares the compiled maps between the nodes of a cluster, so only one node loads the rules from the db.
+ */
+public interface SynonymMapCoordinator {
+
+    /**
+     * @return true if this node loads the rules from the db and publishes the compiled maps
+     */
+    boolean isLocalLoader();
+
+    /**
+     * Sends a compiled map to the other nodes, without waiting for them.
+     */
+    void publish(String mapId, long version, SimpleSynonymMap synonymMap);
+
+    /**
+     * Takes the map of the configuration's dictionary from the loader, which loads the dictionary itself if none of
+     * its indices uses it. Only the map id is sent, the loader finds the filter settings in its index metadata.
+     *
+     * @param listener gets the loader's map if it is newer than the known version, null otherwise, and fails if the
+     *                 loader cannot serve the map, the caller then polls the source itself
+     */
+    void fetch(Configuration cfg, long knownVersion, ActionListener<SnapshotUtils.Snapshot> listener);
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable compiled map with the rule version it was built from, published by {@link SynonymRuleManager}.
+ *
+ * A generation is reference counted: the manager holds one reference while it is the current generation and every
+ * token stream pins it from {@code reset()} to {@code close()}, so a document is analyzed with one dictionary even
+ * when a reload happens halfway. The generation is retired once the last reference is released, which frees the
+ * off-heap tables of its map right away.
+ *
+ * The heap and direct memory of the live generations of the node's dictionaries is accounted against the memory
+ * budget by {@link SynonymRuleManagers}, see {@link Configuration#MEMORY_BUDGET_SETTING}. A map built by a delta
+ * reload shares the tables of the previous one, which are counted once.
+ */
+public final class SynonymMapGeneration {
+
+    private final SimpleSynonymMap synonymMap;
+
+    private final long version;
+
+    private final SynonymMetrics metrics;
+
+    private final SynonymRuleManagers registry;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    SynonymMapGeneration(SimpleSynonymMap synonymMap, long version, SynonymMetrics metrics,
+                         SynonymRuleManagers registry) {
+        this.synonymMap = synonymMap;
+        this.version = version;
+        this.metrics = metrics;
+        this.registry = registry;
+        registry.retainTables(synonymMap);
+        metrics.recordGenerationCreated();
+    }
+
+    public SimpleSynonymMap getSynonymMap() {
+        return synonymMap;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return false if the generation is already retired, the caller should take the current one again
+     */
+    boolean tryAcquire() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+
+        return true;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            synonymMap.release();
+            registry.releaseTables(synonymMap);
+            metrics.recordGenerationRetired();
+        } else if (count < 0) {
+            throw new IllegalStateException("synonym map generation " + version + " released too often");
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the token filter and timings of the reloads. The filter adds its counts once per token stream,
+ * so the analysis path only touches plain fields.
+ */
+public class SynonymMetrics implements ToXContent {
+
+    private final LongAdder lookups = new LongAdder();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder emittedTokens = new LongAdder();
+
+    private final LongAdder reloads = new LongAdder();
+
+    private final LongAdder reloadFailures = new LongAdder();
+
+    /** map generations which are current or still pinned by a token stream **/
+    private final LongAdder liveGenerations = new LongAdder();
+
+    private final Timer reloadTime = new Timer(true);
+
+    private final Timer dbTime = new Timer(false);
+
+    private final Timer parseTime = new Timer(false);
+
+    private final Timer analyzeTime = new Timer(false);
+
+    private final Timer buildTime = new Timer(false);
+
+    private final Timer swapTime = new Timer(false);
+
+    private final Timer snapshotTime = new Timer(false);
+
+    private final Timer throttleTime = new Timer(false);
+
+    private final Timer pollTime = new Timer(true);
+
+    private volatile long loadedVersion = 0L;
+
+    /** -1 when the map was loaded from a snapshot, which does not keep the rules **/
+    private volatile int ruleCount = -1;
+
+    private volatile int termCount = 0;
+
+    private volatile long ramBytesUsed = 0L;
+
+    private volatile long offHeapBytesUsed = 0L;
+
+    private volatile long lastReloadTimestamp = 0L;
+
+    private volatile String lastReloadError = null;
+
+    private volatile long lastPollTimestamp = 0L;
+
+    private volatile String lastPollError = null;
+
+    public void recordTokens(long lookupCount, long hitCount, long emittedCount) {
+        if (lookupCount > 0) {
+            lookups.add(lookupCount);
+        }
+        if (hitCount > 0) {
+            hits.add(hitCount);
+        }
+        if (emittedCount > 0) {
+            emittedTokens.add(emittedCount);
+        }
+    }
+
+    public void recordMap(SimpleSynonymMap map, int rules, long version) {
+        this.ruleCount = rules;
+        this.termCount = map.size();
+        this.ramBytesUsed = map.ramBytesUsed();
+        this.offHeapBytesUsed = map.offHeapBytesUsed();
+        this.loadedVersion = version;
+        this.lastReloadTimestamp = System.currentTimeMillis();
+    }
+
+    public void recordReload(ReloadTimes times) {
+        reloads.increment();
+        lastReloadError = null;
+        reloadTime.record(times.totalNanos);
+        dbTime.record(times.dbNanos);
+        parseTime.record(times.parseNanos);
+        analyzeTime.record(times.analyzeNanos);
+        buildTime.record(times.buildNanos);
+        swapTime.record(times.swapNanos);
+        snapshotTime.record(times.snapshotNanos);
+        throttleTime.record(times.throttleNanos);
+    }
+
+    public void recordGenerationCreated() {
+        liveGenerations.increment();
+    }
+
+    public void recordGenerationRetired() {
+        liveGenerations.decrement();
+    }
+
+    public void recordReloadFailure(Throwable error) {
+        reloadFailures.increment();
+        lastReloadError = error.toString();
+    }
+
+    public void recordPoll(long nanos, Throwable error) {
+        pollTime.record(nanos);
+        lastPollTimestamp = System.currentTimeMillis();
+        lastPollError = error == null ? null : error.toString();
+    }
+
+    public long getLoadedVersion() {
+        return loadedVersion;
+    }
+
+    /**
+     * @return the generations of the map which are not retired yet: the current one and those streams still pin
+     */
+    public long getLiveGenerations() {
+        return liveGenerations.sum();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long lookupCount = lookups.sum();
+        long hitCount = hits.sum();
+        builder.startObject("filter");
+        builder.field("lookups", lookupCount);
+        builder.field("hits", hitCount);
+        builder.field("misses", lookupCount - hitCount);
+        builder.field("emitted_tokens", emittedTokens.sum());
+        builder.endObject();
+
+        builder.startObject("map");
+        builder.field("version", loadedVersion);
+        builder.field("rules", ruleCount);
+        builder.field("terms", termCount);
+        builder.byteSizeField("ram_bytes", "ram", ramBytesUsed);
+        builder.byteSizeField("off_heap_bytes", "off_heap", offHeapBytesUsed);
+        builder.field("live_generations", liveGenerations.sum());
+        builder.field("last_reload_timestamp", lastReloadTimestamp);
+        builder.endObject();
+
+        builder.startObject("reload");
+        builder.field("count", reloads.sum());
+        builder.field("failures", reloadFailures.sum());
+        builder.field("last_error", lastReloadError);
+        reloadTime.toXContent(builder, "total");
+        dbTime.toXContent(builder, "db");
+        parseTime.toXContent(builder, "parse");
+        analyzeTime.toXContent(builder, "analyze");
+        buildTime.toXContent(builder, "build");
+        swapTime.toXContent(builder, "swap");
+        snapshotTime.toXContent(builder, "snapshot");
+        throttleTime.toXContent(builder, "throttle");
+        builder.endObject();
+
+        builder.startObject("poll");
+        builder.field("last_timestamp", lastPollTimestamp);
+        builder.field("last_error", lastPollError);
+        pollTime.toXContent(builder, "latency");
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Time spent in the phases of one reload. Parse and analyze are summed over the build threads.
+     */
+    public static class ReloadTimes {
+
+        long totalNanos;
+
+        long dbNanos;
+
+        long parseNanos;
+
+        long analyzeNanos;
+
+        long buildNanos;
+
+        long swapNanos;
+
+        long snapshotNanos;
+
+        /** time the builder slept to stay under the rule rate limit **/
+        long throttleNanos;
+    }
+
+    /**
+     * Count, total, max and last of a duration, optionally with a coarse histogram in powers of ten milliseconds.
+     */
+    static class Timer {
+
+        private static final long[] BUCKET_MILLIS = {1, 10, 100, 1000, 10000};
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private final AtomicLongArray buckets;
+
+        private volatile long lastNanos = 0L;
+
+        Timer(boolean histogram) {
+            this.buckets = histogram ? new AtomicLongArray(BUCKET_MILLIS.length + 1) : null;
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            lastNanos = nanos;
+            if (buckets == null) {
+                return;
+            }
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BUCKET_MILLIS.length && millis >= BUCKET_MILLIS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+
+        void toXContent(XContentBuilder builder, String name) throws IOException {
+            builder.startObject(name);
+            builder.field("count", count.sum());
+            builder.timeValueField("total_in_millis", "total", TimeUnit.NANOSECONDS.toMillis(totalNanos.sum()),
+                    TimeUnit.MILLISECONDS);
+            builder.timeValueField("max_in_millis", "max", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()),
+                    TimeUnit.MILLISECONDS);
+            builder.timeValueField("last_in_millis", "last", TimeUnit.NANOSECONDS.toMillis(lastNanos),
+                    TimeUnit.MILLISECONDS);
+            if (buckets != null) {
+                builder.startObject("histogram");
+                for (int i = 0; i < BUCKET_MILLIS.length; i++) {
+                    builder.field("lt_" + BUCKET_MILLIS[i] + "ms", buckets.get(i));
+                }
+                builder.field("ge_" + BUCKET_MILLIS[BUCKET_MILLIS.length - 1] + "ms", buckets.get(BUCKET_MILLIS.length));
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+    }
+}
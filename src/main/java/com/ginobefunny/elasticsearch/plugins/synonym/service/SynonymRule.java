@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+/**
+ * A row of the dynamic_synonym_rule table.
+ */
+public class SynonymRule {
+
+    public static final int STATUS_AVAILABLE = 1;
+
+    private final long id;
+
+    private final String rule;
+
+    private final int status;
+
+    public SynonymRule(long id, String rule, int status) {
+        this.id = id;
+        this.rule = rule;
+        this.status = status;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public boolean isAvailable() {
+        return status == STATUS_AVAILABLE;
+    }
+}
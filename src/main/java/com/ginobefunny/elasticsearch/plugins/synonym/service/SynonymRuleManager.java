@@ -13,107 +13,822 @@
  */
 package com.ginobefunny.elasticsearch.plugins.synonym.service;
 
-import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.JDBCUtils;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.source.SynonymRuleSources;
 import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.Monitor;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SnapshotUtils;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymBuildExecutor;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymTaskExecutor;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 
+import java.io.IOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
 
 /**
  * Created by ginozhang on 2017/1/12.
  */
 public class SynonymRuleManager {
 
+    /**
+     * State of the initial load of a dictionary.
+     */
+    public enum LoadState {
+        /** the initial load is running in the background, the filters pass the tokens through **/
+        LOADING,
+        /** a map is loaded **/
+        LOADED,
+        /** the initial load found no map, the monitor keeps retrying **/
+        FAILED
+    }
+
     private static final Logger LOGGER = ESLoggerFactory.getLogger(Monitor.class.getName());
 
-    private static final int DB_CHECK_URL = 60;
+    /** the dictionaries of the node this one belongs to **/
+    private final SynonymRuleManagers registry;
+
+    private final Configuration configuration;
+
+    private final SynonymRuleSource source;
+
+    /** the current map, swapped by the dictionary's tasks and pinned by the token streams **/
+    private final AtomicReference<SynonymMapGeneration> generation = new AtomicReference<>();
+
+    /** the texts of the loaded available rules, only kept for delta reloads **/
+    private RuleTexts ruleTexts;
+
+    private final SynonymMetrics metrics = new SynonymMetrics();
+
+    /** the terms changed by the last version changes, oldest first, guarded by itself **/
+    private final Deque<SynonymChange> changes = new ArrayDeque<>();
+
+    /** runs the load, the checks and the reloads of this dictionary one at a time **/
+    private final SynonymTaskExecutor tasks;
+
+    /** created by the initial load, checks before it run after the load **/
+    private volatile Monitor monitor;
+
+    /** the builder of the running reload, cancelled when the dictionary is closed **/
+    private volatile SimpleSynonymMap.Builder building;
+
+    private volatile boolean closing = false;
+
+    /** set by the last task of a closed dictionary, tasks still queued behind it publish nothing **/
+    private volatile boolean closed = false;
+
+    private volatile LoadState loadState = LoadState.LOADING;
+
+    private final CountDownLatch initialLoad = new CountDownLatch(1);
+
+    /** run once the initial load completed, null after that, guarded by the manager **/
+    private List<Runnable> initialLoadListeners = new ArrayList<>();
+
+    /** the indices using this dictionary, guarded by the registry **/
+    final Set<String> indices = new HashSet<>();
+
+    /** the close of the dictionary once no index uses it, see {@link SynonymRuleManagers#release(String)} **/
+    ScheduledFuture<?> pendingClose;
+
+    SynonymRuleManager(SynonymRuleManagers registry, Configuration cfg) {
+        this.registry = registry;
+        this.configuration = cfg;
+        this.tasks = new SynonymTaskExecutor(registry.getThreadPool());
+        this.source = SynonymRuleSources.create(cfg, this::isFollower, registry.getThreadPool());
+    }
+
+    /**
+     * Loads the dictionary in the background, see {@link #getLoadState()}.
+     */
+    void start() {
+        tasks.execute(this::load);
+    }
 
-    private static final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1, new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "monitor-thread");
+    private void load() {
+        // serve the local snapshot right away, the monitor catches up with the db in the background
+        long loadedMaxVersion = loadSnapshot();
+        if (loadedMaxVersion <= 0 && isFollower()) {
+            // the dictionary's thread is free while the loader answers, the load goes on in the callback
+            fetchSynonymMap(this::completeLoad);
+            return;
+        }
+        completeLoad(loadedMaxVersion);
+    }
+
+    private void completeLoad(long loadedMaxVersion) {
+        if (this.closed) {
+            // the dictionary closed while the fetch of a follower ran
+            completeInitialLoad(LoadState.FAILED);
+            return;
+        }
+        // the db is the fallback when the loader is not available yet
+        if (loadedMaxVersion <= 0) {
+            loadedMaxVersion = loadSynonymRule();
+            if (loadedMaxVersion > 0) {
+                tasks.execute(() -> {
+                    // a later reload may have retired the loaded map by now
+                    SynonymMapGeneration current = acquireGeneration();
+                    if (current != null) {
+                        try {
+                            saveSnapshot(current.getSynonymMap(), current.getVersion());
+                        } finally {
+                            current.release();
+                        }
+                    }
+                });
+            }
+        }
+
+        if (loadedMaxVersion <= 0 && !this.closing) {
+            LOGGER.warn("Initial load of synonym dictionary {} failed, retry in the background.",
+                    configuration.getMapId());
+        }
+
+        this.monitor = new Monitor(this, tasks);
+        completeInitialLoad(loadedMaxVersion > 0 ? LoadState.LOADED : LoadState.FAILED);
+        this.monitor.start(source.watch(this::checkNow));
+    }
+
+    private void completeInitialLoad(LoadState state) {
+        this.loadState = state;
+        this.initialLoad.countDown();
+        List<Runnable> listeners;
+        synchronized (this) {
+            listeners = this.initialLoadListeners;
+            this.initialLoadListeners = null;
+        }
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Notify the initial load of synonym dictionary failed!", e);
+            }
+        }
+    }
+
+    /**
+     * Cancels the running reload and stops the dictionary after its queued tasks. A queued initial load
+     * completes first, one waiting for the loader node completes as failed.
+     *
+     * @return completes once the dictionary is stopped
+     */
+    Future<?> close() {
+        this.closing = true;
+        SimpleSynonymMap.Builder current = this.building;
+        if (current != null) {
+            current.cancel();
+        }
+        return tasks.submit(() -> {
+            closeInternal();
+            return null;
+        });
+    }
+
+    void closeInternal() {
+        this.closed = true;
+        this.tasks.shutdown();
+        if (this.monitor != null) {
+            this.monitor.stop();
+        }
+        try {
+            this.source.close();
+        } catch (IOException e) {
+            LOGGER.warn("Close synonym rule source failed!", e);
         }
-    });
+        setRuleTexts(null);
+        SynonymMapGeneration current = this.generation.getAndSet(null);
+        if (current != null) {
+            // streams still analyzing with the map keep it until they are closed
+            current.release();
+        }
+        LOGGER.info("Release synonym map of version {}, no index uses it.",
+                current == null ? 0L : current.getVersion());
+    }
 
-    private static SynonymRuleManager singleton;
+    /**
+     * @return the current map, which may be replaced and freed at any time; only the dictionary's tasks, which replace
+     * it, may use it unpinned, other threads use {@link #acquireGeneration()}
+     */
+    public SimpleSynonymMap getSynonymMap() {
+        SynonymMapGeneration current = this.generation.get();
+        return current == null ? null : current.getSynonymMap();
+    }
 
-    private Configuration configuration;
+    /**
+     * Pins the current generation, it must be {@link SynonymMapGeneration#release() released} after use.
+     *
+     * @return the current generation or null if no map is loaded yet
+     */
+    public SynonymMapGeneration acquireGeneration() {
+        while (true) {
+            SynonymMapGeneration current = this.generation.get();
+            if (current == null || current.tryAcquire()) {
+                return current;
+            }
+        }
+    }
 
-    private SimpleSynonymMap synonymMap;
+    /**
+     * Makes the map the current generation, the previous one is retired once no stream pins it anymore.
+     */
+    private void publishGeneration(SimpleSynonymMap map, long version) {
+        SynonymMapGeneration next = new SynonymMapGeneration(map, version, metrics, registry);
+        SynonymMapGeneration previous = this.generation.getAndSet(next);
+        if (previous != null) {
+            if (configuration.getChangeHistory() > 0 && next.tryAcquire()) {
+                // diff once the reload is done, the previous map stays pinned until then
+                try {
+                    tasks.execute(() -> recordChange(previous, next));
+                } catch (RejectedExecutionException e) {
+                    next.release();
+                    previous.release();
+                }
+            } else {
+                previous.release();
+            }
+        }
+        this.loadState = LoadState.LOADED;
+    }
 
-    public static synchronized SynonymRuleManager initial(Configuration cfg) {
-        if (singleton == null) {
-            synchronized (SynonymRuleManager.class) {
-                if (singleton == null) {
-                    singleton = new SynonymRuleManager();
-                    singleton.configuration = cfg;
-                    long loadedMaxVersion = singleton.loadSynonymRule();
-                    executorService.scheduleWithFixedDelay(new Monitor(cfg, loadedMaxVersion), 1,
-                            DB_CHECK_URL, TimeUnit.SECONDS);
+    private void recordChange(SynonymMapGeneration previous, SynonymMapGeneration next) {
+        try {
+            SynonymChange change = SynonymChange.between(previous.getSynonymMap(), previous.getVersion(),
+                    next.getSynonymMap(), next.getVersion(), configuration.getChangeMaxTerms());
+            synchronized (changes) {
+                changes.addLast(change);
+                while (changes.size() > configuration.getChangeHistory()) {
+                    changes.removeFirst();
                 }
             }
+            LOGGER.info("Synonyms of {} terms changed from version {} to {}{}.", change.getTerms().size(),
+                    change.getFromVersion(), change.getToVersion(), change.isTruncated() ? " (truncated)" : "");
+        } catch (RuntimeException e) {
+            LOGGER.warn("Diff synonym map of version " + next.getVersion() + " failed!", e);
+        } finally {
+            next.release();
+            previous.release();
         }
+    }
 
-        return singleton;
+    /**
+     * @return the kept version changes, oldest first
+     */
+    public List<SynonymChange> getChanges() {
+        synchronized (changes) {
+            return new ArrayList<>(changes);
+        }
     }
 
-    public static SynonymRuleManager getSingleton() {
-        if (singleton == null) {
-            throw new IllegalStateException("Please initial first.");
+    /**
+     * Merges the kept changes after a version into one change up to the loaded version.
+     *
+     * @param version the version the documents were indexed with, negative for the version before the last change
+     * @return the change, truncated if the kept changes do not reach back to the version
+     */
+    public SynonymChange getChangesSince(long version) {
+        List<SynonymChange> kept = getChanges();
+        long loadedVersion = getLoadedVersion();
+        if (version < 0) {
+            version = kept.isEmpty() ? loadedVersion : kept.get(kept.size() - 1).getFromVersion();
+        }
+
+        List<SynonymChange> since = new ArrayList<>();
+        for (SynonymChange change : kept) {
+            if (change.getToVersion() > version) {
+                since.add(change);
+            }
         }
-        return singleton;
+
+        // the history starts when the dictionary is loaded, and the diff of the last reload may still be running
+        boolean covered = since.isEmpty() ? version >= loadedVersion
+                : since.get(0).getFromVersion() <= version
+                && since.get(since.size() - 1).getToVersion() >= loadedVersion;
+        return SynonymChange.merge(version, loadedVersion, since, !covered, configuration.getChangeMaxTerms());
+    }
+
+    public SynonymMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    public LoadState getLoadState() {
+        return this.loadState;
+    }
+
+    /**
+     * Waits for the initial load to complete.
+     *
+     * @return true if a map is loaded
+     */
+    public boolean awaitInitialLoad(long timeout, TimeUnit unit) {
+        try {
+            initialLoad.await(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return this.loadState == LoadState.LOADED;
+    }
+
+    /**
+     * Runs the listener once the initial load completed, right away if it did already. The listener runs on the
+     * dictionary's thread and must not block it.
+     */
+    public void whenInitiallyLoaded(Runnable listener) {
+        synchronized (this) {
+            if (this.initialLoadListeners != null) {
+                this.initialLoadListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public long getLoadedVersion() {
+        SynonymMapGeneration current = this.generation.get();
+        return current == null ? 0L : current.getVersion();
+    }
+
+    public Configuration getConfiguration() {
+        return this.configuration;
+    }
+
+    public SynonymRuleSource getSource() {
+        return this.source;
+    }
+
+    /**
+     * @return true if another node loads the rules and this node takes its compiled maps
+     */
+    public boolean isFollower() {
+        return registry.isFollowerNode();
+    }
+
+    /**
+     * Takes a newer map from the loader node. Called by the dictionary's tasks, which are not held while the loader
+     * answers.
+     *
+     * @param onFetched runs as a task of the dictionary with the loaded version after the fetch, -1 if the fetch
+     *                  failed; it runs on the calling thread if the dictionary is closed meanwhile
+     */
+    public void fetchSynonymMap(LongConsumer onFetched) {
+        SynonymMapCoordinator synonymMapCoordinator = registry.getCoordinator();
+        if (synonymMapCoordinator == null) {
+            onFetched.accept(getLoadedVersion());
+            return;
+        }
+
+        long start = System.nanoTime();
+        synonymMapCoordinator.fetch(configuration, getLoadedVersion(),
+                new ActionListener<SnapshotUtils.Snapshot>() {
+                    @Override
+                    public void onResponse(SnapshotUtils.Snapshot snapshot) {
+                        metrics.recordPoll(System.nanoTime() - start, null);
+                        try {
+                            tasks.execute(() -> {
+                                if (snapshot != null) {
+                                    applyPublishedMap(snapshot.getVersion(), snapshot.getSynonymMap());
+                                }
+                                onFetched.accept(getLoadedVersion());
+                            });
+                        } catch (RejectedExecutionException e) {
+                            if (snapshot != null) {
+                                snapshot.getSynonymMap().release();
+                            }
+                            onFetched.accept(-1L);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        metrics.recordPoll(System.nanoTime() - start, e);
+                        LOGGER.warn("Fetch synonym map from the loader node failed!", e);
+                        try {
+                            tasks.execute(() -> onFetched.accept(-1L));
+                        } catch (RejectedExecutionException rejected) {
+                            onFetched.accept(-1L);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Installs a map published by the loader node.
+     */
+    public void installSynonymMap(long version, SimpleSynonymMap map) {
+        try {
+            tasks.execute(() -> applyPublishedMap(version, map));
+        } catch (RejectedExecutionException e) {
+            map.release();
+        }
+    }
+
+    private void applyPublishedMap(long version, SimpleSynonymMap map) {
+        if (this.closed || version <= getLoadedVersion()) {
+            map.release();
+            return;
+        }
+        long bytes = map.ramBytesUsed() + map.offHeapBytesUsed();
+        if (bytes > getMemoryLimit()) {
+            LOGGER.warn("Skip synonym map of version {}, its {} bytes exceed the memory budget of {} bytes.",
+                    version, bytes, configuration.getMemoryBudget());
+            map.release();
+            return;
+        }
+
+        // the rule texts are not shipped, a later delta reload on this node starts with a full reload
+        publishGeneration(map, version);
+        setRuleTexts(null);
+        metrics.recordMap(map, -1, version);
+        LOGGER.info("Install synonym map of version {} succeed! terms: {}, ram: {} bytes", version, map.size(),
+                map.ramBytesUsed());
+        saveSnapshot(map, version);
+    }
+
+    /**
+     * @return the heap a new map may take: the budget minus the live maps, including the current map of this
+     * dictionary which stays live until the new one is swapped in
+     */
+    private long getMemoryLimit() {
+        return Math.max(0L, configuration.getMemoryBudget() - registry.getLiveBytes());
+    }
+
+    private void publishSynonymMap() {
+        SynonymMapCoordinator synonymMapCoordinator = registry.getCoordinator();
+        if (synonymMapCoordinator != null && synonymMapCoordinator.isLocalLoader()) {
+            SynonymMapGeneration current = this.generation.get();
+            synonymMapCoordinator.publish(configuration.getMapId(), current.getVersion(), current.getSynonymMap());
+        }
+    }
+
+    /**
+     * Checks the source for new rules right away, see {@link Monitor#checkNow()}.
+     */
+    public Future<Long> checkNow() {
+        Monitor current = this.monitor;
+        try {
+            if (current == null) {
+                // the initial load is still running and loads the latest version anyway
+                return tasks.submit(this::getLoadedVersion);
+            }
+            return current.checkNow();
+        } catch (RejectedExecutionException e) {
+            // the dictionary is closed, e.g. a change of a watched file raced with the close
+            return CompletableFuture.completedFuture(getLoadedVersion());
+        }
+    }
+
+    /**
+     * Compiles a candidate rule set into a throwaway map after the queued tasks of the dictionary and diffs it against
+     * the live map. Nothing is published; the build takes the same memory limit and rate as a reload.
+     *
+     * @param version      the version to load from the source when no rules are given, 0 for the current one
+     * @param rules        rules to add, null to load the version from the source
+     * @param removedRules rules to retract from the live map, may be null
+     * @param replace      true if the given rules form the whole candidate instead of a change of the live map
+     */
+    public void dryRun(long version, List<String> rules, List<String> removedRules, boolean replace,
+                       ActionListener<SynonymDryRun> listener) {
+        try {
+            tasks.execute(() -> {
+                SynonymDryRun result;
+                try {
+                    if (this.closed) {
+                        throw new IllegalStateException("synonym dictionary [" + configuration.getMapId()
+                                + "] is closed");
+                    }
+                    result = dryRunInternal(version, rules, removedRules, replace);
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                listener.onResponse(result);
+            });
+        } catch (RejectedExecutionException e) {
+            listener.onFailure(e);
+        }
+    }
+
+    private SynonymDryRun dryRunInternal(long version, List<String> rules, List<String> removedRules,
+                                         boolean replace) throws Exception {
+        SynonymDryRun result = new SynonymDryRun();
+        long start = System.nanoTime();
+        SynonymMapGeneration live = acquireGeneration();
+        SimpleSynonymMap candidate = null;
+        SimpleSynonymMap empty = null;
+        try {
+            SimpleSynonymMap liveMap = live == null ? null : live.getSynonymMap();
+            if (live != null) {
+                result.liveVersion = live.getVersion();
+                result.liveTermCount = liveMap.size();
+                result.liveRamBytes = liveMap.ramBytesUsed();
+                result.liveOffHeapBytes = liveMap.offHeapBytesUsed();
+            }
+            result.memoryLimit = getMemoryLimit();
+
+            SimpleSynonymMap.Builder builder = newBuilder();
+            builder.setLogFailures(false);
+            try {
+                if (rules == null && removedRules == null) {
+                    result.version = version > 0 ? version : source.getVersion();
+                    long dbStart = System.nanoTime();
+                    result.ruleCount = source.loadRules(result.version, rule -> builder.addRule(rule.getRule()));
+                    result.dbNanos = System.nanoTime() - dbStart - builder.getAddNanos();
+                } else {
+                    if (removedRules != null) {
+                        removedRules.forEach(builder::removeRule);
+                    }
+                    if (rules != null) {
+                        rules.forEach(builder::addRule);
+                        result.ruleCount = rules.size();
+                    }
+                }
+
+                long buildStart = System.nanoTime();
+                candidate = replace || result.version > 0 ? builder.build() : builder.build(liveMap);
+                result.buildNanos = System.nanoTime() - buildStart;
+            } catch (IllegalStateException e) {
+                // e.g. the candidate exceeds the memory budget, a reload would fail the same way
+                result.error = e.getMessage();
+            } finally {
+                this.building = null;
+            }
+            result.parseNanos = builder.getParseNanos();
+            result.analyzeNanos = builder.getAnalyzeNanos();
+            result.estimatedBytes = builder.getEstimatedBytes();
+            result.failedRuleCount = builder.getFailedRuleCount();
+            result.failedRules = builder.getFailedRules();
+
+            if (candidate != null) {
+                result.termCount = candidate.size();
+                result.ramBytes = candidate.ramBytesUsed();
+                result.offHeapBytes = candidate.offHeapBytesUsed();
+                if (liveMap == null) {
+                    // nothing is loaded yet, every term of the candidate is new
+                    empty = new SimpleSynonymMap.Builder(configuration).build();
+                }
+                result.change = SynonymChange.between(liveMap != null ? liveMap : empty, result.liveVersion,
+                        candidate, result.version, configuration.getChangeMaxTerms());
+            }
+        } finally {
+            if (candidate != null) {
+                candidate.release();
+            }
+            if (empty != null) {
+                empty.release();
+            }
+            if (live != null) {
+                live.release();
+            }
+        }
+        result.totalNanos = System.nanoTime() - start;
+        return result;
     }
 
     public List<String> getSynonymWords(String inputToken) {
-        if (this.synonymMap == null) {
+        SynonymMapGeneration current = acquireGeneration();
+        if (current == null) {
             return null;
         }
 
-        return this.synonymMap.getSynonymWords(inputToken);
+        try {
+            return current.getSynonymMap().getSynonymWords(inputToken);
+        } finally {
+            current.release();
+        }
     }
 
     private long loadSynonymRule() {
+        long start = System.nanoTime();
         try {
-            long currentMaxVersion = JDBCUtils.queryMaxSynonymRuleVersion(configuration.getDBUrl());
-            List<String> synonymRuleList = JDBCUtils.querySynonymRules(configuration.getDBUrl(), currentMaxVersion);
-            this.synonymMap = new SimpleSynonymMap(this.configuration);
-            for (String rule : synonymRuleList) {
-                this.synonymMap.addRule(rule);
-            }
-
-            LOGGER.info("Load {} synonym rule succeed!", synonymRuleList.size());
+            long currentMaxVersion = source.getVersion();
+            SynonymMetrics.ReloadTimes times = new SynonymMetrics.ReloadTimes();
+            int ruleCount = loadSynonymMap(currentMaxVersion, times);
+            times.totalNanos = System.nanoTime() - start;
+            metrics.recordReload(times);
+            SimpleSynonymMap synonymMap = getSynonymMap();
+            metrics.recordMap(synonymMap, ruleCount, currentMaxVersion);
+            LOGGER.info("Load {} synonym rule succeed! terms: {}, ram: {} bytes", ruleCount,
+                    synonymMap.size(), synonymMap.ramBytesUsed());
             return currentMaxVersion;
+        } catch (CancellationException e) {
+            LOGGER.info("Load synonym rule cancelled, the dictionary is closed.");
+            return 0L;
         } catch (Exception e) {
+            metrics.recordReloadFailure(e);
             LOGGER.error("Load synonym rule failed!", e);
             //throw new RuntimeException(e);
             return 0L;
         }
     }
 
+    private long loadSnapshot() {
+        if (configuration.getSnapshotDir() == null) {
+            return 0L;
+        }
+
+        try {
+            long memoryLimit = getMemoryLimit();
+            SnapshotUtils.Snapshot snapshot = SnapshotUtils.readSnapshot(configuration, memoryLimit);
+            if (snapshot == null) {
+                return 0L;
+            }
+
+            // the same budget as a build from the source, which takes over if the snapshot does not fit
+            SimpleSynonymMap synonymMap = snapshot.getSynonymMap();
+            long bytes = synonymMap.ramBytesUsed() + synonymMap.offHeapBytesUsed();
+            if (bytes > memoryLimit) {
+                synonymMap.release();
+                LOGGER.warn("Skip synonym snapshot of version {}, its {} bytes exceed the memory limit of {} bytes, "
+                        + "fall back to the source.", snapshot.getVersion(), bytes, memoryLimit);
+                return 0L;
+            }
+            publishGeneration(synonymMap, snapshot.getVersion());
+            metrics.recordMap(synonymMap, -1, snapshot.getVersion());
+            LOGGER.info("Load synonym snapshot of version {} succeed! terms: {}, ram: {} bytes", snapshot.getVersion(),
+                    synonymMap.size(), synonymMap.ramBytesUsed());
+            return snapshot.getVersion();
+        } catch (Exception e) {
+            LOGGER.warn("Load synonym snapshot failed, fall back to the source.", e);
+            return 0L;
+        }
+    }
+
+    private void saveSnapshot(SimpleSynonymMap map, long version) {
+        if (configuration.getSnapshotDir() == null) {
+            return;
+        }
+
+        try {
+            SnapshotUtils.writeSnapshot(configuration, version, map);
+        } catch (Exception e) {
+            LOGGER.warn("Save synonym snapshot of version " + version + " failed!", e);
+        }
+    }
+
     public boolean reloadSynonymRule(long maxVersion) {
         LOGGER.info("Start to reload synonym rule...");
         boolean reloadResult = true;
+        long start = System.nanoTime();
+        SynonymMetrics.ReloadTimes times = new SynonymMetrics.ReloadTimes();
         try {
-            SynonymRuleManager tmpManager = new SynonymRuleManager();
-            tmpManager.configuration = getSingleton().configuration;
-            List<String> synonymRuleList = JDBCUtils.querySynonymRules(configuration.getDBUrl(), maxVersion);
-            SimpleSynonymMap tempSynonymMap = new SimpleSynonymMap(tmpManager.configuration);
-            for (String rule : synonymRuleList) {
-                tempSynonymMap.addRule(rule);
+            int ruleCount;
+            // a map loaded from the snapshot or fetched from the loader node has no rule texts to retract, so it is
+            // fully reloaded once
+            if (configuration.isDeltaReload() && source.supportsRuleChanges() && this.ruleTexts != null
+                    && getLoadedVersion() > 0) {
+                long dbStart = System.nanoTime();
+                List<SynonymRule> changedRuleList = source.loadRuleChanges(getLoadedVersion(), maxVersion);
+                times.dbNanos = System.nanoTime() - dbStart;
+                applySynonymRuleChanges(changedRuleList, maxVersion, times);
+                ruleCount = this.ruleTexts.size();
+                SimpleSynonymMap synonymMap = getSynonymMap();
+                LOGGER.info("Succeed to reload {} changed synonym rule! terms: {}, ram: {} bytes",
+                        changedRuleList.size(), synonymMap.size(), synonymMap.ramBytesUsed());
+            } else {
+                ruleCount = loadSynonymMap(maxVersion, times);
+                SimpleSynonymMap synonymMap = getSynonymMap();
+                LOGGER.info("Succeed to reload {} synonym rule! terms: {}, ram: {} bytes", ruleCount,
+                        synonymMap.size(), synonymMap.ramBytesUsed());
             }
 
-            this.synonymMap = tempSynonymMap;
-            LOGGER.info("Succeed to reload {} synonym rule!", synonymRuleList.size());
+            publishSynonymMap();
+            long snapshotStart = System.nanoTime();
+            saveSnapshot(getSynonymMap(), maxVersion);
+            times.snapshotNanos = System.nanoTime() - snapshotStart;
+            times.totalNanos = System.nanoTime() - start;
+            metrics.recordReload(times);
+            metrics.recordMap(getSynonymMap(), ruleCount, maxVersion);
+        } catch (CancellationException e) {
+            LOGGER.info("Reload synonym rule cancelled, the dictionary is closed.");
+            reloadResult = false;
         } catch (Throwable t) {
             LOGGER.error("Failed to reload synonym rule!", t);
+            metrics.recordReloadFailure(t);
             reloadResult = false;
         }
 
         return reloadResult;
     }
+
+    /**
+     * Creates the builder of a reload, see {@link #close()}.
+     */
+    private SimpleSynonymMap.Builder newBuilder() {
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(this.configuration);
+        builder.setExecutor(SynonymBuildExecutor.executor(registry.getThreadPool()));
+        builder.setMemoryLimit(getMemoryLimit());
+        this.building = builder;
+        if (this.closing) {
+            builder.cancel();
+        }
+        return builder;
+    }
+
+    /**
+     * Streams all available rules up to the version from the source into a new map.
+     *
+     * @return the number of rules loaded
+     */
+    private int loadSynonymMap(long maxVersion, SynonymMetrics.ReloadTimes times) throws Exception {
+        SimpleSynonymMap.Builder builder = newBuilder();
+        try {
+            return loadSynonymMap(builder, maxVersion, times);
+        } finally {
+            this.building = null;
+        }
+    }
+
+    private int loadSynonymMap(SimpleSynonymMap.Builder builder, long maxVersion, SynonymMetrics.ReloadTimes times)
+            throws Exception {
+        // the rule texts are only needed to retract rules on a delta reload
+        boolean keepRules = configuration.isDeltaReload() && source.supportsRuleChanges();
+        RuleTexts.Builder texts = keepRules ? new RuleTexts.Builder() : null;
+        long dbStart = System.nanoTime();
+        int ruleCount = source.loadRules(maxVersion, rule -> {
+            builder.addRule(rule.getRule());
+            if (texts != null) {
+                texts.add(rule.getId(), rule.getRule());
+            }
+        });
+        // the rows are streamed into the builder, so its share of the time is not the db's
+        times.dbNanos = System.nanoTime() - dbStart - builder.getAddNanos();
+        times.throttleNanos = builder.getThrottleNanos();
+
+        long buildStart = System.nanoTime();
+        SimpleSynonymMap newSynonymMap = builder.build();
+        times.buildNanos = System.nanoTime() - buildStart;
+        times.parseNanos = builder.getParseNanos();
+        times.analyzeNanos = builder.getAnalyzeNanos();
+
+        long swapStart = System.nanoTime();
+        publishGeneration(newSynonymMap, maxVersion);
+        setRuleTexts(texts == null ? null : texts.build(configuration.isOffHeap()));
+        times.swapNanos = System.nanoTime() - swapStart;
+        return ruleCount;
+    }
+
+    private void applySynonymRuleChanges(List<SynonymRule> changedRuleList, long maxVersion,
+                                         SynonymMetrics.ReloadTimes times) {
+        SimpleSynonymMap.Builder builder = newBuilder();
+        try {
+            applySynonymRuleChanges(builder, changedRuleList, maxVersion, times);
+        } finally {
+            this.building = null;
+        }
+    }
+
+    private void applySynonymRuleChanges(SimpleSynonymMap.Builder builder, List<SynonymRule> changedRuleList,
+                                         long maxVersion, SynonymMetrics.ReloadTimes times) {
+        for (SynonymRule rule : changedRuleList) {
+            String previousRule = this.ruleTexts.get(rule.getId());
+            if (previousRule != null) {
+                builder.removeRule(previousRule);
+            }
+
+            if (rule.isAvailable()) {
+                builder.addRule(rule.getRule());
+            }
+        }
+
+        long buildStart = System.nanoTime();
+        SimpleSynonymMap newSynonymMap = builder.build(getSynonymMap());
+        times.buildNanos = System.nanoTime() - buildStart;
+        times.throttleNanos = builder.getThrottleNanos();
+        times.parseNanos = builder.getParseNanos();
+        times.analyzeNanos = builder.getAnalyzeNanos();
+
+        long swapStart = System.nanoTime();
+        publishGeneration(newSynonymMap, maxVersion);
+
+        // ids are unique within one change set, so the rule texts can be updated once the new map is built
+        setRuleTexts(this.ruleTexts.apply(changedRuleList, configuration.isOffHeap()));
+        times.swapNanos = System.nanoTime() - swapStart;
+    }
+
+    /**
+     * Replaces the rule texts, they are accounted against the memory budget like the maps. Without texts the next
+     * reload is a full one.
+     */
+    private void setRuleTexts(RuleTexts texts) {
+        RuleTexts previous = this.ruleTexts;
+        this.ruleTexts = texts;
+        registry.adjustLiveBytes((texts == null ? 0L : texts.bytesUsed())
+                - (previous == null ? 0L : previous.bytesUsed()));
+        if (previous != null) {
+            previous.release();
+        }
+    }
 }
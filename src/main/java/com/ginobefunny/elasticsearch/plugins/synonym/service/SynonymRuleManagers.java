@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The synonym dictionaries of a node, one instance per plugin instance so the nodes of one JVM, e.g. in the
+ * integration tests, do not share them. Filters whose settings compile to the same map share one dictionary.
+ */
+public class SynonymRuleManagers {
+
+    private static final Logger LOGGER = ESLoggerFactory.getLogger(SynonymRuleManagers.class.getName());
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 10L;
+
+    /**
+     * how long a dictionary no index uses stays loaded, e.g. the index service the master creates to validate a new
+     * index is removed right before the shards of the index create the filters again
+     */
+    private static final TimeValue RELEASE_DELAY = TimeValue.timeValueMinutes(1);
+
+    /** map key -> the manager shared by all filters with that configuration, guarded by this **/
+    private final Map<String, SynonymRuleManager> managers = new HashMap<>();
+
+    /** set when the cluster mode is on **/
+    private volatile SynonymMapCoordinator coordinator;
+
+    /** the thread pool of the node, null outside a node **/
+    private volatile ThreadPool threadPool;
+
+    /** the tables of the live generations with the generations using them, guarded by itself **/
+    private final Map<Object, TableUse> liveTables = new IdentityHashMap<>();
+
+    /** heap and direct memory of the live tables and of the rule texts kept for delta reloads, guarded by liveTables **/
+    private long liveBytes;
+
+    /**
+     * Returns the manager of the configuration's dictionary, loading the dictionary in the background if no index
+     * uses it yet, see {@link SynonymRuleManager#getLoadState()}.
+     *
+     * @param index the uuid of the index using the dictionary, see {@link #release(String)}; an index without uuid,
+     *              e.g. one only created to validate the settings, does not keep the dictionary loaded
+     */
+    public synchronized SynonymRuleManager initial(Configuration cfg, String index) {
+        String mapKey = cfg.getMapKey();
+        SynonymRuleManager manager = managers.get(mapKey);
+        if (manager == null) {
+            manager = new SynonymRuleManager(this, cfg);
+            managers.put(mapKey, manager);
+            // the load must not hold up the index creation or the shard recovery creating the filter
+            manager.start();
+        }
+
+        if (IndexMetaData.INDEX_UUID_NA_VALUE.equals(index)) {
+            // outside a node the dictionary is kept until it is closed, it cannot be held for a delay only
+            if (manager.indices.isEmpty() && manager.pendingClose == null && threadPool != null) {
+                scheduleClose(mapKey, manager);
+            }
+        } else {
+            manager.indices.add(index);
+            if (manager.pendingClose != null) {
+                manager.pendingClose.cancel(false);
+                manager.pendingClose = null;
+            }
+        }
+        return manager;
+    }
+
+    /**
+     * Releases the dictionaries of a closed or removed index. A dictionary no other index uses stops polling and its
+     * map is dropped, after a delay in which another index may take it over without a reload.
+     */
+    public synchronized void release(String index) {
+        for (Map.Entry<String, SynonymRuleManager> entry : managers.entrySet()) {
+            SynonymRuleManager manager = entry.getValue();
+            if (manager.indices.remove(index) && manager.indices.isEmpty() && manager.pendingClose == null) {
+                scheduleClose(entry.getKey(), manager);
+            }
+        }
+    }
+
+    private void scheduleClose(String mapKey, SynonymRuleManager manager) {
+        ThreadPool pool = threadPool;
+        if (pool != null) {
+            try {
+                manager.pendingClose = pool.schedule(RELEASE_DELAY, ThreadPool.Names.GENERIC,
+                        () -> closeUnused(mapKey, manager));
+                return;
+            } catch (EsRejectedExecutionException e) {
+                // the node is shutting down
+            }
+        }
+        closeUnused(mapKey, manager);
+    }
+
+    private synchronized void closeUnused(String mapKey, SynonymRuleManager manager) {
+        // an index may have taken the dictionary over while the close was due
+        if (manager.indices.isEmpty() && managers.get(mapKey) == manager) {
+            managers.remove(mapKey);
+            manager.close();
+        }
+    }
+
+    /**
+     * Closes all dictionaries when the node shuts down, a running reload is cancelled.
+     */
+    public void closeAll() {
+        List<SynonymRuleManager> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(managers.values());
+            managers.clear();
+            for (SynonymRuleManager manager : closing) {
+                if (manager.pendingClose != null) {
+                    manager.pendingClose.cancel(false);
+                    manager.pendingClose = null;
+                }
+            }
+        }
+
+        List<Future<?>> closed = new ArrayList<>();
+        for (SynonymRuleManager manager : closing) {
+            closed.add(manager.close());
+        }
+        for (int i = 0; i < closing.size(); i++) {
+            try {
+                closed.get(i).get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (CancellationException e) {
+                // the thread pool is shut down already
+                closing.get(i).closeInternal();
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.warn("Close synonym dictionary " + closing.get(i).getConfiguration().getMapId() + " failed!",
+                        e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public synchronized List<SynonymRuleManager> getManagers() {
+        return new ArrayList<>(managers.values());
+    }
+
+    /**
+     * @return the manager of the dictionary with the {@link Configuration#getMapId() map id}, null if none
+     */
+    public synchronized SynonymRuleManager getManager(String mapId) {
+        for (SynonymRuleManager manager : managers.values()) {
+            if (manager.getConfiguration().getMapId().equals(mapId)) {
+                return manager;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Accounts the tables of a new generation's map, tables it shares with a live map are already counted.
+     */
+    void retainTables(SimpleSynonymMap map) {
+        Map<Object, Long> tables = new IdentityHashMap<>();
+        map.collectTables(tables);
+        synchronized (liveTables) {
+            for (Map.Entry<Object, Long> table : tables.entrySet()) {
+                TableUse use = liveTables.get(table.getKey());
+                if (use == null) {
+                    liveTables.put(table.getKey(), new TableUse(table.getValue()));
+                    liveBytes += table.getValue();
+                } else {
+                    use.generations++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accounting the tables of a retired generation's map which no other live map shares.
+     */
+    void releaseTables(SimpleSynonymMap map) {
+        Map<Object, Long> tables = new IdentityHashMap<>();
+        map.collectTables(tables);
+        synchronized (liveTables) {
+            for (Object table : tables.keySet()) {
+                TableUse use = liveTables.get(table);
+                if (use != null && --use.generations == 0) {
+                    liveTables.remove(table);
+                    liveBytes -= use.bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Accounts memory the dictionaries hold besides their maps, e.g. the rule texts of the delta reloads.
+     */
+    void adjustLiveBytes(long bytes) {
+        synchronized (liveTables) {
+            liveBytes += bytes;
+        }
+    }
+
+    /**
+     * @return the heap and direct memory used by the live generations of the dictionaries, shared tables counted
+     * once, and by their rule texts
+     */
+    public long getLiveBytes() {
+        synchronized (liveTables) {
+            return liveBytes;
+        }
+    }
+
+    /**
+     * Sets the thread pool the dictionaries load and reload on, before the node creates any filter.
+     */
+    public void setThreadPool(ThreadPool pool) {
+        threadPool = pool;
+    }
+
+    ThreadPool getThreadPool() {
+        return threadPool;
+    }
+
+    public void setCoordinator(SynonymMapCoordinator synonymMapCoordinator) {
+        coordinator = synonymMapCoordinator;
+    }
+
+    /**
+     * @return the coordinator of the cluster mode, null if it is off
+     */
+    SynonymMapCoordinator getCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * @return true if another node loads the rules of all dictionaries, so this node does not query the sources
+     */
+    public boolean isFollowerNode() {
+        SynonymMapCoordinator synonymMapCoordinator = coordinator;
+        return synonymMapCoordinator != null && !synonymMapCoordinator.isLocalLoader();
+    }
+
+    private static final class TableUse {
+
+        private final long bytes;
+
+        private int generations = 1;
+
+        TableUse(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
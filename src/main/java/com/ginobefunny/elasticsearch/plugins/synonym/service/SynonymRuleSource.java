@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where the synonym rules of a dictionary come from. Every rule set has a version which grows when the rules
+ * change, the manager reloads when the version is greater than the loaded one.
+ */
+public interface SynonymRuleSource extends Closeable {
+
+    /**
+     * @return the current version of the rules, called on every check so it should be cheap
+     */
+    long getVersion() throws Exception;
+
+    /**
+     * Streams the available rules up to the version to the consumer.
+     *
+     * @return the number of rules read
+     */
+    int loadRules(long version, Consumer<SynonymRule> consumer) throws Exception;
+
+    /**
+     * @return true if {@link #loadRuleChanges(long, long)} is supported, so delta reloads are possible
+     */
+    boolean supportsRuleChanges();
+
+    /**
+     * @return the rules changed in (fromVersion, toVersion], including the ones which became unavailable
+     */
+    List<SynonymRule> loadRuleChanges(long fromVersion, long toVersion) throws Exception;
+
+    /**
+     * Asks the source to call the listener when the rules may have changed.
+     *
+     * @return true if the source notifies about changes, so it needs no frequent polling
+     */
+    boolean watch(Runnable listener);
+}
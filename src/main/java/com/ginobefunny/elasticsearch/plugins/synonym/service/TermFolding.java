@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import java.text.Normalizer;
+
+/**
+ * Folds the chars of terms so that rules and tokens which differ only in case or in compatibility forms, like
+ * full-width letters and half-width katakana, match. The fold does not depend on the default locale.
+ *
+ * Every char folds to exactly one char through a table, so {@link SimpleSynonymMap} folds the token while it
+ * hashes and compares it, without copying the term buffer. Compatibility decompositions to several chars, like
+ * ligatures, are left as they are.
+ */
+final class TermFolding {
+
+    static final int NONE = 0;
+
+    static final int CASE = 1;
+
+    static final int COMPATIBILITY = 2;
+
+    /** mode -> fold table, built on first use **/
+    private static final char[][] TABLES = new char[(CASE | COMPATIBILITY) + 1][];
+
+    private TermFolding() {
+    }
+
+    static int mode(Configuration configuration) {
+        return (configuration.isIgnoreCase() ? CASE : NONE) | (configuration.isNormalize() ? COMPATIBILITY : NONE);
+    }
+
+    /**
+     * @return the table mapping every char to its folded char, null for {@link #NONE}
+     */
+    static char[] table(int mode) {
+        if (mode < 0 || mode >= TABLES.length) {
+            throw new IllegalArgumentException("unknown term folding: " + mode);
+        }
+        if (mode == NONE) {
+            return null;
+        }
+
+        synchronized (TABLES) {
+            if (TABLES[mode] == null) {
+                TABLES[mode] = buildTable(mode);
+            }
+            return TABLES[mode];
+        }
+    }
+
+    static String fold(String s, char[] table) {
+        if (table == null) {
+            return s;
+        }
+
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = table[chars[i]];
+        }
+        return new String(chars);
+    }
+
+    private static char[] buildTable(int mode) {
+        char[] table = new char[Character.MAX_VALUE + 1];
+        for (int c = 0; c < table.length; c++) {
+            table[c] = foldChar((char) c, mode);
+        }
+
+        // fold the folded chars again until nothing changes, so that folding a rule twice changes nothing
+        for (int c = 0; c < table.length; c++) {
+            char folded = table[c];
+            for (int i = 0; i < 4 && table[folded] != folded; i++) {
+                folded = table[folded];
+            }
+            table[c] = folded;
+        }
+
+        return table;
+    }
+
+    private static char foldChar(char c, int mode) {
+        if ((mode & COMPATIBILITY) != 0 && c >= 0x80 && !Character.isSurrogate(c)) {
+            String normalized = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKC);
+            if (normalized.length() == 1) {
+                c = normalized.charAt(0);
+            }
+        }
+        if ((mode & CASE) != 0) {
+            // simple case folding: upper then lower also folds variants like the final sigma
+            c = Character.toLowerCase(Character.toUpperCase(c));
+        }
+
+        return c;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Rejects most terms which are not in a hash table of {@link SimpleSynonymMap} before the table is probed: most
+ * tokens have no synonym, and a miss in a large table costs a few cache misses.
+ *
+ * Two bitmaps over the term lengths and the first chars reject terms without hashing them. The remaining terms
+ * are checked against a blocked bloom filter: the bits of a term are set in one long, so a check costs one memory
+ * access, with about 2% false positives at {@link #BITS_PER_TERM} bits per term.
+ */
+final class TermPrefilter {
+
+    private static final int BITS_PER_TERM = 10;
+
+    /** lengths 63 and above share the last bit **/
+    private final long lengths;
+
+    /** first char & 4095 -> bit **/
+    private final long[] firstChars;
+
+    private final long[] bloom;
+
+    private final int bloomShift;
+
+    private TermPrefilter(long lengths, long[] firstChars, long[] bloom) {
+        this.lengths = lengths;
+        this.firstChars = firstChars;
+        this.bloom = bloom;
+        this.bloomShift = Integer.numberOfLeadingZeros(bloom.length) + 1;
+    }
+
+    /**
+     * @param first the first char of the term, as folded by the table; ignored for the empty term
+     * @return false if the term is surely not in the table, the caller computes the hash only if it is true
+     */
+    boolean mayContain(int length, char first) {
+        if ((lengths & (1L << Math.min(length, 63))) == 0) {
+            return false;
+        }
+
+        return length == 0 || (firstChars[(first & 4095) >>> 6] & (1L << first)) != 0;
+    }
+
+    /**
+     * @param hash the hash the table uses for the term
+     * @return false if the term is surely not in the table
+     */
+    boolean mayContain(int hash) {
+        long mask = bloomMask(hash);
+        return (bloom[bloomWord(hash, bloomShift)] & mask) == mask;
+    }
+
+    private static int bloomWord(int hash, int shift) {
+        // the table indexes by the low bits, the filter takes the high bits of another mix
+        return shift == 32 ? 0 : (hash * 0x9e3779b9) >>> shift;
+    }
+
+    private static long bloomMask(int hash) {
+        int bits = Integer.rotateLeft(hash, 15) * 0x1b873593;
+        return (1L << bits) | (1L << (bits >>> 6)) | (1L << (bits >>> 12));
+    }
+
+    long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(firstChars) + RamUsageEstimator.sizeOf(bloom);
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(lengths);
+        writeLongs(out, firstChars);
+        writeLongs(out, bloom);
+    }
+
+    static TermPrefilter readFrom(ByteBuffer buffer) {
+        long lengths = buffer.getLong();
+        long[] firstChars = readLongs(buffer);
+        long[] bloom = readLongs(buffer);
+        if (firstChars.length != 64 || Integer.bitCount(bloom.length) != 1) {
+            throw new IllegalArgumentException("corrupted synonym map prefilter");
+        }
+        return new TermPrefilter(lengths, firstChars, bloom);
+    }
+
+    private static void writeLongs(DataOutput out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(ByteBuffer buffer) {
+        long[] values = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Long.BYTES);
+        return values;
+    }
+
+    /**
+     * Collects the terms of one table.
+     */
+    static final class Builder {
+
+        private long lengths;
+
+        private final long[] firstChars = new long[64];
+
+        private final long[] bloom;
+
+        private final int bloomShift;
+
+        Builder(int termCount) {
+            int words = Math.max(1, Integer.highestOneBit(Math.max(1, termCount * BITS_PER_TERM / 64) * 2 - 1));
+            this.bloom = new long[words];
+            this.bloomShift = Integer.numberOfLeadingZeros(words) + 1;
+        }
+
+        void add(char[] buffer, int offset, int length, int hash) {
+            lengths |= 1L << Math.min(length, 63);
+            if (length > 0) {
+                char first = buffer[offset];
+                firstChars[(first & 4095) >>> 6] |= 1L << first;
+            }
+            bloom[bloomWord(hash, bloomShift)] |= bloomMask(hash);
+        }
+
+        TermPrefilter build() {
+            return new TermPrefilter(lengths, firstChars, bloom);
+        }
+    }
+}
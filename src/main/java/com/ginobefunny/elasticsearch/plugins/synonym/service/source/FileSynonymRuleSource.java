@@ -0,0 +1,230 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.source;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleSource;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SecurityUtils;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads the rules from a local file in the solr synonyms format, one rule per line, lines starting with '#' are
+ * comments. The version is the last modified time of the file, so every change is a full reload.
+ *
+ * The file is watched through the file system's {@link WatchService}, so nothing is polled until it changes.
+ */
+public class FileSynonymRuleSource implements SynonymRuleSource {
+
+    private static final Logger LOGGER = ESLoggerFactory.getLogger(FileSynonymRuleSource.class.getName());
+
+    private static final long WATCHER_JOIN_TIMEOUT_MILLIS = 10000L;
+
+    /** watched directory -> its key, guarded by the class lock **/
+    private static final Map<Path, WatchKey> watchKeys = new HashMap<>();
+
+    /** watch key -> the sources of files in its directory, guarded by the class lock **/
+    private static final Map<WatchKey, List<FileSynonymRuleSource>> watchers = new HashMap<>();
+
+    private static WatchService watchService;
+
+    /** takes the events of the watch service, guarded by the class lock **/
+    private static Thread watcherThread;
+
+    private final Path file;
+
+    private volatile Runnable listener;
+
+    public FileSynonymRuleSource(Configuration cfg) {
+        this.file = cfg.getRulesPath().toAbsolutePath();
+    }
+
+    @Override
+    public long getVersion() throws Exception {
+        return SecurityUtils.doPrivileged(() -> Files.getLastModifiedTime(file).toMillis());
+    }
+
+    @Override
+    public int loadRules(long version, Consumer<SynonymRule> consumer) throws Exception {
+        return SecurityUtils.doPrivileged(() ->
+                SynonymRuleSources.readRules(Files.newBufferedReader(file, StandardCharsets.UTF_8), consumer));
+    }
+
+    @Override
+    public boolean supportsRuleChanges() {
+        return false;
+    }
+
+    @Override
+    public List<SynonymRule> loadRuleChanges(long fromVersion, long toVersion) {
+        throw new UnsupportedOperationException("rule changes of a file are not tracked");
+    }
+
+    @Override
+    public boolean watch(Runnable onChange) {
+        this.listener = onChange;
+        try {
+            SecurityUtils.doPrivileged(() -> {
+                register(this);
+                return null;
+            });
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Watch synonym file " + file + " failed, fall back to polling.", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        join(unregister(this));
+    }
+
+    /**
+     * Stops watching the files of all sources and waits for the watcher thread to end. Called when the node shuts
+     * down, as the sources of dictionaries that did not close in time are never unregistered.
+     */
+    public static void stopWatching() {
+        Thread thread;
+        synchronized (FileSynonymRuleSource.class) {
+            watchKeys.clear();
+            watchers.clear();
+            thread = closeWatchService();
+        }
+        join(thread);
+    }
+
+    private static synchronized void register(FileSynonymRuleSource source) throws IOException {
+        if (watchService == null) {
+            WatchService service = FileSystems.getDefault().newWatchService();
+            watchService = service;
+            // the thread takes the service along, the last unregistration may close it before the thread runs
+            Thread thread = new Thread(() -> watchLoop(service), "synonym-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            watcherThread = thread;
+        }
+
+        Path dir = source.file.getParent();
+        WatchKey key = watchKeys.get(dir);
+        if (key == null) {
+            // editors often replace the file instead of writing it in place
+            key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchKeys.put(dir, key);
+        }
+        watchers.computeIfAbsent(key, k -> new ArrayList<>()).add(source);
+    }
+
+    /**
+     * @return the watcher thread to wait for if it was the last source, null otherwise
+     */
+    private static synchronized Thread unregister(FileSynonymRuleSource source) {
+        WatchKey key = watchKeys.get(source.file.getParent());
+        List<FileSynonymRuleSource> sources = key == null ? null : watchers.get(key);
+        if (sources == null || !sources.remove(source) || !sources.isEmpty()) {
+            return null;
+        }
+
+        key.cancel();
+        watchers.remove(key);
+        watchKeys.remove(source.file.getParent());
+        return watchKeys.isEmpty() ? closeWatchService() : null;
+    }
+
+    /**
+     * Ends the watcher thread, it is started again by the next registration.
+     *
+     * @return the watcher thread, null if there is none
+     */
+    private static Thread closeWatchService() {
+        assert Thread.holdsLock(FileSynonymRuleSource.class);
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOGGER.warn("Close synonym file watcher failed!", e);
+            }
+            watchService = null;
+        }
+        Thread thread = watcherThread;
+        watcherThread = null;
+        return thread;
+    }
+
+    /**
+     * Waits for the watcher thread outside the class lock, which the thread takes to look up the sources.
+     */
+    private static void join(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(WATCHER_JOIN_TIMEOUT_MILLIS);
+            if (thread.isAlive()) {
+                LOGGER.warn("Synonym file watcher did not stop in " + WATCHER_JOIN_TIMEOUT_MILLIS + "ms.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized List<FileSynonymRuleSource> getWatchers(WatchKey key) {
+        List<FileSynonymRuleSource> sources = watchers.get(key);
+        return sources == null ? new ArrayList<>() : new ArrayList<>(sources);
+    }
+
+    private static void watchLoop(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            List<FileSynonymRuleSource> sources = getWatchers(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                Object context = event.context();
+                for (FileSynonymRuleSource source : sources) {
+                    // an overflow may hide any change, so every file of the directory is checked
+                    if (context == null || source.file.getFileName().equals(context)) {
+                        Runnable onChange = source.listener;
+                        if (onChange != null) {
+                            onChange.run();
+                        }
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.source;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleSource;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SecurityUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Downloads the rules from a http(s) url, the body has the same format as the rules file of
+ * {@link FileSynonymRuleSource}.
+ *
+ * Every version check is a conditional GET with the ETag and Last-Modified of the last download, so the body is
+ * only transferred when it changed. The body downloaded by a check which changed the version is kept for the
+ * following {@link #loadRules} call only, after that just its digest is.
+ */
+public class HttpSynonymRuleSource implements SynonymRuleSource {
+
+    private final URL url;
+
+    private final int connectTimeoutMillis;
+
+    private final int readTimeoutMillis;
+
+    private String etag;
+
+    private long lastModified;
+
+    private long version;
+
+    /** the body downloaded by the last version check which changed the version, until it is loaded **/
+    private byte[] body;
+
+    /** the digest of the body of the current version **/
+    private byte[] bodyDigest;
+
+    public HttpSynonymRuleSource(Configuration cfg) {
+        try {
+            this.url = new URL(cfg.getRulesUrl());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("invalid rules_url [" + cfg.getRulesUrl() + "]", e);
+        }
+        this.connectTimeoutMillis = (int) cfg.getRulesUrlConnectTimeout().millis();
+        this.readTimeoutMillis = (int) cfg.getRulesUrlReadTimeout().millis();
+    }
+
+    @Override
+    public synchronized long getVersion() throws Exception {
+        download(true);
+        return version;
+    }
+
+    /**
+     * @param conditional whether to download the body only if it changed since the last download
+     */
+    private void download(boolean conditional) throws IOException {
+        SecurityUtils.doPrivileged(() -> {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(connectTimeoutMillis);
+                connection.setReadTimeout(readTimeoutMillis);
+                connection.setUseCaches(false);
+                if (conditional && version > 0) {
+                    if (etag != null) {
+                        connection.setRequestProperty("If-None-Match", etag);
+                    }
+                    if (lastModified > 0) {
+                        connection.setIfModifiedSince(lastModified);
+                    }
+                }
+
+                int status = connection.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    return null;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("download synonym rules from [" + url + "] failed with status " + status);
+                }
+
+                byte[] downloaded = read(connection.getInputStream());
+                etag = connection.getHeaderField("ETag");
+                lastModified = connection.getLastModified();
+                // servers without validators answer every check with the body, the version only moves when it changed
+                byte[] downloadedDigest = digest(downloaded);
+                if (bodyDigest == null || !Arrays.equals(bodyDigest, downloadedDigest)) {
+                    bodyDigest = downloadedDigest;
+                    version = Math.max(lastModified > 0 ? lastModified : System.currentTimeMillis(), version + 1);
+                    body = downloaded;
+                } else if (!conditional) {
+                    body = downloaded;
+                }
+                return null;
+            } finally {
+                connection.disconnect();
+            }
+        });
+    }
+
+    @Override
+    public synchronized int loadRules(long version, Consumer<SynonymRule> consumer) throws Exception {
+        if (body == null || version != this.version) {
+            // the version was not checked by this source, e.g. it was taken from a snapshot, or was loaded already
+            download(false);
+        }
+
+        byte[] rules = this.body;
+        this.body = null;
+        return SynonymRuleSources.readRules(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(rules),
+                StandardCharsets.UTF_8)), consumer);
+    }
+
+    @Override
+    public boolean supportsRuleChanges() {
+        return false;
+    }
+
+    @Override
+    public List<SynonymRule> loadRuleChanges(long fromVersion, long toVersion) {
+        throw new UnsupportedOperationException("rule changes of a url are not tracked");
+    }
+
+    @Override
+    public boolean watch(Runnable listener) {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        this.body = null;
+    }
+
+    private static byte[] digest(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.source;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.JDBCUtils;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymTaskExecutor;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * The dictionaries of one synonym database used on this node. The max versions of all dictionaries are polled with
+ * one grouped query and only the dictionaries whose version changed are told to check, so a change of a small
+ * dictionary does not reload the others. Full loads share one scan of the rule table ordered by the dictionary: loads
+ * running at the same time are batched, and the first full load after a poll also reads the rows of the other
+ * changed dictionaries which reload fully. Their rows are kept until their own loads, which run one after another on
+ * the dynamic_synonym thread pool, take them, and are dropped if no load takes them within db_check_max_interval.
+ *
+ * The poll interval, its backoff, the retry interval and the connection pool are the settings of the first dictionary
+ * of the database which is still in use.
+ */
+final class JDBCDictionaryGroup {
+
+    private static final Logger LOGGER = ESLoggerFactory.getLogger(JDBCDictionaryGroup.class.getName());
+
+    /** versions polled more recently are answered from the last poll, e.g. for the check the poll triggered **/
+    private static final long VERSION_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /** [thread pool of the node, db url] -> group, guarded by the class lock **/
+    private static final Map<List<Object>, JDBCDictionaryGroup> GROUPS = new HashMap<>();
+
+    private final List<Object> key;
+
+    /** the settings of the first member, guarded by the class lock and read without it **/
+    private volatile Configuration configuration;
+
+    private final SynonymTaskExecutor poller;
+
+    /** the dictionaries of the sources using the database, guarded by this **/
+    private final List<Member> members = new ArrayList<>();
+
+    /** dictionary -> max version of the last poll, guarded by this **/
+    private Map<String, Long> versions = Collections.emptyMap();
+
+    private long polledNanos;
+
+    private boolean polled = false;
+
+    private ScheduledFuture<?> nextPoll;
+
+    private long idleDelayMillis;
+
+    private int failures = 0;
+
+    /** serializes the version queries, so concurrent checks share one; the group lock is not held by queries **/
+    private final Object pollLock = new Object();
+
+    /** full loads waiting for the next scan, guarded by the scan lock **/
+    private final List<ScanRequest> pendingScans = new ArrayList<>();
+
+    private boolean scanning = false;
+
+    private final Object scanLock = new Object();
+
+    private JDBCDictionaryGroup(List<Object> key, Configuration cfg, ThreadPool threadPool) {
+        this.key = key;
+        this.configuration = cfg;
+        this.poller = new SynonymTaskExecutor(threadPool);
+        this.idleDelayMillis = cfg.getDBCheckInterval().millis();
+        JDBCUtils.acquirePool(cfg);
+    }
+
+    /**
+     * Adds the configured dictionary to the group of its database on the node the thread pool belongs to.
+     */
+    static synchronized Member join(Configuration cfg, BooleanSupplier follower, ThreadPool threadPool) {
+        JDBCDictionaryGroup group = GROUPS.computeIfAbsent(Arrays.asList(threadPool, cfg.getDBUrl()),
+                key -> new JDBCDictionaryGroup(key, cfg, threadPool));
+        Member member = new Member(group, cfg, follower);
+        synchronized (group) {
+            group.members.add(member);
+        }
+        return member;
+    }
+
+    private static synchronized void leave(Member member) {
+        JDBCDictionaryGroup group = member.group;
+        Configuration next;
+        synchronized (group) {
+            group.members.remove(member);
+            member.dropPrefetched();
+            if (group.members.isEmpty()) {
+                if (group.nextPoll != null) {
+                    group.nextPoll.cancel(false);
+                    group.nextPoll = null;
+                }
+                next = null;
+            } else {
+                next = group.members.get(0).configuration;
+            }
+        }
+
+        Configuration previous = group.configuration;
+        if (next == null) {
+            GROUPS.remove(group.key, group);
+            group.poller.shutdown();
+            JDBCUtils.releasePool(previous);
+        } else if (member.configuration == previous) {
+            // the settings of the group left with the member, the next member in line provides them
+            JDBCUtils.acquirePool(next);
+            group.configuration = next;
+            JDBCUtils.releasePool(previous);
+        }
+    }
+
+    private synchronized void watch(Member member, Runnable listener) {
+        member.listener = listener;
+        if (nextPoll == null) {
+            nextPoll = poller.schedule(this::pollAndNotify, idleDelayMillis);
+        }
+    }
+
+    private long getVersion(String dictionary) throws Exception {
+        Long version = poll(false).get(dictionary);
+        return version == null ? 0L : version;
+    }
+
+    /**
+     * Queries the versions of all dictionaries, a caller waiting for a running query takes its result.
+     *
+     * @param force false to answer from a poll younger than {@link #VERSION_MAX_AGE_NANOS}
+     */
+    private Map<String, Long> poll(boolean force) throws Exception {
+        long waitStart = System.nanoTime();
+        synchronized (pollLock) {
+            synchronized (this) {
+                if (polled && (polledNanos - waitStart > 0
+                        || (!force && System.nanoTime() - polledNanos <= VERSION_MAX_AGE_NANOS))) {
+                    return versions;
+                }
+            }
+
+            Map<String, Long> polledVersions = JDBCUtils.queryMaxDictionaryVersions(configuration);
+            synchronized (this) {
+                this.versions = polledVersions;
+                this.polledNanos = System.nanoTime();
+                this.polled = true;
+            }
+            return polledVersions;
+        }
+    }
+
+    private void pollAndNotify() {
+        Configuration cfg = configuration;
+        Map<String, Long> polledVersions = null;
+        Exception failure = null;
+        boolean followers;
+        synchronized (this) {
+            followers = members.stream().allMatch(member -> member.follower.getAsBoolean());
+        }
+        // the members of follower nodes take their maps from the loader, no need to poll for them
+        if (!followers) {
+            try {
+                polledVersions = poll(true);
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        List<Runnable> changed = new ArrayList<>();
+        synchronized (this) {
+            if (members.isEmpty()) {
+                return;
+            }
+
+            long delayMillis;
+            long now = System.nanoTime();
+            for (Member member : members) {
+                // e.g. the check of the member found the version loaded already
+                if (member.pendingVersion > 0 && now - member.pendingNanos > cfg.getDBCheckMaxInterval().nanos()) {
+                    member.pendingVersion = 0L;
+                    member.dropPrefetched();
+                }
+            }
+
+            if (polledVersions != null) {
+                for (Member member : members) {
+                    Long version = polledVersions.get(member.dictionary);
+                    long currentVersion = version == null ? 0L : version;
+                    if (member.listener != null && currentVersion != member.notifiedVersion) {
+                        // the first poll after the initial load only tells the member to check
+                        if (member.notifiedVersion >= 0) {
+                            member.markPending(currentVersion, now);
+                        }
+                        member.notifiedVersion = currentVersion;
+                        changed.add(member.listener);
+                    }
+                }
+                failures = 0;
+                idleDelayMillis = !changed.isEmpty() ? cfg.getDBCheckInterval().millis()
+                        : Math.min(idleDelayMillis * 2, cfg.getDBCheckMaxInterval().millis());
+                delayMillis = idleDelayMillis;
+            } else if (failure != null) {
+                LOGGER.warn("Failed to query synonym dictionary versions!", failure);
+                delayMillis = Math.min(cfg.getDBCheckRetryInterval().millis() << Math.min(failures++, 16),
+                        cfg.getDBCheckMaxInterval().millis());
+            } else {
+                // the loader node polls the db, the monitors of this node ask it for newer maps
+                delayMillis = cfg.getDBCheckMaxInterval().millis();
+            }
+            nextPoll = poller.schedule(this::pollAndNotify, delayMillis);
+        }
+
+        for (Runnable listener : changed) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Streams the available rules of a dictionary up to the version. Rows read for the dictionary by the scan of
+     * another load are taken if they are of the version. Otherwise the first caller scans for itself, for all loads
+     * which queue up meanwhile and for the other changed dictionaries; the queued loads wait for that scan.
+     */
+    private int loadRules(Member member, long version, Consumer<SynonymRule> consumer) throws Exception {
+        List<SynonymRule> prefetched = takePrefetched(member, version);
+        if (prefetched != null) {
+            for (SynonymRule rule : prefetched) {
+                consumer.accept(rule);
+            }
+            return prefetched.size();
+        }
+
+        ScanRequest request = new ScanRequest(member, version, consumer);
+        List<ScanRequest> batch;
+        boolean interrupted = false;
+        synchronized (scanLock) {
+            pendingScans.add(request);
+            while (scanning && !request.done) {
+                try {
+                    scanLock.wait();
+                } catch (InterruptedException e) {
+                    if (pendingScans.remove(request)) {
+                        throw e;
+                    }
+                    // another thread scans for the request already and uses its consumer
+                    interrupted = true;
+                }
+            }
+
+            if (!request.done) {
+                scanning = true;
+                batch = new ArrayList<>(pendingScans);
+                pendingScans.clear();
+            } else {
+                batch = null;
+            }
+        }
+
+        if (batch != null) {
+            List<ScanRequest> prefetches = prefetchRequests(batch);
+            batch.addAll(prefetches);
+            scan(batch);
+            for (ScanRequest prefetch : prefetches) {
+                if (prefetch.error == null) {
+                    putPrefetched(prefetch);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return request.getCount();
+    }
+
+    private synchronized List<SynonymRule> takePrefetched(Member member, long version) {
+        List<SynonymRule> prefetched = member.prefetchedVersion == version ? member.prefetched : null;
+        member.dropPrefetched();
+        member.pendingVersion = 0L;
+        return prefetched;
+    }
+
+    /**
+     * @return requests reading the rows of the changed dictionaries which did not load yet, along with the batch
+     */
+    private synchronized List<ScanRequest> prefetchRequests(List<ScanRequest> batch) {
+        List<ScanRequest> prefetches = new ArrayList<>();
+        for (Member member : members) {
+            if (member.pendingVersion <= 0 || member.prefetched != null) {
+                continue;
+            }
+            boolean loading = false;
+            for (ScanRequest request : batch) {
+                loading |= request.member == member;
+            }
+            if (!loading) {
+                List<SynonymRule> rules = new ArrayList<>();
+                prefetches.add(new ScanRequest(member, member.pendingVersion, rules::add, rules));
+            }
+        }
+        return prefetches;
+    }
+
+    private synchronized void putPrefetched(ScanRequest prefetch) {
+        Member member = prefetch.member;
+        // the member may have loaded, left or seen another change meanwhile
+        if (member.pendingVersion == prefetch.version && members.contains(member)) {
+            member.prefetched = prefetch.rules;
+            member.prefetchedVersion = prefetch.version;
+        }
+    }
+
+    private void scan(List<ScanRequest> batch) {
+        try {
+            List<String> dictionaries = new ArrayList<>();
+            List<Long> maxVersions = new ArrayList<>();
+            for (ScanRequest request : batch) {
+                dictionaries.add(request.member.dictionary);
+                maxVersions.add(request.version);
+            }
+
+            // the rows come ordered by the dictionary, every request gets its rows in one run
+            JDBCUtils.queryDictionaryRules(configuration, dictionaries, maxVersions, (dictionary, version, rule) -> {
+                for (ScanRequest request : batch) {
+                    if (request.member.dictionary.equals(dictionary)) {
+                        request.accept(version, rule);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            for (ScanRequest request : batch) {
+                if (request.error == null) {
+                    request.error = e;
+                }
+            }
+        } finally {
+            synchronized (scanLock) {
+                for (ScanRequest request : batch) {
+                    request.done = true;
+                }
+                scanning = false;
+                scanLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A dictionary of the group, one per rule source.
+     */
+    static final class Member {
+
+        private final JDBCDictionaryGroup group;
+
+        private final Configuration configuration;
+
+        private final String dictionary;
+
+        /** true while the node of the dictionary takes its maps from the loader node **/
+        private final BooleanSupplier follower;
+
+        /** only dictionaries which reload fully read their rows along with the scan of another dictionary **/
+        private final boolean fullReload;
+
+        /** called when the version of the dictionary changed, guarded by the group **/
+        private Runnable listener;
+
+        /** the version the listener was last called for, guarded by the group **/
+        private long notifiedVersion = -1L;
+
+        /** the version the listener was called for and which was not loaded yet, 0 if none; guarded by the group **/
+        private long pendingVersion = 0L;
+
+        private long pendingNanos;
+
+        /** the rows of the pending version read by the scan of another dictionary, guarded by the group **/
+        private List<SynonymRule> prefetched;
+
+        private long prefetchedVersion = -1L;
+
+        private Member(JDBCDictionaryGroup group, Configuration cfg, BooleanSupplier follower) {
+            this.group = group;
+            this.configuration = cfg;
+            this.follower = follower;
+            this.dictionary = cfg.getDictionary();
+            this.fullReload = !cfg.isDeltaReload();
+        }
+
+        private void markPending(long version, long nanos) {
+            if (fullReload && version > 0) {
+                pendingVersion = version;
+                pendingNanos = nanos;
+            }
+            if (prefetchedVersion != version) {
+                dropPrefetched();
+            }
+        }
+
+        private void dropPrefetched() {
+            prefetched = null;
+            prefetchedVersion = -1L;
+        }
+
+        long getVersion() throws Exception {
+            return group.getVersion(dictionary);
+        }
+
+        int loadRules(long version, Consumer<SynonymRule> consumer) throws Exception {
+            return group.loadRules(this, version, consumer);
+        }
+
+        List<SynonymRule> loadRuleChanges(long fromVersion, long toVersion) throws Exception {
+            return JDBCUtils.queryDictionaryRuleChanges(group.configuration, dictionary, fromVersion, toVersion);
+        }
+
+        void watch(Runnable listener) {
+            group.watch(this, listener);
+        }
+
+        void leave() {
+            JDBCDictionaryGroup.leave(this);
+        }
+    }
+
+    /**
+     * A full load waiting for its rows, or the rows read for a changed dictionary along with it. The fields are
+     * written by the scanning thread and read by the loading one after the scan lock handed over {@link #done}.
+     */
+    private static final class ScanRequest {
+
+        private final Member member;
+
+        private final long version;
+
+        private final Consumer<SynonymRule> consumer;
+
+        /** the collected rows of a prefetch, null for a load **/
+        private final List<SynonymRule> rules;
+
+        private int count = 0;
+
+        private Exception error;
+
+        private boolean done = false;
+
+        private ScanRequest(Member member, long version, Consumer<SynonymRule> consumer) {
+            this(member, version, consumer, null);
+        }
+
+        private ScanRequest(Member member, long version, Consumer<SynonymRule> consumer, List<SynonymRule> rules) {
+            this.member = member;
+            this.version = version;
+            this.consumer = consumer;
+            this.rules = rules;
+        }
+
+        private void accept(long ruleVersion, SynonymRule rule) {
+            if (error != null || (version > 0 && ruleVersion > version)) {
+                return;
+            }
+            try {
+                consumer.accept(rule);
+                count++;
+            } catch (RuntimeException e) {
+                // e.g. the build of this dictionary exceeds its memory limit, the other loads go on
+                error = e;
+            }
+        }
+
+        private int getCount() throws Exception {
+            if (error != null) {
+                throw error;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.source;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleSource;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.JDBCUtils;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Reads the rules from the dynamic_synonym_rule table, the version is the max version of the table. With the
+ * dictionary setting only the rows of that dictionary are read and the version is the max version of the dictionary,
+ * see {@link JDBCDictionaryGroup}.
+ */
+public class JDBCSynonymRuleSource implements SynonymRuleSource {
+
+    private final Configuration configuration;
+
+    /** null if the table has no dictionary column **/
+    private final JDBCDictionaryGroup.Member dictionary;
+
+    /**
+     * @param follower whether the node takes the maps from the loader node, see {@link JDBCDictionaryGroup}
+     * @param threadPool the thread pool of the node polling the dictionaries, null outside a node
+     */
+    public JDBCSynonymRuleSource(Configuration cfg, BooleanSupplier follower, ThreadPool threadPool) {
+        this.configuration = cfg;
+        this.dictionary = cfg.getDictionary() != null ? JDBCDictionaryGroup.join(cfg, follower, threadPool) : null;
+        if (dictionary == null) {
+            JDBCUtils.acquirePool(cfg);
+        }
+    }
+
+    @Override
+    public long getVersion() throws Exception {
+        if (dictionary != null) {
+            return dictionary.getVersion();
+        }
+        return JDBCUtils.queryMaxSynonymRuleVersion(configuration);
+    }
+
+    @Override
+    public int loadRules(long version, Consumer<SynonymRule> consumer) throws Exception {
+        if (dictionary != null) {
+            return dictionary.loadRules(version, consumer);
+        }
+        return JDBCUtils.querySynonymRules(configuration, version, consumer);
+    }
+
+    @Override
+    public boolean supportsRuleChanges() {
+        return true;
+    }
+
+    @Override
+    public List<SynonymRule> loadRuleChanges(long fromVersion, long toVersion) throws Exception {
+        if (dictionary != null) {
+            return dictionary.loadRuleChanges(fromVersion, toVersion);
+        }
+        return JDBCUtils.querySynonymRuleChanges(configuration, fromVersion, toVersion);
+    }
+
+    @Override
+    public boolean watch(Runnable listener) {
+        if (dictionary == null) {
+            return false;
+        }
+        // the versions of all dictionaries of the db are polled together
+        dictionary.watch(listener);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // the connection pools are shared by the sources of the same db and pool settings
+        if (dictionary != null) {
+            dictionary.leave();
+        } else {
+            JDBCUtils.releasePool(configuration);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.source;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleSource;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+public final class SynonymRuleSources {
+
+    private SynonymRuleSources() {
+    }
+
+    /**
+     * @param follower whether the node takes the maps from the loader node instead of polling the source
+     * @param threadPool the thread pool of the node, null outside a node
+     * @return the source configured by rules_path, rules_url or db_url, in that order
+     */
+    public static SynonymRuleSource create(Configuration cfg, BooleanSupplier follower, ThreadPool threadPool) {
+        if (cfg.getRulesPath() != null) {
+            return new FileSynonymRuleSource(cfg);
+        } else if (cfg.getRulesUrl() != null) {
+            return new HttpSynonymRuleSource(cfg);
+        } else if (cfg.getDBUrl() != null) {
+            return new JDBCSynonymRuleSource(cfg, follower, threadPool);
+        }
+
+        throw new IllegalArgumentException("one of rules_path, rules_url or db_url is required");
+    }
+
+    /**
+     * Reads rules in the solr synonyms format, one rule per line, blank lines and lines starting with '#' are
+     * skipped. The line number is the id of the rule.
+     *
+     * @return the number of rules read
+     */
+    static int readRules(BufferedReader reader, Consumer<SynonymRule> consumer) throws IOException {
+        int count = 0;
+        long lineNumber = 0;
+        try (BufferedReader in = reader) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                consumer.accept(new SynonymRule(lineNumber, line, SynonymRule.STATUS_AVAILABLE));
+                count++;
+            }
+        }
+        return count;
+    }
+}
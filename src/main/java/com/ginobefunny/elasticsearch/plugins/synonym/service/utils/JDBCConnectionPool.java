@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.utils;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small pool of connections to one synonym database. Every pooled connection keeps its prepared statements,
+ * so the statements are only parsed once per connection. The pool is shared by the rule sources with the same
+ * {@link #key(Configuration) settings} and closed with the last of them, see {@link JDBCUtils#acquirePool}.
+ */
+final class JDBCConnectionPool {
+
+    /** idle connections are validated before reuse once they have been idle for this long **/
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static volatile boolean driverLoaded = false;
+
+    private final String dbUrl;
+
+    private final Properties properties = new Properties();
+
+    private final int connectTimeoutMillis;
+
+    private final int queryTimeoutSeconds;
+
+    private final int fetchSize;
+
+    private final Semaphore permits;
+
+    private final LinkedBlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+
+    /** the rule sources using the pool, guarded by the JDBCUtils class lock **/
+    int references = 0;
+
+    private volatile boolean closed = false;
+
+    JDBCConnectionPool(Configuration cfg) {
+        this.dbUrl = cfg.getDBUrl();
+        this.connectTimeoutMillis = (int) cfg.getDBConnectTimeout().millis();
+        this.queryTimeoutSeconds = (int) cfg.getDBQueryTimeout().seconds();
+        this.fetchSize = cfg.getDBFetchSize();
+        this.permits = new Semaphore(cfg.getDBPoolSize());
+
+        // MySQL Connector/J properties, merged with the ones given in the url
+        properties.setProperty("connectTimeout", String.valueOf(connectTimeoutMillis));
+        properties.setProperty("socketTimeout", String.valueOf(cfg.getDBQueryTimeout().millis()));
+        if (fetchSize > 0) {
+            // stream result sets with a server side cursor instead of buffering them in the driver
+            properties.setProperty("useCursorFetch", "true");
+        }
+    }
+
+    /**
+     * @return the settings the pool is created from, sources with the same key share the pool
+     */
+    static String key(Configuration cfg) {
+        return cfg.getDBUrl() + ";pool_size=" + cfg.getDBPoolSize() + ";connect_timeout="
+                + cfg.getDBConnectTimeout().millis() + ";query_timeout=" + cfg.getDBQueryTimeout().millis()
+                + ";fetch_size=" + cfg.getDBFetchSize();
+    }
+
+    PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("The synonym db connection pool is closed.");
+        }
+
+        try {
+            if (!permits.tryAcquire(connectTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("Timeout waiting for a synonym db connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a synonym db connection.", e);
+        }
+
+        try {
+            PooledConnection connection;
+            while ((connection = idleConnections.pollFirst()) != null) {
+                if (connection.isUsable()) {
+                    return connection;
+                }
+                connection.close();
+            }
+
+            return new PooledConnection(connect());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool, a connection which failed or comes back after the pool closed is closed
+     * instead.
+     */
+    void release(PooledConnection connection, boolean failed) {
+        try {
+            if (failed || closed) {
+                connection.close();
+            } else {
+                connection.lastUsed = System.currentTimeMillis();
+                idleConnections.offerFirst(connection);
+                if (closed) {
+                    // raced with close()
+                    closeIdleConnections();
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes the idle connections and their statements, the connections in use are closed when they are released.
+     */
+    void close() {
+        closed = true;
+        closeIdleConnections();
+    }
+
+    private void closeIdleConnections() {
+        PooledConnection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        if (!driverLoaded) {
+            try {
+                Class.forName("com.mysql.jdbc.Driver");
+                driverLoaded = true;
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("MySQL driver not found.", e);
+            }
+        }
+
+        return DriverManager.getConnection(dbUrl, properties);
+    }
+
+    final class PooledConnection {
+
+        private final Connection connection;
+
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return the cached forward-only, read-only statement of the sql, its parameters cleared
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                stmt.setQueryTimeout(queryTimeoutSeconds);
+                if (fetchSize > 0) {
+                    stmt.setFetchSize(fetchSize);
+                }
+                statements.put(sql, stmt);
+            } else {
+                stmt.clearParameters();
+            }
+
+            return stmt;
+        }
+
+        private boolean isUsable() {
+            try {
+                if (connection.isClosed()) {
+                    return false;
+                }
+
+                return System.currentTimeMillis() - lastUsed < VALIDATE_AFTER_IDLE_MILLIS
+                        || connection.isValid(Math.max(1, connectTimeoutMillis / 1000));
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        private void close() {
+            for (PreparedStatement stmt : statements.values()) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                }
+            }
+            statements.clear();
+
+            try {
+                connection.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
@@ -13,83 +13,242 @@
  */
 package com.ginobefunny.elasticsearch.plugins.synonym.service.utils;
 
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Created by ginozhang on 2017/1/12.
  */
 public final class JDBCUtils {
 
-    public static long queryMaxSynonymRuleVersion(String dbUrl) throws Exception {
-        long maxVersion = 0;
-        Connection conn = null;
-        Statement stmt = null;
-        ResultSet rs = null;
+    private static final String MAX_VERSION_SQL = "SELECT max(version) VERSION FROM dynamic_synonym_rule";
+
+    private static final String RULES_SQL = "SELECT id, rule FROM dynamic_synonym_rule WHERE version <= ? and status = 1";
+
+    private static final String RULE_CHANGES_SQL = "SELECT id, rule, status FROM dynamic_synonym_rule"
+            + " WHERE version > ? and version <= ? ORDER BY version";
+
+    private static final String DICTIONARY_MAX_VERSIONS_SQL = "SELECT dictionary, max(version) VERSION"
+            + " FROM dynamic_synonym_rule GROUP BY dictionary";
+
+    private static final String DICTIONARY_RULES_SQL = "SELECT dictionary, id, rule, version FROM dynamic_synonym_rule"
+            + " WHERE status = 1 and (%s) ORDER BY dictionary";
+
+    private static final String DICTIONARY_RULE_CHANGES_SQL = "SELECT id, rule, status FROM dynamic_synonym_rule"
+            + " WHERE dictionary = ? and version > ? and version <= ? ORDER BY version";
+
+    /**
+     * Receives the rows of a scan over several dictionaries.
+     */
+    public interface DictionaryRuleConsumer {
+        void accept(String dictionary, long version, SynonymRule rule);
+    }
+
+    /** pool key -> connection pool, guarded by the class lock **/
+    private static final Map<String, JDBCConnectionPool> POOLS = new HashMap<>();
+
+    /**
+     * Takes a reference to the connection pool of the configuration's db and pool settings, which is created by
+     * the first reference. Every reference must be {@link #releasePool(Configuration) released}.
+     */
+    public static synchronized void acquirePool(Configuration cfg) {
+        POOLS.computeIfAbsent(JDBCConnectionPool.key(cfg), key -> new JDBCConnectionPool(cfg)).references++;
+    }
+
+    /**
+     * Releases a reference to the connection pool, the last one closes the pool with its connections.
+     */
+    public static synchronized void releasePool(Configuration cfg) {
+        String key = JDBCConnectionPool.key(cfg);
+        JDBCConnectionPool pool = POOLS.get(key);
+        if (pool != null && --pool.references <= 0) {
+            POOLS.remove(key);
+            pool.close();
+        }
+    }
+
+    /**
+     * Closes all connection pools when the node shuts down.
+     */
+    public static synchronized void closePools() {
+        for (JDBCConnectionPool pool : POOLS.values()) {
+            pool.close();
+        }
+        POOLS.clear();
+    }
+
+    public static long queryMaxSynonymRuleVersion(Configuration cfg) throws Exception {
+        JDBCConnectionPool pool = getPool(cfg);
+        JDBCConnectionPool.PooledConnection conn = pool.acquire();
+        boolean failed = true;
         try {
-            Class.forName("com.mysql.jdbc.Driver");
-            conn = DriverManager.getConnection(dbUrl);
-            stmt = conn.createStatement();
-            String sql = "SELECT max(version) VERSION FROM dynamic_synonym_rule";
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                maxVersion = rs.getLong("VERSION");
+            long maxVersion = 0;
+            PreparedStatement stmt = conn.prepare(MAX_VERSION_SQL);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    maxVersion = rs.getLong("VERSION");
+                }
             }
+
+            failed = false;
+            return maxVersion;
         } finally {
-            closeQuietly(conn, stmt, rs);
+            pool.release(conn, failed);
         }
-
-        return maxVersion;
     }
 
-    public static List<String> querySynonymRules(String dbUrl, long lastestVersion) throws Exception {
-        List<String> list = new ArrayList<String>();
-        Connection conn = null;
-        Statement stmt = null;
-        ResultSet rs = null;
+    /**
+     * Streams the available rules up to the given version to the consumer, without buffering the result.
+     *
+     * @return the number of rules read
+     */
+    public static int querySynonymRules(Configuration cfg, long lastestVersion, Consumer<SynonymRule> consumer) throws Exception {
+        JDBCConnectionPool pool = getPool(cfg);
+        JDBCConnectionPool.PooledConnection conn = pool.acquire();
+        boolean failed = true;
         try {
-            Class.forName("com.mysql.jdbc.Driver");
-            conn = DriverManager.getConnection(dbUrl);
-            stmt = conn.createStatement();
-            String sql;
-            if (lastestVersion > 0) {
-                sql = "SELECT rule FROM dynamic_synonym_rule WHERE version <= " + lastestVersion + " and status = 1";
-            } else {
-                sql = "SELECT rule FROM dynamic_synonym_rule WHERE status = 1";
+            int count = 0;
+            PreparedStatement stmt = conn.prepare(RULES_SQL);
+            stmt.setLong(1, lastestVersion > 0 ? lastestVersion : Long.MAX_VALUE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new SynonymRule(rs.getLong(1), rs.getString(2), SynonymRule.STATUS_AVAILABLE));
+                    count++;
+                }
             }
 
-            rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                list.add(rs.getString("rule"));
+            failed = false;
+            return count;
+        } finally {
+            pool.release(conn, failed);
+        }
+    }
+
+    /**
+     * Query the rules changed in (fromVersion, toVersion], including the ones which became unavailable.
+     */
+    public static List<SynonymRule> querySynonymRuleChanges(Configuration cfg, long fromVersion, long toVersion) throws Exception {
+        List<SynonymRule> list = new ArrayList<SynonymRule>();
+        JDBCConnectionPool pool = getPool(cfg);
+        JDBCConnectionPool.PooledConnection conn = pool.acquire();
+        boolean failed = true;
+        try {
+            PreparedStatement stmt = conn.prepare(RULE_CHANGES_SQL);
+            stmt.setLong(1, fromVersion);
+            stmt.setLong(2, toVersion);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    list.add(new SynonymRule(rs.getLong(1), rs.getString(2), rs.getInt(3)));
+                }
             }
+
+            failed = false;
         } finally {
-            closeQuietly(conn, stmt, rs);
+            pool.release(conn, failed);
         }
 
         return list;
-
     }
 
-    private static void closeQuietly(Connection conn, Statement stmt, ResultSet rs) {
-        if (rs != null) {
-            try {
-                rs.close();
-            } catch (SQLException e) {
+    /**
+     * @return dictionary -> max version of its rules, for all dictionaries of the table in one query
+     */
+    public static Map<String, Long> queryMaxDictionaryVersions(Configuration cfg) throws Exception {
+        JDBCConnectionPool pool = getPool(cfg);
+        JDBCConnectionPool.PooledConnection conn = pool.acquire();
+        boolean failed = true;
+        try {
+            Map<String, Long> versions = new HashMap<>();
+            PreparedStatement stmt = conn.prepare(DICTIONARY_MAX_VERSIONS_SQL);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    versions.put(rs.getString(1), rs.getLong(2));
+                }
             }
+
+            failed = false;
+            return versions;
+        } finally {
+            pool.release(conn, failed);
         }
-        if (stmt != null) {
-            try {
-                stmt.close();
-            } catch (SQLException e) {
+    }
+
+    /**
+     * Streams the available rules of several dictionaries, each up to its version, in one scan ordered by the
+     * dictionary. A dictionary may be given more than once with different versions, then the consumer receives the
+     * rows up to the highest of them and filters them itself.
+     */
+    public static void queryDictionaryRules(Configuration cfg, List<String> dictionaries, List<Long> versions,
+                                            DictionaryRuleConsumer consumer) throws Exception {
+        StringBuilder condition = new StringBuilder();
+        for (int i = 0; i < dictionaries.size(); i++) {
+            condition.append(i == 0 ? "" : " or ").append("(dictionary = ? and version <= ?)");
+        }
+
+        JDBCConnectionPool pool = getPool(cfg);
+        JDBCConnectionPool.PooledConnection conn = pool.acquire();
+        boolean failed = true;
+        try {
+            PreparedStatement stmt = conn.prepare(String.format(DICTIONARY_RULES_SQL, condition));
+            for (int i = 0; i < dictionaries.size(); i++) {
+                stmt.setString(2 * i + 1, dictionaries.get(i));
+                stmt.setLong(2 * i + 2, versions.get(i) > 0 ? versions.get(i) : Long.MAX_VALUE);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(rs.getString(1), rs.getLong(4),
+                            new SynonymRule(rs.getLong(2), rs.getString(3), SynonymRule.STATUS_AVAILABLE));
+                }
             }
+
+            failed = false;
+        } finally {
+            pool.release(conn, failed);
         }
-        if (conn != null) {
-            try {
-                conn.close();
-            } catch (SQLException e) {
+    }
+
+    /**
+     * Query the rules of a dictionary changed in (fromVersion, toVersion], including the ones which became
+     * unavailable.
+     */
+    public static List<SynonymRule> queryDictionaryRuleChanges(Configuration cfg, String dictionary, long fromVersion,
+                                                               long toVersion) throws Exception {
+        List<SynonymRule> list = new ArrayList<SynonymRule>();
+        JDBCConnectionPool pool = getPool(cfg);
+        JDBCConnectionPool.PooledConnection conn = pool.acquire();
+        boolean failed = true;
+        try {
+            PreparedStatement stmt = conn.prepare(DICTIONARY_RULE_CHANGES_SQL);
+            stmt.setString(1, dictionary);
+            stmt.setLong(2, fromVersion);
+            stmt.setLong(3, toVersion);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    list.add(new SynonymRule(rs.getLong(1), rs.getString(2), rs.getInt(3)));
+                }
             }
+
+            failed = false;
+        } finally {
+            pool.release(conn, failed);
+        }
+
+        return list;
+    }
+
+    private static synchronized JDBCConnectionPool getPool(Configuration cfg) {
+        JDBCConnectionPool pool = POOLS.get(JDBCConnectionPool.key(cfg));
+        if (pool == null) {
+            throw new IllegalStateException("no synonym db connection pool acquired, the rule source is closed");
         }
+        return pool;
     }
 
 }
@@ -14,38 +14,215 @@
 package com.ginobefunny.elasticsearch.plugins.synonym.service.utils;
 
 import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymMetrics;
 import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.LongSupplier;
+
 /**
  * Created by ginozhang on 2017/1/12.
+ *
+ * Checks the version of the rule source on the dictionary's {@link SynonymTaskExecutor} and reloads the rules when
+ * it changed. The next check is scheduled after every run: the delay doubles up to the max interval while nothing
+ * changes, goes back to the interval after a change and starts from the retry interval after a failure.
  */
 public class Monitor implements Runnable {
 
     private static final Logger LOGGER = ESLoggerFactory.getLogger(Monitor.class.getName());
 
-    private Configuration configuration;
+    private static final long FIRST_CHECK_DELAY_MILLIS = 1000L;
+
+    private final Configuration configuration;
+
+    private final SynonymRuleManager manager;
+
+    private final SynonymTaskExecutor executor;
+
+    /** delay before the next check while nothing changes **/
+    private long idleDelayMillis;
+
+    private int failures = 0;
+
+    private ScheduledFuture<?> nextCheck;
+
+    /**
+     * Numbers the scheduled checks. A timer which already handed its check to the executor cannot be cancelled
+     * anymore, the check is skipped if another one was scheduled or run meanwhile.
+     */
+    private long scheduledCheck = 0L;
+
+    private boolean stopped = false;
+
+    private boolean watched = false;
+
+    public Monitor(SynonymRuleManager manager, SynonymTaskExecutor executor) {
+        this.manager = manager;
+        this.configuration = manager.getConfiguration();
+        this.executor = executor;
+        this.idleDelayMillis = configuration.getDBCheckInterval().millis();
+    }
+
+    /**
+     * @param watched true if the source notifies about changes, then the checks only run at the max interval as a
+     *                safety net for missed notifications
+     */
+    public void start(boolean watched) {
+        this.watched = watched;
+        schedule(FIRST_CHECK_DELAY_MILLIS);
+    }
+
+    /**
+     * Cancels the next check, a running check completes but does not schedule another one and queued checks are
+     * skipped.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        cancelNextCheck();
+    }
 
-    private long lastUpdateVersion;
+    /**
+     * Checks the version right away instead of waiting for the scheduled check.
+     *
+     * @return the version loaded after the check
+     */
+    public Future<Long> checkNow() {
+        CompletableFuture<Long> loadedVersion = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (isStopped()) {
+                loadedVersion.complete(manager.getLoadedVersion());
+                return;
+            }
 
-    public Monitor(Configuration cfg, long initialVersion) {
-        this.configuration = cfg;
-        this.lastUpdateVersion = initialVersion;
+            cancelNextCheck();
+            check(() -> loadedVersion.complete(manager.getLoadedVersion()));
+        });
+        return loadedVersion;
     }
 
     @Override
     public void run() {
-        try {
-            long currentMaxVersion = JDBCUtils.queryMaxSynonymRuleVersion(configuration.getDBUrl());
-            if (currentMaxVersion > lastUpdateVersion) {
-                if (SynonymRuleManager.getSingleton().reloadSynonymRule(currentMaxVersion)) {
-                    lastUpdateVersion = currentMaxVersion;
+        check(() -> {
+        });
+    }
+
+    /**
+     * Runs a check and schedules the next one.
+     *
+     * @param done runs once the check completed, also if the monitor stopped meanwhile
+     */
+    private void check(Runnable done) {
+        if (isStopped()) {
+            // e.g. a check queued while the dictionary closed, its source is closed already
+            done.run();
+            return;
+        }
+
+        long lastUpdateVersion = manager.getLoadedVersion();
+        if (manager.isFollower()) {
+            // the loader node polls the db, this node only asks it for a newer map
+            manager.fetchSynonymMap(fetchedVersion -> {
+                if (isStopped()) {
+                    done.run();
+                } else if (fetchedVersion >= 0) {
+                    completeCheck(() -> nextDelayMillis(fetchedVersion > lastUpdateVersion), done);
+                } else {
+                    // the loader cannot serve the map, e.g. it is unreachable or failed to load it, so poll the
+                    // source until it can again
+                    completeCheck(() -> pollSource(lastUpdateVersion), done);
                 }
-            }
+            });
+            return;
+        }
+
+        completeCheck(() -> pollSource(lastUpdateVersion), done);
+    }
+
+    private void completeCheck(LongSupplier check, Runnable done) {
+        long delayMillis;
+        try {
+            delayMillis = check.getAsLong();
+        } catch (Throwable t) {
+            LOGGER.error("Failed to reload synonym rule!", t);
+            delayMillis = retryDelayMillis();
+        }
+
+        schedule(delayMillis);
+        done.run();
+    }
+
+    /**
+     * @return the delay before the next check
+     */
+    private long pollSource(long lastUpdateVersion) {
+        SynonymMetrics metrics = manager.getMetrics();
+        long currentMaxVersion;
+        long start = System.nanoTime();
+        try {
+            currentMaxVersion = manager.getSource().getVersion();
+            metrics.recordPoll(System.nanoTime() - start, null);
         } catch (Exception e) {
-            LOGGER.error("Failed to reload synonym rule!", e);
+            metrics.recordPoll(System.nanoTime() - start, e);
+            LOGGER.error("Failed to query synonym rule version!", e);
+            return retryDelayMillis();
+        }
+
+        if (currentMaxVersion <= lastUpdateVersion) {
+            return nextDelayMillis(false);
+        }
+
+        if (!manager.reloadSynonymRule(currentMaxVersion)) {
+            return retryDelayMillis();
+        }
+
+        return nextDelayMillis(true);
+    }
+
+    private long nextDelayMillis(boolean changed) {
+        failures = 0;
+        if (watched) {
+            return configuration.getDBCheckMaxInterval().millis();
         }
+
+        idleDelayMillis = changed ? configuration.getDBCheckInterval().millis()
+                : Math.min(idleDelayMillis * 2, configuration.getDBCheckMaxInterval().millis());
+        return idleDelayMillis;
+    }
+
+    private long retryDelayMillis() {
+        long retryMillis = configuration.getDBCheckRetryInterval().millis() << Math.min(failures++, 16);
+        return Math.min(retryMillis, configuration.getDBCheckMaxInterval().millis());
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (!stopped) {
+            long check = ++scheduledCheck;
+            nextCheck = executor.schedule(() -> runScheduled(check), delayMillis);
+        }
+    }
+
+    private void runScheduled(long check) {
+        synchronized (this) {
+            if (check != scheduledCheck) {
+                return;
+            }
+        }
+        run();
     }
 
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    private synchronized void cancelNextCheck() {
+        scheduledCheck++;
+        if (nextCheck != null) {
+            nextCheck.cancel(false);
+            nextCheck = null;
+        }
+    }
 }
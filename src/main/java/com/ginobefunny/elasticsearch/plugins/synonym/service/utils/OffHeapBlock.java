@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.utils;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A direct buffer shared by several owners. It is freed as soon as the last owner releases it, instead of whenever
+ * the garbage collector finds the buffer unreachable. The owners must not touch the buffer after releasing it.
+ */
+public final class OffHeapBlock {
+
+    private static final Logger LOGGER = ESLoggerFactory.getLogger(Monitor.class.getName());
+
+    /** frees a direct buffer, null if the jvm does not allow it; the buffer is then left to the garbage collector **/
+    private static final BufferCleaner CLEANER = lookupCleaner();
+
+    private final ByteBuffer buffer;
+
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private OffHeapBlock(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return a block of the given size in native byte order, owned by the caller
+     */
+    public static OffHeapBlock allocate(int capacity) {
+        return new OffHeapBlock(ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder()));
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Adds an owner, the caller must own the block already.
+     */
+    public void retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("off-heap block is already freed");
+        }
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            free(buffer);
+        } else if (count < 0) {
+            throw new IllegalStateException("off-heap block released too often");
+        }
+    }
+
+    /**
+     * Frees a direct or mapped buffer right away, it must not be used afterwards.
+     */
+    public static void free(ByteBuffer buffer) {
+        if (CLEANER == null || !buffer.isDirect()) {
+            return;
+        }
+
+        try {
+            CLEANER.free(buffer);
+        } catch (Exception e) {
+            LOGGER.warn("Free off-heap buffer failed, it is left to the garbage collector.", e);
+        }
+    }
+
+    private interface BufferCleaner {
+        void free(ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * SEE: org.apache.lucene.store.MMapDirectory, Unsafe.invokeCleaner since java 9 and the buffer's Cleaner before.
+     */
+    private static BufferCleaner lookupCleaner() {
+        try {
+            return SecurityUtils.doPrivileged(() -> {
+                try {
+                    return lookupCleanerUnprivileged();
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    throw new IOException("no buffer cleaner", e);
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Off-heap synonym maps cannot be freed explicitly, they are left to the garbage collector.",
+                    e);
+            return null;
+        }
+    }
+
+    private static BufferCleaner lookupCleanerUnprivileged() throws ReflectiveOperationException {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (NoSuchMethodException e) {
+            Method cleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null) {
+                    clean.invoke(bufferCleaner);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.utils;
+
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SimpleSynonymMap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the local binary snapshot of a compiled synonym map. The file layout is:
+ * magic, format version, synonym rule version, the map tables and a CRC32 of everything before it.
+ */
+public final class SnapshotUtils {
+
+    private static final int MAGIC = 0x53594e53;
+
+    private static final int FORMAT_VERSION = 5;
+
+    /** magic + format version + rule version + checksum **/
+    private static final int MIN_LENGTH = 4 + 4 + 8 + 8;
+
+    public static final class Snapshot {
+
+        private final long version;
+
+        private final SimpleSynonymMap synonymMap;
+
+        Snapshot(long version, SimpleSynonymMap synonymMap) {
+            this.version = version;
+            this.synonymMap = synonymMap;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public SimpleSynonymMap getSynonymMap() {
+            return synonymMap;
+        }
+    }
+
+    /**
+     * @param memoryLimit the heap and direct memory the map may take, a larger snapshot file is not read: the tables
+     *                    are copied out of it one to one
+     * @return the snapshot of the given configuration, null if there is none
+     * @throws IllegalStateException if the snapshot exceeds the memory limit
+     */
+    public static Snapshot readSnapshot(Configuration cfg, long memoryLimit) throws IOException {
+        Path file = snapshotFile(cfg);
+        return SecurityUtils.doPrivileged(() -> {
+            if (!Files.exists(file)) {
+                return null;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length < MIN_LENGTH || length > Integer.MAX_VALUE) {
+                    throw new IOException("invalid synonym snapshot length " + length + ": " + file);
+                }
+                if (length > memoryLimit) {
+                    throw new IllegalStateException("synonym snapshot of " + length
+                            + " bytes exceeds the memory limit of " + memoryLimit + " bytes: " + file);
+                }
+
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                try {
+                    return read(buffer, file.toString(), cfg.isOffHeap());
+                } finally {
+                    // the tables are copied out, the mapping is not left to the garbage collector
+                    OffHeapBlock.free(buffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a snapshot serialized by {@link #toBytes(long, SimpleSynonymMap)}.
+     *
+     * @param offHeap whether to copy the map tables to direct memory
+     */
+    public static Snapshot fromBytes(byte[] bytes, boolean offHeap) throws IOException {
+        if (bytes.length < MIN_LENGTH) {
+            throw new IOException("invalid synonym snapshot length " + bytes.length);
+        }
+        return read(ByteBuffer.wrap(bytes), "bytes", offHeap);
+    }
+
+    /**
+     * Serializes the map in the snapshot format, to ship it to other nodes.
+     */
+    public static byte[] toBytes(long version, SimpleSynonymMap synonymMap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, version, synonymMap);
+        return bytes.toByteArray();
+    }
+
+    private static Snapshot read(ByteBuffer buffer, String source, boolean offHeap) throws IOException {
+        int length = buffer.limit();
+        ByteBuffer body = buffer.duplicate();
+        body.limit(length - 8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != buffer.getLong(length - 8)) {
+            throw new IOException("synonym snapshot checksum mismatch: " + source);
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            throw new IOException("unknown synonym snapshot format: " + source);
+        }
+
+        long version = buffer.getLong();
+        return new Snapshot(version, SimpleSynonymMap.readFrom(buffer, offHeap));
+    }
+
+    private static void write(OutputStream os, long version, SimpleSynonymMap synonymMap) throws IOException {
+        try (CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(os), new CRC32());
+             DataOutputStream out = new DataOutputStream(checkedOut)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(version);
+            synonymMap.writeTo(out);
+            out.flush();
+            out.writeLong(checkedOut.getChecksum().getValue());
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file first and atomically moves it in place.
+     */
+    public static void writeSnapshot(Configuration cfg, long version, SimpleSynonymMap synonymMap) throws IOException {
+        Path file = snapshotFile(cfg);
+        SecurityUtils.doPrivileged(() -> {
+            Files.createDirectories(file.getParent());
+            Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+            write(Files.newOutputStream(tmpFile), version, synonymMap);
+
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return null;
+        });
+    }
+
+    private static Path snapshotFile(Configuration cfg) {
+        return cfg.getSnapshotDir().resolve("synonym-" + cfg.getMapId() + ".snapshot");
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.utils;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The threads parsing and analyzing the rules of the maps built with a build_parallelism above 1. On a node they are
+ * the dynamic_synonym_build thread pool, sized by thread_pool.dynamic_synonym_build.size, one thread per processor by
+ * default, so the builds of all dictionaries together take at most that many threads.
+ *
+ * Outside a node, e.g. in the benchmarks, the rules are parsed on daemon threads of the plugin instead.
+ */
+public final class SynonymBuildExecutor {
+
+    public static final String THREAD_POOL_NAME = "dynamic_synonym_build";
+
+    /** parses the rules outside a node, guarded by the class lock **/
+    private static ExecutorService standalone;
+
+    private SynonymBuildExecutor() {
+    }
+
+    public static ExecutorBuilder<?> executorBuilder(Settings settings) {
+        return new FixedExecutorBuilder(settings, THREAD_POOL_NAME, EsExecutors.boundedNumberOfProcessors(settings), 1000,
+                "thread_pool." + THREAD_POOL_NAME);
+    }
+
+    /**
+     * @param threadPool the thread pool of the node, null outside a node
+     */
+    public static Executor executor(ThreadPool threadPool) {
+        return threadPool != null ? threadPool.executor(THREAD_POOL_NAME) : standalone();
+    }
+
+    private static synchronized ExecutorService standalone() {
+        if (standalone == null) {
+            standalone = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, THREAD_POOL_NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return standalone;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.utils;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the loads, reloads and checks of one dictionary one after another on the dynamic_synonym thread pool of the
+ * node. The pool is sized by thread_pool.dynamic_synonym.size, 1 by default so the dictionaries reload one at a time
+ * instead of all at once, and its queue is bounded by thread_pool.dynamic_synonym.queue_size. A dictionary hands the
+ * thread back after every task, so a slow reload does not hold up the checks of the other dictionaries.
+ *
+ * Outside a node, e.g. in the benchmarks, the tasks run on a daemon thread of the plugin instead.
+ */
+public class SynonymTaskExecutor implements Executor {
+
+    public static final String THREAD_POOL_NAME = "dynamic_synonym";
+
+    private static final Logger LOGGER = ESLoggerFactory.getLogger(SynonymTaskExecutor.class.getName());
+
+    private static final long REDISPATCH_DELAY_MILLIS = 1000L;
+
+    /** the node's thread pool, null outside a node **/
+    private final ThreadPool threadPool;
+
+    /** runs and schedules the tasks outside a node, guarded by the class lock **/
+    private static ScheduledExecutorService standalone;
+
+    /** tasks waiting for the running one, guarded by this **/
+    private final Deque<Runnable> tasks = new ArrayDeque<>();
+
+    private boolean dispatched = false;
+
+    /** set once the dictionary is closed, guarded by this **/
+    private boolean shutdown = false;
+
+    /**
+     * @param threadPool the thread pool of the node, null outside a node
+     */
+    public SynonymTaskExecutor(ThreadPool threadPool) {
+        this.threadPool = threadPool;
+    }
+
+    public static ExecutorBuilder<?> executorBuilder(Settings settings) {
+        return new FixedExecutorBuilder(settings, THREAD_POOL_NAME, 1, 1000, "thread_pool." + THREAD_POOL_NAME);
+    }
+
+    private static synchronized ScheduledExecutorService standalone() {
+        if (standalone == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, THREAD_POOL_NAME);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            standalone = executor;
+        }
+        return standalone;
+    }
+
+    /**
+     * Queues the task after the tasks of this dictionary. Tasks are dropped once the thread pool is shut down.
+     *
+     * @throws RejectedExecutionException if the executor is {@link #shutdown() shut down}
+     */
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (shutdown) {
+                throw new RejectedExecutionException("synonym tasks are shut down, drop " + task);
+            }
+            tasks.addLast(task);
+            if (dispatched) {
+                return;
+            }
+            dispatched = true;
+        }
+        dispatch();
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * Stops accepting tasks, the queued ones still run. Called by the last task of a closed dictionary.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * Queues the task after the delay. The task is dropped if the executor is shut down by then.
+     *
+     * @return the future to cancel the delayed task with, null if the node is shutting down
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return scheduleHandOff(() -> {
+            try {
+                execute(task);
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Drop delayed synonym task {}, the dictionary is closed.", task);
+            }
+        }, delayMillis);
+    }
+
+    private ScheduledFuture<?> scheduleHandOff(Runnable handOff, long delayMillis) {
+        try {
+            // only the hand-off runs on the scheduler thread
+            return threadPool != null
+                    ? threadPool.schedule(TimeValue.timeValueMillis(delayMillis), ThreadPool.Names.SAME, handOff)
+                    : standalone().schedule(handOff, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (EsRejectedExecutionException | RejectedExecutionException e) {
+            LOGGER.debug("Schedule synonym task failed, the thread pool is shut down.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Cancels the futures of dropped tasks, so no caller waits for them.
+     */
+    private void drop(Runnable task) {
+        LOGGER.debug("Drop synonym task {}.", task);
+        if (task instanceof Future) {
+            ((Future<?>) task).cancel(false);
+        }
+    }
+
+    private synchronized void dropQueuedTasks() {
+        Runnable task;
+        while ((task = tasks.pollFirst()) != null) {
+            drop(task);
+        }
+    }
+
+    private void dispatch() {
+        try {
+            if (threadPool != null) {
+                threadPool.executor(THREAD_POOL_NAME).execute(this::runNext);
+            } else {
+                standalone().execute(this::runNext);
+            }
+        } catch (EsRejectedExecutionException | RejectedExecutionException e) {
+            // the queue is full of other dictionaries' tasks, or the node is shutting down
+            LOGGER.warn("Synonym thread pool rejected the task, retry in " + REDISPATCH_DELAY_MILLIS + "ms.", e);
+            if (scheduleHandOff(this::dispatch, REDISPATCH_DELAY_MILLIS) == null) {
+                synchronized (this) {
+                    dispatched = false;
+                    dropQueuedTasks();
+                }
+            }
+        }
+    }
+
+    private void runNext() {
+        Runnable task;
+        synchronized (this) {
+            task = tasks.pollFirst();
+            if (task == null) {
+                dispatched = false;
+                return;
+            }
+        }
+
+        try {
+            task.run();
+        } catch (Throwable t) {
+            LOGGER.error("Synonym task failed!", t);
+        }
+
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                dispatched = false;
+                return;
+            }
+        }
+        dispatch();
+    }
+}
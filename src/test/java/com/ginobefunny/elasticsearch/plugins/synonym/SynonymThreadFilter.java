@@ -0,0 +1,31 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym;
+
+import com.carrotsearch.randomizedtesting.ThreadFilter;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymBuildExecutor;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.utils.SynonymTaskExecutor;
+
+/**
+ * Outside a node the dictionaries run on daemon threads of the plugin which live as long as the JVM.
+ */
+public class SynonymThreadFilter implements ThreadFilter {
+
+    @Override
+    public boolean reject(Thread t) {
+        String name = t.getName();
+        return name.equals(SynonymTaskExecutor.THREAD_POOL_NAME) || name.equals(SynonymBuildExecutor.THREAD_POOL_NAME)
+                || name.equals("synonym-file-watcher");
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.cluster;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.ginobefunny.elasticsearch.plugins.synonym.DynamicSynonymPlugin;
+import com.ginobefunny.elasticsearch.plugins.synonym.SynonymThreadFilter;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.action.admin.indices.analyze.AnalyzeResponse;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESIntegTestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+
+/**
+ * Runs a dedicated master node, which holds no index and so no dictionary of its own, next to a data node. The rules
+ * are served by an in-process http server.
+ */
+@ThreadLeakFilters(filters = SynonymThreadFilter.class)
+@SuppressForbidden(reason = "serves the rules with the jdk http server")
+@ESIntegTestCase.ClusterScope(scope = ESIntegTestCase.Scope.TEST, numDataNodes = 0, numClientNodes = 0,
+        transportClientRatio = 0.0, supportsDedicatedMasters = false)
+public class ClusterSynonymMapCoordinatorTests extends ESIntegTestCase {
+
+    private HttpServer server;
+
+    private volatile String body = "nike, 耐克\n";
+
+    @Override
+    protected Collection<Class<? extends Plugin>> nodePlugins() {
+        return Collections.singletonList(DynamicSynonymPlugin.class);
+    }
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put(ClusterSynonymMapCoordinator.CLUSTER_MODE_SETTING.getKey(), true)
+                .build();
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/synonym.txt", this::handle);
+        server.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        server.stop(0);
+        super.tearDown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void testDedicatedMasterLoadsForDataNode() throws Exception {
+        String masterNode = internalCluster().startNode(Settings.builder()
+                .put(Node.NODE_DATA_SETTING.getKey(), false));
+        String dataNode = internalCluster().startNode(Settings.builder()
+                .put(Node.NODE_MASTER_SETTING.getKey(), false));
+        createSynonymIndex();
+
+        assertBusy(() -> assertEquals(Arrays.asList("nike", "耐克"), analyze(dataNode, "nike")));
+        List<SynonymRuleManager> dataManagers = internalCluster().getInstance(SynonymRuleManagers.class, dataNode)
+                .getManagers();
+        assertEquals(1, dataManagers.size());
+        assertTrue(dataManagers.get(0).isFollower());
+
+        // the master holds the dictionary for the data node although none of its indices uses it
+        String mapId = dataManagers.get(0).getConfiguration().getMapId();
+        SynonymRuleManagers masterManagers = internalCluster().getInstance(SynonymRuleManagers.class, masterNode);
+        assertNotNull(masterManagers.getManager(mapId));
+        assertFalse(masterManagers.getManager(mapId).isFollower());
+
+        body = "nike, 耐克\nvans, 范斯\n";
+        assertBusy(() -> assertEquals(Arrays.asList("vans", "范斯"), analyze(dataNode, "vans")));
+    }
+
+    public void testFollowersPollWithoutLoader() throws Exception {
+        // the configured loader node never joins, the nodes poll the source themselves
+        Settings missingLoader = Settings.builder()
+                .put(ClusterSynonymMapCoordinator.LOADER_NODE_SETTING.getKey(), "missing_loader")
+                .build();
+        internalCluster().startNode(Settings.builder().put(missingLoader)
+                .put(Node.NODE_DATA_SETTING.getKey(), false));
+        String dataNode = internalCluster().startNode(Settings.builder().put(missingLoader)
+                .put(Node.NODE_MASTER_SETTING.getKey(), false));
+        createSynonymIndex();
+
+        assertBusy(() -> assertEquals(Arrays.asList("nike", "耐克"), analyze(dataNode, "nike")));
+        body = "nike, 耐克\nvans, 范斯\n";
+        assertBusy(() -> assertEquals(Arrays.asList("vans", "范斯"), analyze(dataNode, "vans")));
+    }
+
+    private void createSynonymIndex() {
+        InetSocketAddress address = server.getAddress();
+        assertAcked(prepareCreate("test").setSettings(Settings.builder()
+                .put("index.number_of_shards", 1)
+                .put("index.number_of_replicas", 0)
+                .put("index.analysis.filter.synonym.type", DynamicSynonymPlugin.PLUGIN_NAME)
+                .put("index.analysis.filter.synonym.rules_url",
+                        "http://" + address.getHostString() + ":" + address.getPort() + "/synonym.txt")
+                .put("index.analysis.filter.synonym.snapshot", false)
+                .put("index.analysis.filter.synonym.db_check_interval", "200ms")
+                .put("index.analysis.filter.synonym.db_check_max_interval", "1s")
+                .put("index.analysis.analyzer.synonym.tokenizer", "whitespace")
+                .putArray("index.analysis.analyzer.synonym.filter", "synonym")));
+        ensureGreen("test");
+    }
+
+    /**
+     * @return the terms of the text analyzed on the node, which holds the only shard of the index
+     */
+    private List<String> analyze(String node, String text) {
+        AnalyzeResponse response = internalCluster().client(node).admin().indices()
+                .prepareAnalyze("test", text).setAnalyzer("synonym").get();
+        List<String> terms = new ArrayList<>();
+        for (AnalyzeResponse.AnalyzeToken token : response.getTokens()) {
+            terms.add(token.getTerm());
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.reindex;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.ginobefunny.elasticsearch.plugins.synonym.SynonymThreadFilter;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymChange;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.SpanNearQueryBuilder;
+import org.elasticsearch.index.query.SpanQueryBuilder;
+import org.elasticsearch.index.query.SpanTermQueryBuilder;
+import org.elasticsearch.index.query.TermsQueryBuilder;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plans the queries for the changes of a dictionary reloaded from a file, as the reindex rest action does.
+ */
+@ThreadLeakFilters(filters = SynonymThreadFilter.class)
+public class SelectiveReindexPlannerTests extends ESTestCase {
+
+    private static final String INDEX = "planner";
+
+    private static final List<String> FIELDS = Arrays.asList("title", "body");
+
+    private Path rulesFile;
+
+    private long lastModified;
+
+    private SynonymRuleManager manager;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Path home = createTempDir();
+        rulesFile = home.resolve("config").resolve("synonym.txt");
+        Files.createDirectories(rulesFile.getParent());
+        lastModified = System.currentTimeMillis();
+        writeRules("nike, 耐克\n");
+
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), home)
+                .put("rules_path", "synonym.txt")
+                .put("snapshot", false)
+                .put("change_history", 10)
+                .build();
+        manager = managers.initial(new Configuration(new Environment(settings), settings), INDEX);
+        assertTrue(manager.awaitInitialLoad(30, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        managers.release(INDEX);
+        super.tearDown();
+    }
+
+    public void testNoChangeHasNoQuery() {
+        assertEquals(Collections.emptyList(), SelectiveReindexPlanner.plan(manager.getChangesSince(-1L), FIELDS));
+    }
+
+    public void testWordsAndPhrases() throws Exception {
+        writeRules("nike, 耐克\nvans, 范斯\nnew york => nyc\n");
+        List<QueryBuilder> queries = SelectiveReindexPlanner.plan(reload(), FIELDS);
+        assertEquals(1, queries.size());
+
+        List<QueryBuilder> clauses = clauses(queries.get(0));
+        assertEquals(4, clauses.size());
+        for (int i = 0; i < FIELDS.size(); i++) {
+            TermsQueryBuilder words = (TermsQueryBuilder) clauses.get(i);
+            assertEquals(FIELDS.get(i), words.fieldName());
+            assertEquals(new HashSet<>(Arrays.asList("vans", "范斯")), new HashSet<>(words.values()));
+
+            SpanNearQueryBuilder phrase = (SpanNearQueryBuilder) clauses.get(FIELDS.size() + i);
+            assertEquals(0, phrase.slop());
+            assertTrue(phrase.inOrder());
+            assertEquals(Arrays.asList("new", "york"), spanTerms(phrase, FIELDS.get(i)));
+        }
+    }
+
+    public void testManyPhrasesAreSplit() throws Exception {
+        int maxClauses = SelectiveReindexPlanner.MAX_CLAUSES;
+        int phraseCount = randomIntBetween(maxClauses, 2 * maxClauses);
+        StringBuilder rules = new StringBuilder("nike, 耐克\nvans, 范斯\n");
+        for (int i = 0; i < phraseCount; i++) {
+            rules.append("p").append(i).append(" q").append(i).append(" => r\n");
+        }
+        writeRules(rules.toString());
+        List<QueryBuilder> queries = SelectiveReindexPlanner.plan(reload(), FIELDS);
+
+        int words = 0;
+        Set<String> phrases = new HashSet<>();
+        for (QueryBuilder query : queries) {
+            List<QueryBuilder> clauses = clauses(query);
+            assertTrue(clauses.size() <= maxClauses);
+            for (QueryBuilder clause : clauses) {
+                if (clause instanceof TermsQueryBuilder) {
+                    words++;
+                } else {
+                    SpanNearQueryBuilder phrase = (SpanNearQueryBuilder) clause;
+                    String field = ((SpanTermQueryBuilder) phrase.clauses().get(0)).fieldName();
+                    phrases.add(field + ":" + String.join(" ", spanTerms(phrase, field)));
+                }
+            }
+        }
+        // every field searches the words once and every phrase once
+        assertEquals(FIELDS.size(), words);
+        assertEquals(FIELDS.size() * phraseCount, phrases.size());
+        int perQuery = maxClauses / FIELDS.size();
+        assertEquals((phraseCount + 1 + perQuery - 1) / perQuery, queries.size());
+    }
+
+    public void testUnknownChangesAreRejected() throws Exception {
+        writeRules("vans, 范斯\n");
+        reload();
+        // the dictionary does not know the changes before it was loaded
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> SelectiveReindexPlanner.plan(manager.getChangesSince(0L), FIELDS));
+        assertTrue(e.getMessage(), e.getMessage().contains("reindex all documents instead"));
+        expectThrows(IllegalArgumentException.class,
+                () -> SelectiveReindexPlanner.plan(manager.getChangesSince(-1L), Collections.emptyList()));
+    }
+
+    /**
+     * @return the change of the reload, once its diff is recorded
+     */
+    private SynonymChange reload() throws Exception {
+        long version = manager.checkNow().get(30, TimeUnit.SECONDS);
+        assertEquals(version, manager.getLoadedVersion());
+        // the diff runs after the new map is published
+        assertBusy(() -> {
+            List<SynonymChange> changes = manager.getChanges();
+            assertFalse(changes.isEmpty());
+            assertEquals(version, changes.get(changes.size() - 1).getToVersion());
+        });
+        SynonymChange change = manager.getChangesSince(-1L);
+        assertFalse(change.isTruncated());
+        return change;
+    }
+
+    private static List<QueryBuilder> clauses(QueryBuilder query) {
+        BoolQueryBuilder bool = (BoolQueryBuilder) ((ConstantScoreQueryBuilder) query).innerQuery();
+        assertEquals("1", bool.minimumShouldMatch());
+        assertTrue(bool.must().isEmpty());
+        return bool.should();
+    }
+
+    private static List<String> spanTerms(SpanNearQueryBuilder phrase, String field) {
+        List<String> terms = new ArrayList<>();
+        for (SpanQueryBuilder clause : phrase.clauses()) {
+            SpanTermQueryBuilder term = (SpanTermQueryBuilder) clause;
+            assertEquals(field, term.fieldName());
+            terms.add((String) term.value());
+        }
+        return terms;
+    }
+
+    private void writeRules(String rules) throws Exception {
+        Files.write(rulesFile, rules.getBytes(StandardCharsets.UTF_8));
+        // the version of a file is its modification time, which may not move within the resolution of the file system
+        lastModified += 1000L;
+        Files.setLastModifiedTime(rulesFile, FileTime.fromMillis(lastModified));
+    }
+}
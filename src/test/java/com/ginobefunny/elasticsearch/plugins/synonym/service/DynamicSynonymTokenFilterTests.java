@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.ginobefunny.elasticsearch.plugins.synonym.SynonymThreadFilter;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.FlagsAttribute;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTokenStreamTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@ThreadLeakFilters(filters = SynonymThreadFilter.class)
+public class DynamicSynonymTokenFilterTests extends ESTokenStreamTestCase {
+
+    private static final String INDEX = "filter";
+
+    private static final String WORD = "word";
+
+    private static final String SYNONYM = DynamicSynonymTokenFilter.TYPE_SYNONYM;
+
+    private SynonymRuleManager manager;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Path home = createTempDir();
+        Path rulesFile = home.resolve("config").resolve("synonym.txt");
+        Files.createDirectories(rulesFile.getParent());
+        Files.write(rulesFile, ("nike, 耐克\n"
+                + "new york, nyc\n"
+                + "big, large, huge, great\n").getBytes(StandardCharsets.UTF_8));
+
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), home)
+                .put("rules_path", "synonym.txt")
+                .put("snapshot", false)
+                .put("off_heap", randomBoolean())
+                .put("prefilter", randomBoolean())
+                .build();
+        manager = managers.initial(new Configuration(new Environment(settings), settings), INDEX);
+        assertTrue(manager.awaitInitialLoad(30, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        managers.release(INDEX);
+        super.tearDown();
+    }
+
+    public void testSynonymsTakeOwnPositions() throws IOException {
+        assertTokenStreamContents(filter("buy nike now", false, false, 0),
+                new String[] {"buy", "nike", "耐克", "now"},
+                new int[] {0, 4, 4, 9},
+                new int[] {3, 8, 8, 12},
+                new String[] {WORD, SYNONYM, SYNONYM, WORD},
+                new int[] {1, 1, 1, 1},
+                new int[] {1, 1, 1, 1});
+    }
+
+    public void testStackedSynonyms() throws IOException {
+        assertTokenStreamContents(filter("buy nike now", true, false, 0),
+                new String[] {"buy", "nike", "耐克", "now"},
+                new int[] {0, 4, 4, 9},
+                new int[] {3, 8, 8, 12},
+                new String[] {WORD, SYNONYM, SYNONYM, WORD},
+                new int[] {1, 1, 0, 1},
+                new int[] {1, 1, 1, 1});
+    }
+
+    public void testKeepOriginalSkipsEqualSynonym() throws IOException {
+        assertTokenStreamContents(filter("nike", true, true, 0),
+                new String[] {"nike", "耐克"},
+                new int[] {0, 0},
+                new int[] {4, 4},
+                new String[] {WORD, SYNONYM},
+                new int[] {1, 0},
+                new int[] {1, 1});
+        assertTokenStreamContents(filter("nike", false, true, 0),
+                new String[] {"nike", "耐克"},
+                new int[] {1, 1});
+    }
+
+    public void testMaxExpansions() throws IOException {
+        assertTokenStreamContents(filter("big", true, false, 2),
+                new String[] {"big", "large"},
+                new int[] {1, 0});
+        // the original token does not count
+        assertTokenStreamContents(filter("huge", true, true, 2),
+                new String[] {"huge", "big", "large"},
+                new int[] {1, 0, 0});
+    }
+
+    public void testStackedPhraseIsGraph() throws IOException {
+        // every synonym spans the whole match like in the lucene synonym filters
+        assertTokenStreamContents(filter("i love new york", true, false, 0),
+                new String[] {"i", "love", "new", "nyc", "york"},
+                new int[] {0, 2, 7, 7, 7},
+                new int[] {1, 6, 15, 15, 15},
+                new String[] {WORD, WORD, SYNONYM, SYNONYM, SYNONYM},
+                new int[] {1, 1, 1, 0, 1},
+                new int[] {1, 1, 1, 2, 1});
+        // the single word input expands to a phrase, which takes a position more than the input
+        assertTokenStreamContents(filter("nyc rocks", true, false, 0),
+                new String[] {"new", "nyc", "york", "rocks"},
+                new int[] {0, 0, 0, 4},
+                new int[] {3, 3, 3, 9},
+                new String[] {SYNONYM, SYNONYM, SYNONYM, WORD},
+                new int[] {1, 0, 1, 1},
+                new int[] {1, 2, 1, 1});
+    }
+
+    public void testBufferedTokensKeepTheirAttributes() throws IOException {
+        // new is buffered as the prefix of new york, jersey ends the match
+        assertTokenStreamContents(filter("new jersey new", randomBoolean(), randomBoolean(), 0),
+                new String[] {"new", "jersey", "new"},
+                new int[] {0, 4, 11},
+                new int[] {3, 10, 14},
+                new String[] {WORD, WORD, WORD},
+                new int[] {1, 1, 1},
+                new int[] {1, 1, 1});
+
+        // attributes the filter does not know are copied along with the buffered tokens, the synonyms of nike are
+        // new tokens with cleared attributes
+        TokenStream stream = new DynamicSynonymTokenFilter(new NumberingFilter(tokenizer("new jersey nike new")),
+                manager, randomBoolean(), false, 0);
+        FlagsAttribute flagsAtt = stream.addAttribute(FlagsAttribute.class);
+        List<Integer> flags = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            flags.add(flagsAtt.getFlags());
+        }
+        stream.end();
+        stream.close();
+        assertEquals(Arrays.asList(1, 2, 0, 0, 4), flags);
+    }
+
+    private TokenStream filter(String text, boolean stacked, boolean keepOriginal, int maxExpansions) {
+        return new DynamicSynonymTokenFilter(tokenizer(text), manager, stacked, keepOriginal, maxExpansions);
+    }
+
+    private static Tokenizer tokenizer(String text) {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        return tokenizer;
+    }
+
+    /**
+     * Sets the flags of every token to its number, counted from 1 so they differ from cleared flags.
+     */
+    private static final class NumberingFilter extends TokenFilter {
+
+        private final FlagsAttribute flagsAtt = addAttribute(FlagsAttribute.class);
+
+        private int count = 1;
+
+        NumberingFilter(TokenStream input) {
+            super(input);
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (!input.incrementToken()) {
+                return false;
+            }
+            flagsAtt.setFlags(count++);
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            count = 1;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RuleTextsTests extends ESTestCase {
+
+    private static final String CHARS = "ab, 耐克=>é";
+
+    public void testDeltasMatchReference() {
+        boolean offHeap = randomBoolean();
+        Map<Long, String> reference = new HashMap<>();
+        RuleTexts.Builder builder = new RuleTexts.Builder();
+        for (int i = randomIntBetween(0, 3000); i > 0; i--) {
+            long id = randomIntBetween(0, 5000);
+            if (!reference.containsKey(id)) {
+                String text = randomText();
+                reference.put(id, text);
+                builder.add(id, text);
+            }
+        }
+        RuleTexts texts = builder.build(offHeap);
+        assertSameTexts(reference, texts);
+
+        // enough changes over the rounds to merge the overlay into a new buffer
+        for (int round = randomIntBetween(3, 10); round > 0; round--) {
+            List<SynonymRule> rules = new ArrayList<>();
+            Map<Long, String> changed = new HashMap<>();
+            for (int i = randomIntBetween(500, 1000); i > 0; i--) {
+                long id = randomIntBetween(0, 5000);
+                if (changed.containsKey(id)) {
+                    continue;
+                }
+                boolean available = randomIntBetween(0, 3) > 0;
+                String text = randomText();
+                rules.add(new SynonymRule(id, text, available ? SynonymRule.STATUS_AVAILABLE : 0));
+                changed.put(id, available ? text : null);
+            }
+            RuleTexts next = texts.apply(rules, offHeap);
+            // the previous texts stay valid until they are released
+            assertSameTexts(reference, texts);
+            texts.release();
+
+            for (Map.Entry<Long, String> rule : changed.entrySet()) {
+                if (rule.getValue() == null) {
+                    reference.remove(rule.getKey());
+                } else {
+                    reference.put(rule.getKey(), rule.getValue());
+                }
+            }
+            texts = next;
+            assertSameTexts(reference, texts);
+        }
+        texts.release();
+    }
+
+    public void testBytesUsed() {
+        RuleTexts.Builder builder = new RuleTexts.Builder();
+        builder.add(2L, "nike, 耐克");
+        builder.add(1L, "vans, 范斯");
+        RuleTexts texts = builder.build(randomBoolean());
+        // two ids, three offsets and the utf-8 bytes, three for each cjk char
+        assertEquals(2 * Long.BYTES + 3 * Integer.BYTES + 2 * (6 + 2 * 3), texts.bytesUsed());
+        texts.release();
+    }
+
+    private static void assertSameTexts(Map<Long, String> reference, RuleTexts texts) {
+        assertEquals(reference.size(), texts.size());
+        for (long id = -1; id <= 5001; id++) {
+            assertEquals(String.valueOf(id), reference.get(id), texts.get(id));
+        }
+    }
+
+    private static String randomText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = randomIntBetween(0, 20); i > 0; i--) {
+            text.append(CHARS.charAt(randomIntBetween(0, CHARS.length() - 1)));
+        }
+        return text.toString();
+    }
+}
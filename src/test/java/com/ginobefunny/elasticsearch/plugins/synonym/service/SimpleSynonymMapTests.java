@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maps built by deltas, with an overlay or compacted, must answer like a full build of the same rules.
+ */
+public class SimpleSynonymMapTests extends ESTestCase {
+
+    private static final int WORDS = 200;
+
+    private Configuration configuration;
+
+    /** every input term and phrase prefix of the rules generated so far, phrases joined by the word separator **/
+    private final Set<String> probes = new LinkedHashSet<>();
+
+    /** the maps built by the test, released at the end **/
+    private final List<SimpleSynonymMap> maps = new ArrayList<>();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put("off_heap", randomBoolean())
+                .put("prefilter", randomBoolean())
+                .build();
+        configuration = new Configuration(new Environment(settings), settings);
+        for (int i = 0; i < WORDS; i++) {
+            probes.add("w" + i);
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (SimpleSynonymMap map : maps) {
+            map.release();
+        }
+        super.tearDown();
+    }
+
+    public void testDeltasMatchFullBuild() {
+        List<String> rules = randomRules(randomIntBetween(0, 500));
+        SimpleSynonymMap map = build(rules);
+        for (int round = randomIntBetween(1, 20); round > 0; round--) {
+            SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(configuration);
+            for (int i = randomIntBetween(0, Math.min(20, rules.size())); i > 0; i--) {
+                builder.removeRule(rules.remove(randomIntBetween(0, rules.size() - 1)));
+            }
+            for (String rule : randomRules(randomIntBetween(0, 20))) {
+                builder.addRule(rule);
+                rules.add(rule);
+            }
+            map = keep(builder.build(map));
+            assertSameMap(build(rules), map);
+        }
+    }
+
+    public void testOverlayIsCompacted() {
+        int baseSize = randomIntBetween(1, 2 * SimpleSynonymMap.MIN_OVERLAY_COMPACT_SIZE);
+        List<String> rules = new ArrayList<>();
+        rules.add("new york, ny");
+        for (int i = 0; i < baseSize; i++) {
+            rules.add("base" + i + ", alias" + i);
+        }
+        SimpleSynonymMap base = build(rules);
+        int threshold = Math.max(SimpleSynonymMap.MIN_OVERLAY_COMPACT_SIZE,
+                base.size() / SimpleSynonymMap.OVERLAY_COMPACT_RATIO);
+
+        // removing a rule keeps its terms as removed terms of the overlay, and its prefix in the base tables
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(configuration);
+        builder.removeRule(rules.remove(0));
+        SimpleSynonymMap withOverlay = keep(builder.build(base));
+        assertEquals(base.size() + 2, withOverlay.size());
+        assertTrue(withOverlay.isPrefix("new".toCharArray(), 0, 3));
+        assertSameMap(build(rules), withOverlay);
+
+        // the changed terms of both deltas exceed the threshold, the second delta is compacted into new tables
+        builder = new SimpleSynonymMap.Builder(configuration);
+        for (int i = 0; i < threshold / 2; i++) {
+            String rule = "added" + i + ", other" + i;
+            builder.addRule(rule);
+            rules.add(rule);
+        }
+        SimpleSynonymMap compacted = keep(builder.build(withOverlay));
+        SimpleSynonymMap full = build(rules);
+        assertEquals(full.size(), compacted.size());
+        assertEquals(full.getMaxInputWords(), compacted.getMaxInputWords());
+        assertFalse(compacted.isPrefix("new".toCharArray(), 0, 3));
+        assertSameMap(full, compacted);
+    }
+
+    public void testDeltaMapRoundTrip() throws Exception {
+        List<String> rules = randomRules(randomIntBetween(1, 300));
+        SimpleSynonymMap base = build(rules);
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(configuration);
+        builder.removeRule(rules.remove(0));
+        for (String rule : randomRules(randomIntBetween(1, 20))) {
+            builder.addRule(rule);
+            rules.add(rule);
+        }
+        SimpleSynonymMap delta = keep(builder.build(base));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.writeTo(new DataOutputStream(bytes));
+        SimpleSynonymMap read = keep(SimpleSynonymMap.readFrom(ByteBuffer.wrap(bytes.toByteArray()), randomBoolean()));
+        assertEquals(delta.size(), read.size());
+        assertSameMap(build(rules), read);
+    }
+
+    /**
+     * @return single words, explicit mappings and phrases over a small vocabulary, so the rules share terms
+     */
+    private List<String> randomRules(int count) {
+        List<String> rules = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String first = randomWord();
+            String second = randomWord();
+            switch (randomIntBetween(0, 2)) {
+                case 0:
+                    rules.add(first + ", " + second + ", " + randomWord());
+                    break;
+                case 1:
+                    rules.add(first + " => " + second);
+                    break;
+                default:
+                    probes.add(first + SimpleSynonymMap.WORD_SEPARATOR + second);
+                    rules.add(first + " " + second + ", " + randomWord());
+            }
+        }
+        return rules;
+    }
+
+    private static String randomWord() {
+        return "w" + randomIntBetween(0, WORDS - 1);
+    }
+
+    private SimpleSynonymMap build(List<String> rules) {
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(configuration);
+        for (String rule : rules) {
+            builder.addRule(rule);
+        }
+        return keep(builder.build());
+    }
+
+    private SimpleSynonymMap keep(SimpleSynonymMap map) {
+        maps.add(map);
+        return map;
+    }
+
+    /**
+     * The base tables of a map with an overlay still hold the prefixes of removed phrases, which only cost the filter
+     * a look ahead, so only compacted maps must have exactly the expected prefixes.
+     */
+    private void assertSameMap(SimpleSynonymMap expected, SimpleSynonymMap actual) {
+        assertTrue(actual.getMaxInputWords() >= expected.getMaxInputWords());
+        for (String probe : probes) {
+            assertEquals(probe, sorted(expected.getSynonymWords(probe)), sorted(actual.getSynonymWords(probe)));
+            char[] chars = probe.toCharArray();
+            if (expected.isPrefix(chars, 0, chars.length)) {
+                assertTrue(probe, actual.isPrefix(chars, 0, chars.length));
+            }
+        }
+        SynonymChange change = SynonymChange.between(expected, 0L, actual, 0L, Integer.MAX_VALUE);
+        assertTrue(change.getTerms().toString(), change.getTerms().isEmpty());
+    }
+
+    private static List<String> sorted(List<String> words) {
+        if (words == null) {
+            return null;
+        }
+        List<String> sorted = new ArrayList<>(words);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class SynonymChangeTests extends ESTestCase {
+
+    private static final String NEW_YORK = "new" + SimpleSynonymMap.WORD_SEPARATOR + "york";
+
+    private Configuration configuration;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put("off_heap", randomBoolean())
+                .put("prefilter", randomBoolean())
+                .build();
+        configuration = new Configuration(new Environment(settings), settings);
+    }
+
+    public void testAddedRemovedAndChangedTerms() {
+        SimpleSynonymMap previous = build("nike, 耐克", "new york, ny", "vans => 范斯");
+        SimpleSynonymMap map = build("nike, 耐克", "new york, nyc", "adidas, 阿迪达斯");
+
+        SynonymChange change = SynonymChange.between(previous, 1L, map, 2L, 100);
+        assertFalse(change.isTruncated());
+        assertEquals(1L, change.getFromVersion());
+        assertEquals(2L, change.getToVersion());
+        // nike and 耐克 keep their outputs
+        assertEquals(set(NEW_YORK, "ny", "nyc", "vans", "adidas", "阿迪达斯"), change.getTerms());
+        // the removed output 范斯 was indexed for vans, the former outputs of new york and ny are the terms themselves
+        assertEquals(set(NEW_YORK, "ny", "nyc", "vans", "范斯", "adidas", "阿迪达斯"), change.getSearchTerms());
+    }
+
+    public void testSameRulesHaveNoChange() {
+        SynonymChange change = SynonymChange.between(build("nike, 耐克"), 1L, build("nike, 耐克"), 2L, 100);
+        assertFalse(change.isTruncated());
+        assertTrue(change.getTerms().isEmpty());
+        assertTrue(change.getSearchTerms().isEmpty());
+    }
+
+    public void testDeltaMapHasSameChangeAsFullMap() {
+        SimpleSynonymMap previous = build("nike, 耐克", "new york, ny", "vans => 范斯");
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(configuration);
+        builder.removeRule("new york, ny");
+        builder.removeRule("vans => 范斯");
+        builder.addRule("new york, nyc");
+        builder.addRule("adidas, 阿迪达斯");
+        SimpleSynonymMap delta = builder.build(previous);
+        SimpleSynonymMap full = build("nike, 耐克", "new york, nyc", "adidas, 阿迪达斯");
+
+        SynonymChange deltaChange = SynonymChange.between(previous, 1L, delta, 2L, 100);
+        SynonymChange fullChange = SynonymChange.between(previous, 1L, full, 2L, 100);
+        assertEquals(fullChange.getTerms(), deltaChange.getTerms());
+        assertEquals(fullChange.getSearchTerms(), deltaChange.getSearchTerms());
+    }
+
+    public void testTruncatedAboveMaxTerms() {
+        SynonymChange change = SynonymChange.between(build("nike, 耐克"), 1L, build("vans, 范斯"), 2L, 3);
+        assertTrue(change.isTruncated());
+        assertTrue(change.getTerms().isEmpty());
+        assertTrue(change.getSearchTerms().isEmpty());
+    }
+
+    public void testMerge() {
+        SimpleSynonymMap first = build("nike, 耐克");
+        SimpleSynonymMap second = build("nike, 耐克", "vans, 范斯");
+        SimpleSynonymMap third = build("vans, 范斯");
+        List<SynonymChange> changes = Arrays.asList(SynonymChange.between(first, 1L, second, 2L, 100),
+                SynonymChange.between(second, 2L, third, 3L, 100));
+
+        SynonymChange merged = SynonymChange.merge(1L, 3L, changes, false, 100);
+        assertFalse(merged.isTruncated());
+        assertEquals(set("nike", "耐克", "vans", "范斯"), merged.getTerms());
+        assertEquals(set("nike", "耐克", "vans", "范斯"), merged.getSearchTerms());
+
+        assertTrue(SynonymChange.merge(1L, 3L, changes, true, 100).isTruncated());
+        assertTrue(SynonymChange.merge(1L, 3L, changes, false, 3).isTruncated());
+        assertFalse(SynonymChange.merge(3L, 3L, Collections.emptyList(), false, 100).isTruncated());
+    }
+
+    private SimpleSynonymMap build(String... rules) {
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(configuration);
+        for (String rule : rules) {
+            builder.addRule(rule);
+        }
+        return builder.build();
+    }
+
+    private static Set<String> set(String... terms) {
+        return new HashSet<>(Arrays.asList(terms));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.ginobefunny.elasticsearch.plugins.synonym.SynonymThreadFilter;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A dry run compiles the candidate rules next to the live map and reports the diff, the live map stays as it is.
+ */
+@ThreadLeakFilters(filters = SynonymThreadFilter.class)
+public class SynonymDryRunTests extends ESTestCase {
+
+    private static final String INDEX = "dry_run";
+
+    private static final String RULES = "nike, 耐克\nvans, 范斯\n";
+
+    private SynonymRuleManager manager;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Path home = createTempDir();
+        Path rulesFile = home.resolve("config").resolve("synonym.txt");
+        Files.createDirectories(rulesFile.getParent());
+        Files.write(rulesFile, RULES.getBytes(StandardCharsets.UTF_8));
+
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), home)
+                .put("rules_path", "synonym.txt")
+                .put("snapshot", false)
+                .put("off_heap", randomBoolean())
+                .put("prefilter", randomBoolean())
+                .build();
+        manager = managers.initial(new Configuration(new Environment(settings), settings), INDEX);
+        assertTrue(manager.awaitInitialLoad(30, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        managers.release(INDEX);
+        super.tearDown();
+    }
+
+    public void testAddedRulesAreAppliedToLiveMap() throws Exception {
+        SynonymDryRun result = dryRun(Collections.singletonList("adidas, 阿迪达斯"), null, false);
+        assertTrue(result.getError(), result.isValid());
+        assertEquals(manager.getLoadedVersion(), result.liveVersion);
+        assertEquals(-1L, result.version);
+        assertEquals(1, result.ruleCount);
+        assertEquals(4, result.liveTermCount);
+        assertEquals(6, result.termCount);
+        assertEquals(new HashSet<>(Arrays.asList("adidas", "阿迪达斯")), result.getChange().getTerms());
+        assertLiveMapUnchanged();
+    }
+
+    public void testRemovedRules() throws Exception {
+        SynonymDryRun result = dryRun(null, Collections.singletonList("nike, 耐克"), false);
+        assertTrue(result.getError(), result.isValid());
+        assertEquals(new HashSet<>(Arrays.asList("nike", "耐克")), result.getChange().getTerms());
+        assertLiveMapUnchanged();
+    }
+
+    public void testReplaceMatchesFullBuild() throws Exception {
+        List<String> rules = Arrays.asList("nike, 耐克, 耐吉", "adidas, 阿迪达斯");
+        SynonymDryRun result = dryRun(rules, null, true);
+        assertTrue(result.getError(), result.isValid());
+
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(manager.getConfiguration());
+        rules.forEach(builder::addRule);
+        SimpleSynonymMap full = builder.build();
+        SynonymChange expected = SynonymChange.between(manager.getSynonymMap(), 0L, full, 0L, 100);
+        assertEquals(full.size(), result.termCount);
+        full.release();
+        assertEquals(expected.getTerms(), result.getChange().getTerms());
+        assertEquals(expected.getSearchTerms(), result.getChange().getSearchTerms());
+        // the removed rule vans, 范斯 is part of the change
+        assertTrue(result.getChange().getTerms().contains("vans"));
+        assertLiveMapUnchanged();
+    }
+
+    public void testFailedRulesAreReported() throws Exception {
+        SynonymDryRun result = dryRun(Arrays.asList("adidas, 阿迪达斯", "adidas => 阿迪 => 达斯"), null, false);
+        assertTrue(result.getError(), result.isValid());
+        assertEquals(1, result.getFailedRuleCount());
+        assertEquals(new HashSet<>(Arrays.asList("adidas", "阿迪达斯")), result.getChange().getTerms());
+        assertLiveMapUnchanged();
+    }
+
+    public void testClosedDictionaryFails() throws Exception {
+        managers.closeAll();
+        PlainActionFuture<SynonymDryRun> future = PlainActionFuture.newFuture();
+        manager.dryRun(0L, Collections.singletonList("adidas, 阿迪达斯"), null, false, future);
+        expectThrows(Exception.class, () -> future.get(30, TimeUnit.SECONDS));
+    }
+
+    private SynonymDryRun dryRun(List<String> rules, List<String> removedRules, boolean replace) throws Exception {
+        PlainActionFuture<SynonymDryRun> future = PlainActionFuture.newFuture();
+        manager.dryRun(0L, rules, removedRules, replace, future);
+        return future.get(30, TimeUnit.SECONDS);
+    }
+
+    private void assertLiveMapUnchanged() throws Exception {
+        assertEquals(Arrays.asList("nike", "耐克"), manager.getSynonymWords("nike"));
+        assertEquals(Arrays.asList("vans", "范斯"), manager.getSynonymWords("vans"));
+        assertNull(manager.getSynonymWords("adidas"));
+        assertEquals(4, manager.getSynonymMap().size());
+        // the candidate is released, only the live generation is left
+        assertBusy(() -> assertEquals(1L, manager.getMetrics().getLiveGenerations()));
+    }
+}
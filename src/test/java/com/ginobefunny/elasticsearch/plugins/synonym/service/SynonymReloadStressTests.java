@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.ginobefunny.elasticsearch.plugins.synonym.SynonymThreadFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reloads a dictionary while other threads analyze with it: every document sees one generation of the map, and the
+ * generations are retired once the streams pinning them are closed.
+ */
+@ThreadLeakFilters(filters = SynonymThreadFilter.class)
+public class SynonymReloadStressTests extends ESTestCase {
+
+    private static final String INDEX = "stress";
+
+    private Path rulesFile;
+
+    private long lastModified;
+
+    private SynonymRuleManager manager;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Path home = createTempDir();
+        rulesFile = home.resolve("config").resolve("synonym.txt");
+        Files.createDirectories(rulesFile.getParent());
+        lastModified = System.currentTimeMillis();
+        writeRules(0);
+
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), home)
+                .put("rules_path", "synonym.txt")
+                .put("snapshot", false)
+                .put("off_heap", randomBoolean())
+                .put("prefilter", randomBoolean())
+                .build();
+        manager = managers.initial(new Configuration(new Environment(settings), settings), INDEX);
+        assertTrue(manager.awaitInitialLoad(30, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        managers.release(INDEX);
+        super.tearDown();
+    }
+
+    public void testReloadDuringAnalysis() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append("x ");
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong documents = new AtomicLong();
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        Thread[] threads = new Thread[between(2, 6)];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+                TokenStream stream = new DynamicSynonymTokenFilter(tokenizer, manager);
+                try {
+                    while (stop.get() == false) {
+                        tokenizer.setReader(new StringReader(text.toString()));
+                        List<String> synonyms = analyze(stream);
+                        assertEquals(500, synonyms.size());
+                        for (String synonym : synonyms) {
+                            assertEquals("one document must see one generation", synonyms.get(0), synonym);
+                        }
+                        documents.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }, "analyze-" + t);
+            threads[t].start();
+        }
+
+        int reloads = scaledRandomIntBetween(20, 100);
+        try {
+            for (int version = 1; version <= reloads; version++) {
+                writeRules(version);
+                manager.checkNow().get(30, TimeUnit.SECONDS);
+                assertEquals(Arrays.asList("x", "v" + version), manager.getSynonymWords("x"));
+            }
+        } finally {
+            stop.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(documents.get() > 0);
+        // all streams are closed, only the current generation is left
+        assertBusy(() -> assertEquals(1L, manager.getMetrics().getLiveGenerations()));
+
+        managers.release(INDEX);
+        assertBusy(() -> assertEquals(0L, manager.getMetrics().getLiveGenerations()));
+    }
+
+    public void testStreamPinsGeneration() throws Exception {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = new DynamicSynonymTokenFilter(tokenizer, manager);
+        tokenizer.setReader(new StringReader("x"));
+        stream.reset();
+
+        // the stream pins version 0, the generation of version 1 is retired right away
+        for (int version = 1; version <= 2; version++) {
+            writeRules(version);
+            manager.checkNow().get(30, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("x", "v2"), manager.getSynonymWords("x"));
+        assertBusy(() -> assertEquals(2L, manager.getMetrics().getLiveGenerations()));
+
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        List<String> terms = new ArrayList<>();
+        while (stream.incrementToken()) {
+            terms.add(termAtt.toString());
+        }
+        stream.end();
+        assertEquals(Arrays.asList("x", "v0"), terms);
+
+        stream.close();
+        assertBusy(() -> assertEquals(1L, manager.getMetrics().getLiveGenerations()));
+    }
+
+    /**
+     * @return the synonyms emitted for the document, the original terms are left out
+     */
+    private static List<String> analyze(TokenStream stream) throws IOException {
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        List<String> synonyms = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            if (termAtt.charAt(0) == 'v') {
+                synonyms.add(termAtt.toString());
+            }
+        }
+        stream.end();
+        stream.close();
+        return synonyms;
+    }
+
+    private void writeRules(int version) throws IOException {
+        Files.write(rulesFile, ("x, v" + version + "\n").getBytes(StandardCharsets.UTF_8));
+        // the version of a file is its modification time, which may not move within the resolution of the file system
+        lastModified += 1000L;
+        Files.setLastModifiedTime(rulesFile, FileTime.fromMillis(lastModified));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Checks the fold tables against {@link Character} case mapping and {@link Normalizer} NFKC for every char.
+ */
+public class TermFoldingTests extends ESTestCase {
+
+    private static final int[] MODES = {TermFolding.CASE, TermFolding.COMPATIBILITY,
+            TermFolding.CASE | TermFolding.COMPATIBILITY};
+
+    public void testNoneHasNoTable() {
+        assertNull(TermFolding.table(TermFolding.NONE));
+        assertEquals("NiKe", TermFolding.fold("NiKe", null));
+        expectThrows(IllegalArgumentException.class, () -> TermFolding.table(4));
+    }
+
+    public void testFoldIsIdempotent() {
+        for (int mode : MODES) {
+            char[] table = TermFolding.table(mode);
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                assertEquals(mode + " " + Integer.toHexString(c), table[table[c]], table[c]);
+            }
+        }
+    }
+
+    /**
+     * A char folds like the chars the reference maps it to, the table may fold further to make the fold idempotent.
+     */
+    public void testFoldMatchesReference() {
+        for (int mode : MODES) {
+            char[] table = TermFolding.table(mode);
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                char ch = (char) c;
+                String name = mode + " " + Integer.toHexString(c);
+                if ((mode & TermFolding.CASE) != 0) {
+                    assertEquals(name, table[Character.toLowerCase(ch)], table[c]);
+                    assertEquals(name, table[Character.toUpperCase(ch)], table[c]);
+                } else if (Normalizer.isNormalized(String.valueOf(ch), Normalizer.Form.NFKC)) {
+                    // without case folding a normalized char is left as it is
+                    assertEquals(name, ch, table[c]);
+                }
+
+                if ((mode & TermFolding.COMPATIBILITY) != 0 && !Character.isSurrogate(ch)) {
+                    String normalized = Normalizer.normalize(String.valueOf(ch), Normalizer.Form.NFKC);
+                    if (normalized.length() == 1) {
+                        assertEquals(name, table[normalized.charAt(0)], table[c]);
+                    } else if (c >= 0x80) {
+                        // a decomposition to several chars, like a ligature, only folds in case
+                        char expected = (mode & TermFolding.CASE) != 0 ? TermFolding.table(TermFolding.CASE)[c] : ch;
+                        assertEquals(name, expected, table[c]);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testFoldIgnoresDefaultLocale() {
+        char[] table = TermFolding.table(TermFolding.CASE);
+        for (int c = 0; c < 0x80; c++) {
+            String ch = String.valueOf((char) c);
+            assertEquals(ch.toLowerCase(Locale.ROOT), TermFolding.fold(ch, table));
+        }
+        // the turkish dotted and dotless i fold to the ascii i whatever the default locale
+        assertEquals("iii", TermFolding.fold("Iİı", table));
+        assertEquals("σσσ", TermFolding.fold("Σσς", table));
+    }
+
+    public void testCompatibilityForms() {
+        char[] table = TermFolding.table(TermFolding.CASE | TermFolding.COMPATIBILITY);
+        assertEquals("nike", TermFolding.fold("ＮＩＫＥ", table));
+        assertEquals("カメラ", TermFolding.fold("ｶﾒﾗ", table));
+        assertEquals("ﬁ", TermFolding.fold("ﬁ", table));
+        assertEquals("ｎｉｋｅ", TermFolding.fold("ＮＩＫＥ", TermFolding.table(TermFolding.CASE)));
+        assertEquals("NIKE", TermFolding.fold("ＮＩＫＥ", TermFolding.table(TermFolding.COMPATIBILITY)));
+    }
+
+    public void testMapFoldsRulesAndTokens() {
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put("ignore_case", true)
+                .put("normalize", true)
+                .build();
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(new Configuration(new Environment(settings),
+                settings));
+        builder.addRule("Ｎｉｋｅ, 耐克");
+        SimpleSynonymMap map = builder.build();
+        for (String token : Arrays.asList("nike", "NIKE", "ｎｉｋｅ", "ＮＩＫＥ")) {
+            assertEquals(token, Arrays.asList("nike", "耐克"), map.getSynonymWords(token));
+        }
+        assertNull(map.getSynonymWords("nikes"));
+    }
+}
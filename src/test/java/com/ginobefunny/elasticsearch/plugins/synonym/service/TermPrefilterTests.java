@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The prefilter may let terms through which are not in a table, but it must never reject one which is.
+ */
+public class TermPrefilterTests extends ESTestCase {
+
+    /** letters of several scripts, \u1061 and \u3041 share the first char bit of 'a' and 'A' **/
+    private static final String ALPHABET = "abcxyzABCXYZéÉßαΑΣσς耐克范斯\u1061\u3041";
+
+    public void testNoFalseNegatives() throws Exception {
+        int termCount = randomIntBetween(1, 5000);
+        TermPrefilter.Builder builder = new TermPrefilter.Builder(termCount);
+        List<char[]> terms = new ArrayList<>();
+        int[] hashes = new int[termCount];
+        for (int i = 0; i < termCount; i++) {
+            // the empty term and terms of 63 chars and more share a length bit
+            char[] term = randomTerm(randomBoolean() ? randomIntBetween(0, 8) : randomIntBetween(60, 80));
+            terms.add(term);
+            hashes[i] = randomInt();
+            builder.add(term, 0, term.length, hashes[i]);
+        }
+
+        TermPrefilter prefilter = builder.build();
+        assertContainsAll(prefilter, terms, hashes);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        prefilter.writeTo(new DataOutputStream(bytes));
+        assertContainsAll(TermPrefilter.readFrom(ByteBuffer.wrap(bytes.toByteArray())), terms, hashes);
+    }
+
+    public void testRejectsUnknownLengthAndFirstChar() {
+        TermPrefilter.Builder builder = new TermPrefilter.Builder(1);
+        builder.add("nike".toCharArray(), 0, 4, 42);
+        TermPrefilter prefilter = builder.build();
+        assertTrue(prefilter.mayContain(4, 'n'));
+        assertTrue(prefilter.mayContain(42));
+        assertFalse(prefilter.mayContain(5, 'n'));
+        assertFalse(prefilter.mayContain(4, 'm'));
+    }
+
+    /**
+     * Every term found in a map without prefilters must be found in the same map with prefilters, as input term,
+     * as phrase prefix and, if the map ignores case, in any case.
+     */
+    public void testMapWithPrefilterFindsAllTerms() {
+        boolean ignoreCase = randomBoolean();
+        List<String> rules = new ArrayList<>();
+        Set<String> words = new HashSet<>();
+        for (int i = randomIntBetween(1, 2000); i > 0; i--) {
+            String first = new String(randomTerm(randomIntBetween(1, 6)));
+            String second = new String(randomTerm(randomIntBetween(1, 6)));
+            String phrase = first + " " + new String(randomTerm(randomIntBetween(1, 6)));
+            words.add(first);
+            words.add(second);
+            if (randomBoolean()) {
+                words.add(phrase);
+                rules.add(first + ", " + second + ", " + phrase);
+            } else {
+                rules.add(first + ", " + second);
+            }
+        }
+
+        SimpleSynonymMap plain = build(rules, ignoreCase, false);
+        SimpleSynonymMap filtered = build(rules, ignoreCase, true);
+        for (String word : words) {
+            for (String probe : new String[] {word, word.toUpperCase(Locale.ROOT), word.toLowerCase(Locale.ROOT)}) {
+                char[] chars = probe.replace(' ', SimpleSynonymMap.WORD_SEPARATOR).toCharArray();
+                int entry = plain.lookup(chars, 0, chars.length);
+                assertEquals(probe, entry >= 0, filtered.lookup(chars, 0, chars.length) >= 0);
+                assertEquals(probe, plain.getSynonymWords(probe), filtered.getSynonymWords(probe));
+
+                int separator = probe.indexOf(' ');
+                if (separator > 0) {
+                    assertEquals(probe, plain.isPrefix(chars, 0, separator), filtered.isPrefix(chars, 0, separator));
+                    assertTrue(probe, probe.equals(word) == false || filtered.isPrefix(chars, 0, separator));
+                }
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            char[] probe = randomTerm(randomIntBetween(0, 7));
+            assertEquals(plain.lookup(probe, 0, probe.length) >= 0, filtered.lookup(probe, 0, probe.length) >= 0);
+            assertEquals(plain.isPrefix(probe, 0, probe.length), filtered.isPrefix(probe, 0, probe.length));
+        }
+    }
+
+    private static void assertContainsAll(TermPrefilter prefilter, List<char[]> terms, int[] hashes) {
+        for (int i = 0; i < terms.size(); i++) {
+            char[] term = terms.get(i);
+            assertTrue(new String(term), prefilter.mayContain(term.length, term.length == 0 ? 0 : term[0]));
+            assertTrue(new String(term), prefilter.mayContain(hashes[i]));
+        }
+    }
+
+    private static char[] randomTerm(int length) {
+        char[] term = new char[length];
+        for (int i = 0; i < length; i++) {
+            term[i] = ALPHABET.charAt(randomIntBetween(0, ALPHABET.length() - 1));
+        }
+        return term;
+    }
+
+    private SimpleSynonymMap build(List<String> rules, boolean ignoreCase, boolean prefilter) {
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put("ignore_case", ignoreCase)
+                .put("prefilter", prefilter)
+                .build();
+        SimpleSynonymMap.Builder builder = new SimpleSynonymMap.Builder(new Configuration(new Environment(settings),
+                settings));
+        for (String rule : rules) {
+            builder.addRule(rule);
+        }
+        return builder.build();
+    }
+}
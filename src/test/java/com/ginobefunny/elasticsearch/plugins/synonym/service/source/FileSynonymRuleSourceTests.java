@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.source;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.ginobefunny.elasticsearch.plugins.synonym.SynonymThreadFilter;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@ThreadLeakFilters(filters = SynonymThreadFilter.class)
+public class FileSynonymRuleSourceTests extends ESTestCase {
+
+    private Path home;
+
+    private Path rulesFile;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        home = createTempDir();
+        rulesFile = home.resolve("config").resolve("analysis").resolve("synonym.txt");
+        Files.createDirectories(rulesFile.getParent());
+    }
+
+    public void testLoadRules() throws Exception {
+        writeRules("# brands\nnike, 耐克\n\n  adidas => 阿迪达斯  \n");
+        long lastModified = Files.getLastModifiedTime(rulesFile).toMillis();
+
+        FileSynonymRuleSource source = new FileSynonymRuleSource(configuration("analysis/synonym.txt"));
+        try {
+            assertEquals(lastModified, source.getVersion());
+            assertFalse(source.supportsRuleChanges());
+
+            List<SynonymRule> rules = new ArrayList<>();
+            assertEquals(2, source.loadRules(lastModified, rules::add));
+            assertEquals(2, rules.size());
+            assertEquals("nike, 耐克", rules.get(0).getRule());
+            assertEquals(2L, rules.get(0).getId());
+            assertEquals("adidas => 阿迪达斯", rules.get(1).getRule());
+            assertEquals(4L, rules.get(1).getId());
+            assertTrue(rules.get(1).isAvailable());
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testMissingFile() throws Exception {
+        FileSynonymRuleSource source = new FileSynonymRuleSource(configuration("analysis/missing.txt"));
+        try {
+            expectThrows(Exception.class, source::getVersion);
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testRulesPathOutsideConfigDirectory() {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> configuration("../synonym.txt"));
+        assertTrue(e.getMessage(), e.getMessage().contains("must be inside the config directory"));
+        expectThrows(IllegalArgumentException.class, () -> configuration(rulesFile.getRoot().resolve("etc")
+                .resolve("synonym.txt").toString()));
+    }
+
+    public void testWatchNotifiesChange() throws Exception {
+        writeRules("nike, 耐克\n");
+        FileSynonymRuleSource source = new FileSynonymRuleSource(configuration("analysis/synonym.txt"));
+        CountDownLatch changed = new CountDownLatch(1);
+        try {
+            assertTrue(source.watch(changed::countDown));
+            writeRules("nike, 耐克\nvans, 范斯\n");
+            assertTrue(changed.await(30, TimeUnit.SECONDS));
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testCloseStopsWatcher() throws Exception {
+        // the sources of the other tests may still be registered
+        FileSynonymRuleSource.stopWatching();
+        writeRules("nike, 耐克\n");
+        FileSynonymRuleSource source = new FileSynonymRuleSource(configuration("analysis/synonym.txt"));
+        assertTrue(source.watch(() -> {}));
+        assertTrue(isWatcherAlive());
+        source.close();
+        assertFalse(isWatcherAlive());
+    }
+
+    public void testStopWatching() throws Exception {
+        writeRules("nike, 耐克\n");
+        FileSynonymRuleSource first = new FileSynonymRuleSource(configuration("analysis/synonym.txt"));
+        FileSynonymRuleSource second = new FileSynonymRuleSource(configuration("analysis/synonym.txt"));
+        assertTrue(first.watch(() -> {}));
+        assertTrue(second.watch(() -> {}));
+        FileSynonymRuleSource.stopWatching();
+        assertFalse(isWatcherAlive());
+        // the sources close after the node stopped watching
+        first.close();
+        second.close();
+    }
+
+    public void testDictionaryReloadsChangedFile() throws Exception {
+        writeRules("nike, 耐克\n");
+        SynonymRuleManager manager = managers.initial(configuration("analysis/synonym.txt"), "file");
+        try {
+            assertTrue(manager.awaitInitialLoad(30, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("nike", "耐克"), manager.getSynonymWords("nike"));
+            assertNull(manager.getSynonymWords("vans"));
+
+            writeRules("nike, 耐克\nvans, 范斯\n");
+            // the watch reloads the file, no check is due before db_check_max_interval
+            assertBusy(() -> assertEquals(Arrays.asList("vans", "范斯"), manager.getSynonymWords("vans")));
+        } finally {
+            managers.release("file");
+        }
+    }
+
+    private Configuration configuration(String rulesPath) {
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), home)
+                .put("rules_path", rulesPath)
+                .put("snapshot", false)
+                .put("db_check_max_interval", "1h")
+                .build();
+        return new Configuration(new Environment(settings), settings);
+    }
+
+    private static boolean isWatcherAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("synonym-file-watcher") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeRules(String rules) throws Exception {
+        long lastModified = Files.exists(rulesFile) ? Files.getLastModifiedTime(rulesFile).toMillis() : 0L;
+        Files.write(rulesFile, rules.getBytes(StandardCharsets.UTF_8));
+        // the modification time is the version, make sure it moves on file systems with a coarse resolution
+        if (Files.getLastModifiedTime(rulesFile).toMillis() <= lastModified) {
+            Files.setLastModifiedTime(rulesFile, FileTime.fromMillis(lastModified + 1000L));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ginobefunny.elasticsearch.plugins.synonym.service.source;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import com.ginobefunny.elasticsearch.plugins.synonym.SynonymThreadFilter;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.Configuration;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRule;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManager;
+import com.ginobefunny.elasticsearch.plugins.synonym.service.SynonymRuleManagers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the rules from an in-process http server, which answers conditional requests if validators are enabled.
+ */
+@ThreadLeakFilters(filters = SynonymThreadFilter.class)
+@SuppressForbidden(reason = "serves the rules with the jdk http server")
+public class HttpSynonymRuleSourceTests extends ESTestCase {
+
+    private HttpServer server;
+
+    private final SynonymRuleManagers managers = new SynonymRuleManagers();
+
+    private volatile String body = "nike, 耐克\n";
+
+    private volatile int status = 200;
+
+    private volatile boolean validators = true;
+
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/synonym.txt", this::handle);
+        server.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        server.stop(0);
+        super.tearDown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (status != 200) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+
+            String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+            if (validators && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            downloads.incrementAndGet();
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            if (validators) {
+                exchange.getResponseHeaders().add("ETag", etag);
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void testConditionalGet() throws Exception {
+        HttpSynonymRuleSource source = new HttpSynonymRuleSource(configuration());
+        try {
+            long version = source.getVersion();
+            assertTrue(version > 0);
+            assertEquals(1, downloads.get());
+            // the body downloaded by the check is loaded without another request
+            assertEquals(Arrays.asList("nike, 耐克"), loadRules(source, version));
+            assertEquals(1, downloads.get());
+
+            assertEquals(version, source.getVersion());
+            assertEquals(1, downloads.get());
+            assertEquals(1, notModified.get());
+
+            body = "nike, 耐克\nvans, 范斯\n";
+            long changed = source.getVersion();
+            assertTrue(changed > version);
+            assertEquals(2, downloads.get());
+            assertEquals(Arrays.asList("nike, 耐克", "vans, 范斯"), loadRules(source, changed));
+            assertEquals(2, downloads.get());
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testServerWithoutValidators() throws Exception {
+        validators = false;
+        HttpSynonymRuleSource source = new HttpSynonymRuleSource(configuration());
+        try {
+            long version = source.getVersion();
+            // an unchanged body does not move the version
+            assertEquals(version, source.getVersion());
+            assertEquals(2, downloads.get());
+            assertEquals(0, notModified.get());
+
+            body = "nike, 耐克\nvans, 范斯\n";
+            assertTrue(source.getVersion() > version);
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testLoadWithoutCheck() throws Exception {
+        HttpSynonymRuleSource source = new HttpSynonymRuleSource(configuration());
+        try {
+            long version = source.getVersion();
+            assertEquals(Arrays.asList("nike, 耐克"), loadRules(source, version));
+            // the body is dropped once loaded, loading the version again downloads it unconditionally
+            assertEquals(Arrays.asList("nike, 耐克"), loadRules(source, version));
+            assertEquals(2, downloads.get());
+            assertEquals(0, notModified.get());
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testFailedDownload() throws Exception {
+        status = 503;
+        HttpSynonymRuleSource source = new HttpSynonymRuleSource(configuration());
+        try {
+            IOException e = expectThrows(IOException.class, source::getVersion);
+            assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testDictionaryReloadsChangedRules() throws Exception {
+        SynonymRuleManager manager = managers.initial(configuration(), "http");
+        try {
+            assertTrue(manager.awaitInitialLoad(30, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("nike", "耐克"), manager.getSynonymWords("nike"));
+
+            manager.checkNow().get(30, TimeUnit.SECONDS);
+            assertNull(manager.getSynonymWords("vans"));
+
+            body = "nike, 耐克\nvans, 范斯\n";
+            manager.checkNow().get(30, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList("vans", "范斯"), manager.getSynonymWords("vans"));
+            assertEquals(2, downloads.get());
+        } finally {
+            managers.release("http");
+        }
+    }
+
+    private static List<String> loadRules(HttpSynonymRuleSource source, long version) throws Exception {
+        List<String> rules = new ArrayList<>();
+        source.loadRules(version, (SynonymRule rule) -> rules.add(rule.getRule()));
+        return rules;
+    }
+
+    private Configuration configuration() throws IOException {
+        InetSocketAddress address = server.getAddress();
+        Settings settings = Settings.builder()
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put("rules_url", "http://" + address.getHostString() + ":" + address.getPort() + "/synonym.txt")
+                .put("snapshot", false)
+                .put("db_check_max_interval", "1h")
+                .put("rules_url_connect_timeout", "5s")
+                .put("rules_url_read_timeout", "5s")
+                .build();
+        return new Configuration(new Environment(settings), settings);
+    }
+}